@@ -0,0 +1,176 @@
+package com.brainwave.atm.benchmarks;
+
+import com.brainwave.atm.core.BankEngine;
+import com.brainwave.atm.core.BankService;
+import com.brainwave.atm.core.Operation;
+import com.brainwave.atm.core.Outcome;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Throughput and latency of the bank operations the terminals call, per engine.
+// Thread count comes from the JMH command line (-t N) or BankBenchmarkRunner,
+// which sweeps 1..N threads. "uniform" spreads operations over every account,
+// "hot" sends 90% of them to a single account to measure contention.
+// The *Batch variants push the same operations through applyBatch,
+// BATCH per call, and report per-operation figures comparable to the rest.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// Cheap PIN hashes keep account setup fast; validateAccount then measures the
+// Authenticator's pool hand-off and verified-login cache rather than the KDF.
+// The withdrawal limit is checked on every withdrawal but set too high to run out.
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Datm.pin.iterations=1", "-Datm.limit.daily=1000000000"})
+@State(Scope.Benchmark)
+public class BankBenchmark {
+    static final String PIN = "1234";
+
+    @Param({"10000"})
+    public int accounts;
+
+    @Param({"uniform", "hot"})
+    public String distribution;
+
+    // BankEngine name; journaled runs in a scratch directory (-p engine=journaled)
+    @Param({"single", "striped", "ring", "sharded"})
+    public String engine;
+
+    BankService bank;
+    String[] numbers;
+    Path dataDirectory;
+
+    // A fresh bank per iteration keeps the in-memory transaction history
+    // from one iteration skewing the next
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        BankEngine selected = BankEngine.fromName(engine);
+        if (selected.isDurable()) {
+            dataDirectory = Files.createTempDirectory("atm-bench");
+        }
+        bank = selected.open(dataDirectory);
+        numbers = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            numbers[i] = String.format("9%09d", i);
+            bank.openAccount(numbers[i], PIN, 1_000_000_000.00, "Benchmark " + i);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        bank.close();
+        if (dataDirectory != null) {
+            try (Stream<Path> files = Files.walk(dataDirectory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+            dataDirectory = null;
+        }
+    }
+
+    // Per-thread, pre-generated sequence of account indexes so random number
+    // generation stays out of the measured path
+    @State(Scope.Thread)
+    public static class Picker {
+        static final int BATCH = 100;
+        private static final int SIZE = 4096;
+        private static final int BATCHES = 16;
+
+        private final int[] picks = new int[SIZE];
+        private int next;
+        private final List<List<Operation>> deposits = new ArrayList<List<Operation>>();
+        private final List<List<Operation>> transfers = new ArrayList<List<Operation>>();
+        private int nextBatch;
+
+        @Setup(Level.Trial)
+        public void setUp(BankBenchmark benchmark) {
+            SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+            boolean hot = "hot".equals(benchmark.distribution);
+            for (int i = 0; i < SIZE; i++) {
+                picks[i] = hot && random.nextInt(10) != 0 ? 0 : random.nextInt(benchmark.accounts);
+            }
+        }
+
+        // Batches are built from this iteration's account numbers, outside the
+        // measured path
+        @Setup(Level.Iteration)
+        public void buildBatches(BankBenchmark benchmark) {
+            deposits.clear();
+            transfers.clear();
+            for (int b = 0; b < BATCHES; b++) {
+                List<Operation> depositBatch = new ArrayList<Operation>(BATCH);
+                List<Operation> transferBatch = new ArrayList<Operation>(BATCH);
+                for (int i = 0; i < BATCH; i++) {
+                    depositBatch.add(Operation.deposit(benchmark.numbers[next()], 1.00));
+                    transferBatch.add(Operation.transfer(benchmark.numbers[next()], benchmark.numbers[next()], 1.00));
+                }
+                deposits.add(depositBatch);
+                transfers.add(transferBatch);
+            }
+        }
+
+        int next() {
+            return picks[next++ & (SIZE - 1)];
+        }
+
+        List<Operation> nextDeposits() {
+            return deposits.get(nextBatch++ & (BATCHES - 1));
+        }
+
+        List<Operation> nextTransfers() {
+            return transfers.get(nextBatch++ & (BATCHES - 1));
+        }
+    }
+
+    @Benchmark
+    public boolean withdraw(Picker picker) {
+        return bank.withdraw(numbers[picker.next()], 1.00);
+    }
+
+    @Benchmark
+    public boolean deposit(Picker picker) {
+        return bank.deposit(numbers[picker.next()], 1.00);
+    }
+
+    @Benchmark
+    public boolean transfer(Picker picker) {
+        return bank.transfer(numbers[picker.next()], numbers[picker.next()], 1.00);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Picker.BATCH)
+    public List<Outcome> depositBatch(Picker picker) {
+        return bank.applyBatch(picker.nextDeposits());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Picker.BATCH)
+    public List<Outcome> transferBatch(Picker picker) {
+        return bank.applyBatch(picker.nextTransfers());
+    }
+
+    @Benchmark
+    public boolean validateAccount(Picker picker) {
+        return bank.validateAccount(numbers[picker.next()], PIN);
+    }
+}
@@ -0,0 +1,37 @@
+package com.brainwave.atm.benchmarks;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs BankBenchmark at 1, 2, 4 ... N threads (N defaults to the core count)
+// so single- and multi-threaded numbers come out of one invocation.
+//
+//   java -cp atm-benchmarks/target/benchmarks.jar com.brainwave.atm.benchmarks.BankBenchmarkRunner [maxThreads] [benchmarkRegex]
+public class BankBenchmarkRunner {
+    public static void main(String[] args) throws RunnerException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        String include = args.length > 1 ? args[1] : BankBenchmark.class.getSimpleName();
+
+        for (int threads : threadCounts(maxThreads)) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+    private static List<Integer> threadCounts(int maxThreads) {
+        List<Integer> counts = new ArrayList<Integer>();
+        for (int threads = 1; threads < maxThreads; threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(Math.max(1, maxThreads));
+        return counts;
+    }
+}
@@ -0,0 +1,858 @@
+package com.brainwave.atm;
+
+import com.brainwave.atm.core.Money;
+import com.brainwave.atm.core.Outcome;
+import com.brainwave.atm.core.TerminalBank;
+
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Main ATM GUI Application
+//
+// The Event Dispatch Thread never calls the bank: every call is a BankCall run
+// on the terminal's own bank thread, one at a time and in the order the
+// customer made them, with the result handed back to the EDT. While one is in
+// flight the buttons are disabled and the status bar shows what is happening,
+// so a slow journal or server leaves the window responsive. Opening the bank
+// (a journal replay or a server connection) is the first such call, and the
+// login card appears once it is done; closing the window closes the bank on
+// the same thread before the terminal exits.
+public class ATMApplication extends JFrame {
+    // Set on the bank thread by the opening call; null until then
+    private volatile TerminalBank bank;
+    private final ExecutorService bankExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "atm-bank");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicReference<BalanceUpdate> pendingBalance = new AtomicReference<BalanceUpdate>();
+    private int callsInFlight;
+    private String currentAccount;
+    private String currentHolder;
+    private boolean isLoggedIn;
+    
+    // UI Components
+    private final JPanel cardPanel;
+    private final CardLayout cardLayout;
+    private JPanel loginPanel;
+    private JPanel mainMenuPanel;
+    private JTextField accountField;
+    private JPasswordField pinField;
+    private JLabel welcomeLabel;
+    private JLabel balanceLabel;
+    private long displayedBalance = Long.MIN_VALUE;
+    private JProgressBar progressBar;
+    private JLabel statusLabel;
+    // Disabled while a bank call is in flight
+    private final List<JComponent> bankControls = new ArrayList<JComponent>();
+    
+    public ATMApplication() {
+        isLoggedIn = false;
+        
+        cardLayout = new CardLayout();
+        cardPanel = new JPanel(cardLayout);
+        
+        initializeUI();
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent e) {
+                closeBank();
+            }
+        });
+        setSize(600, 500);
+        setLocationRelativeTo(null);
+        setResizable(false);
+        setTitle("Secure ATM - Banking System");
+        
+        // Set Look and Feel
+        try {
+    UIManager.setLookAndFeel(UIManager.getCrossPlatformLookAndFeelClassName());
+} catch (Exception e) {
+    // fallback to default
+    e.printStackTrace();
+}
+
+        openBank();
+    }
+    
+    private void initializeUI() {
+        createLoginPanel();
+        createMainMenuPanel();
+        
+        // Shown first, until the bank is open
+        cardPanel.add(createOpeningPanel(), "OPENING");
+        cardPanel.add(loginPanel, "LOGIN");
+        cardPanel.add(mainMenuPanel, "MAIN_MENU");
+        
+        add(cardPanel, BorderLayout.CENTER);
+        add(createStatusBar(), BorderLayout.SOUTH);
+    }
+    
+    private JPanel createOpeningPanel() {
+        JPanel openingPanel = new JPanel(new BorderLayout());
+        openingPanel.setBackground(new Color(45, 52, 74));
+        
+        JLabel openingLabel = new JLabel("Connecting to the bank...");
+        openingLabel.setFont(new Font("Arial", Font.BOLD, 20));
+        openingLabel.setForeground(Color.WHITE);
+        openingLabel.setHorizontalAlignment(SwingConstants.CENTER);
+        openingPanel.add(openingLabel, BorderLayout.CENTER);
+        return openingPanel;
+    }
+    
+    // Opens the bank on the bank thread, then shows the login card and the
+    // demo accounts. A terminal that can't reach its bank says why and quits.
+    private void openBank() {
+        submit("Opening the bank...", new BankCall<RuntimeException>() {
+            protected RuntimeException doInBackground() {
+                try {
+                    bank = ATMInterface.openBank();
+                    return null;
+                } catch (RuntimeException e) {
+                    return e;
+                }
+            }
+            
+            protected void succeeded(RuntimeException failure) {
+                if (failure != null) {
+                    JOptionPane.showMessageDialog(ATMApplication.this, "The bank could not be opened.\n" + failure.getMessage(),
+                                                "Service Unavailable", JOptionPane.ERROR_MESSAGE);
+                    dispose();
+                    System.exit(1);
+                }
+                cardLayout.show(cardPanel, "LOGIN");
+                showDemoAccountsDialog();
+            }
+        });
+    }
+    
+    // Queued behind any call still in flight, so the bank is closed only
+    // after it returns; the terminal exits once the bank is closed
+    private void closeBank() {
+        setVisible(false);
+        bankExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (bank != null) {
+                        bank.close();
+                    }
+                } finally {
+                    System.exit(0);
+                }
+            }
+        });
+    }
+    
+    private JPanel createStatusBar() {
+        JPanel statusBar = new JPanel(new BorderLayout(10, 0));
+        statusBar.setBorder(new EmptyBorder(4, 10, 4, 10));
+        
+        statusLabel = new JLabel(" ");
+        statusLabel.setFont(new Font("Arial", Font.PLAIN, 12));
+        
+        progressBar = new JProgressBar();
+        progressBar.setIndeterminate(true);
+        progressBar.setPreferredSize(new Dimension(120, 14));
+        progressBar.setVisible(false);
+        
+        statusBar.add(statusLabel, BorderLayout.CENTER);
+        statusBar.add(progressBar, BorderLayout.EAST);
+        return statusBar;
+    }
+    
+    private void createLoginPanel() {
+        loginPanel = new JPanel();
+        loginPanel.setLayout(new BorderLayout());
+        loginPanel.setBackground(new Color(45, 52, 74));
+        
+        // Title Panel
+        JPanel titlePanel = new JPanel();
+        titlePanel.setBackground(new Color(45, 52, 74));
+        titlePanel.setBorder(new EmptyBorder(20, 20, 20, 20));
+        
+        JLabel titleLabel = new JLabel("SECURE ATM SYSTEM");
+        titleLabel.setFont(new Font("Arial", Font.BOLD, 28));
+        titleLabel.setForeground(Color.WHITE);
+        titleLabel.setHorizontalAlignment(SwingConstants.CENTER);
+        titlePanel.add(titleLabel);
+        
+        // Login Form Panel
+        JPanel formPanel = new JPanel(new GridBagLayout());
+        formPanel.setBackground(Color.WHITE);
+        formPanel.setBorder(new EmptyBorder(40, 40, 40, 40));
+        
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(10, 10, 10, 10);
+        
+        // Account Number
+        gbc.gridx = 0; gbc.gridy = 0;
+        formPanel.add(new JLabel("Account Number:"), gbc);
+        
+        gbc.gridx = 1;
+        accountField = new JTextField(15);
+        accountField.setFont(new Font("Arial", Font.PLAIN, 14));
+        formPanel.add(accountField, gbc);
+        
+        // PIN
+        gbc.gridx = 0; gbc.gridy = 1;
+        formPanel.add(new JLabel("PIN:"), gbc);
+        
+        gbc.gridx = 1;
+        pinField = new JPasswordField(15);
+        pinField.setFont(new Font("Arial", Font.PLAIN, 14));
+        formPanel.add(pinField, gbc);
+        
+        // Login Button
+        gbc.gridx = 0; gbc.gridy = 2;
+        gbc.gridwidth = 2;
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        
+        JButton loginButton = new JButton("LOGIN");
+        loginButton.setFont(new Font("Arial", Font.BOLD, 16));
+        loginButton.setBackground(new Color(52, 152, 219));
+        loginButton.setForeground(Color.WHITE);
+        loginButton.setFocusPainted(false);
+        loginButton.setBorder(BorderFactory.createEmptyBorder(10, 20, 10, 20));
+        
+        loginButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                handleLogin();
+            }
+        });
+        formPanel.add(loginButton, gbc);
+        bankControls.add(loginButton);
+        
+        // Demo Accounts Button
+        gbc.gridy = 3;
+        JButton demoButton = new JButton("View Demo Accounts");
+        demoButton.setFont(new Font("Arial", Font.PLAIN, 12));
+        demoButton.setBackground(new Color(149, 165, 166));
+        demoButton.setForeground(Color.WHITE);
+        demoButton.setFocusPainted(false);
+        demoButton.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
+        
+        demoButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                showDemoAccountsDialog();
+            }
+        });
+        formPanel.add(demoButton, gbc);
+        
+        loginPanel.add(titlePanel, BorderLayout.NORTH);
+        loginPanel.add(formPanel, BorderLayout.CENTER);
+        
+        // Add Enter key listener for login
+        pinField.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                handleLogin();
+            }
+        });
+    }
+    
+    private void createMainMenuPanel() {
+        mainMenuPanel = new JPanel();
+        mainMenuPanel.setLayout(new BorderLayout());
+        mainMenuPanel.setBackground(new Color(45, 52, 74));
+        
+        // Header Panel
+        JPanel headerPanel = new JPanel();
+        headerPanel.setBackground(new Color(45, 52, 74));
+        headerPanel.setBorder(new EmptyBorder(20, 20, 10, 20));
+        headerPanel.setLayout(new BoxLayout(headerPanel, BoxLayout.Y_AXIS));
+        
+        welcomeLabel = new JLabel("Welcome, User!");
+        welcomeLabel.setFont(new Font("Arial", Font.BOLD, 20));
+        welcomeLabel.setForeground(Color.WHITE);
+        welcomeLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+        
+        balanceLabel = new JLabel("Current Balance: Rs0.00");
+        balanceLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        balanceLabel.setForeground(Color.WHITE);
+        balanceLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+        
+        headerPanel.add(welcomeLabel);
+        headerPanel.add(Box.createVerticalStrut(5));
+        headerPanel.add(balanceLabel);
+        
+        // Menu Panel
+        JPanel menuPanel = new JPanel(new GridLayout(4, 2, 10, 10));
+        menuPanel.setBackground(Color.WHITE);
+        menuPanel.setBorder(new EmptyBorder(20, 20, 20, 20));
+        
+        // Create menu buttons
+        JButton balanceBtn = createMenuButton("Balance Inquiry", "Check your current balance");
+        JButton withdrawBtn = createMenuButton("Withdraw Money", "Withdraw cash from your account");
+        JButton depositBtn = createMenuButton("Deposit Money", "Deposit money to your account");
+        JButton transferBtn = createMenuButton("Transfer Money", "Transfer money to another account");
+        JButton historyBtn = createMenuButton("Transaction History", "Browse your transaction history");
+        JButton changePinBtn = createMenuButton("Change PIN", "Change your account PIN");
+        JButton logoutBtn = createMenuButton("Logout", "Exit your session");
+        
+        // Add action listeners
+        balanceBtn.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                balanceInquiry();
+            }
+        });
+        
+        withdrawBtn.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                withdraw();
+            }
+        });
+        
+        depositBtn.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                deposit();
+            }
+        });
+        
+        transferBtn.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                transfer();
+            }
+        });
+        
+        historyBtn.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                transactionHistory();
+            }
+        });
+        
+        changePinBtn.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                changePin();
+            }
+        });
+        
+        logoutBtn.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                logout();
+            }
+        });
+        
+        menuPanel.add(balanceBtn);
+        menuPanel.add(withdrawBtn);
+        menuPanel.add(depositBtn);
+        menuPanel.add(transferBtn);
+        menuPanel.add(historyBtn);
+        menuPanel.add(changePinBtn);
+        menuPanel.add(logoutBtn);
+        
+        for (Component button : menuPanel.getComponents()) {
+            bankControls.add((JComponent) button);
+        }
+        
+        mainMenuPanel.add(headerPanel, BorderLayout.NORTH);
+        mainMenuPanel.add(menuPanel, BorderLayout.CENTER);
+    }
+    
+    private JButton createMenuButton(String text, String tooltip) {
+        JButton button = new JButton(text);
+        button.setFont(new Font("Arial", Font.BOLD, 14));
+        button.setBackground(new Color(52, 152, 219));
+        button.setForeground(Color.WHITE);
+        button.setFocusPainted(false);
+        button.setBorder(BorderFactory.createEmptyBorder(15, 10, 15, 10));
+        button.setToolTipText(tooltip);
+        
+        return button;
+    }
+    
+    private void handleLogin() {
+        if (callsInFlight > 0) return;
+        
+        final String accountNumber = accountField.getText().trim();
+        final String pin = new String(pinField.getPassword());
+        
+        if (accountNumber.isEmpty() || pin.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Please enter both account number and PIN.", 
+                                        "Login Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        submit("Verifying PIN...", new BankCall<Boolean>() {
+            String holder;
+            long balance;
+            long lockoutSeconds;
+            
+            protected Boolean doInBackground() {
+                if (bank.validateAccount(accountNumber, pin)) {
+                    holder = bank.getAccountHolderName(accountNumber);
+                    balance = bank.getBalancePaise(accountNumber);
+                    return true;
+                }
+                lockoutSeconds = bank.isLockedOut(accountNumber) ? bank.getLockoutSeconds() : 0;
+                return false;
+            }
+            
+            protected void succeeded(Boolean valid) {
+                if (valid) {
+                    currentAccount = accountNumber;
+                    currentHolder = holder;
+                    isLoggedIn = true;
+                    
+                    welcomeLabel.setText("Welcome, " + currentHolder + "!");
+                    showBalance(balance);
+                    
+                    cardLayout.show(cardPanel, "MAIN_MENU");
+                    
+                    // Clear login fields
+                    accountField.setText("");
+                    pinField.setText("");
+                } else if (lockoutSeconds > 0) {
+                    pinField.setText("");
+                    JOptionPane.showMessageDialog(ATMApplication.this, "Too many failed attempts. This account is locked for up to "
+                                                + lockoutSeconds / 60 + " minutes.",
+                                                "Account Locked", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(ATMApplication.this, "Invalid account number or PIN. Please try again.", 
+                                                "Login Failed", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+    }
+    
+    // Bank thread: reads the balance and hands it to the label
+    private long readBalance(String accountNumber) {
+        long balance = bank.getBalancePaise(accountNumber);
+        BalanceUpdate update = new BalanceUpdate(accountNumber, balance);
+        // Only the first update since the label was last refreshed schedules a
+        // refresh; later ones just replace the value it will show
+        if (pendingBalance.getAndSet(update) == null) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    BalanceUpdate latest = pendingBalance.getAndSet(null);
+                    if (latest != null && latest.accountNumber.equals(currentAccount)) {
+                        showBalance(latest.balance);
+                    }
+                }
+            });
+        }
+        return balance;
+    }
+    
+    private void showBalance(long balance) {
+        // Only re-render (and repaint) when the balance actually changed
+        if (balance != displayedBalance) {
+            displayedBalance = balance;
+            balanceLabel.setText("Current Balance: Rs" + Money.format(balance));
+        }
+    }
+    
+    private void balanceInquiry() {
+        final String account = currentAccount;
+        submit("Checking balance...", new BankCall<Long>() {
+            protected Long doInBackground() {
+                return bank.balanceInquiry(account);
+            }
+            
+            protected void succeeded(Long balance) {
+                showBalance(balance);
+                
+                String message = "Account Number: " + account
+                                 + "\nAccount Holder: " + currentHolder
+                                 + "\nCurrent Balance: Rs" + Money.format(balance);
+                
+                JOptionPane.showMessageDialog(ATMApplication.this, message, "Balance Inquiry", JOptionPane.INFORMATION_MESSAGE);
+            }
+        });
+    }
+    
+    // Looks up how much the withdrawal limit still allows before asking for
+    // the amount
+    private void withdraw() {
+        final String account = currentAccount;
+        submit("Checking withdrawal limit...", new BankCall<Long>() {
+            protected Long doInBackground() {
+                return bank.getRemainingWithdrawalPaise(account);
+            }
+            
+            protected void succeeded(Long remainingLimit) {
+                withdraw(remainingLimit);
+            }
+        });
+    }
+    
+    private void withdraw(final long remainingLimit) {
+        String limit = remainingLimit == Long.MAX_VALUE ? ""
+                       : "\nWithdrawal limit left (24 hours): Rs" + Money.format(remainingLimit);
+        String input = JOptionPane.showInputDialog(this, 
+            "Current Balance: Rs" + Money.format(displayedBalance) + limit + "\nEnter withdrawal amount:",
+            "Withdraw Money", JOptionPane.QUESTION_MESSAGE);
+        
+        if (input == null || input.trim().isEmpty()) return;
+        
+        final double amount;
+        try {
+            amount = Double.parseDouble(input);
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Please enter a valid amount.", 
+                                        "Invalid Amount", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        if (!Money.isValidAmount(Money.toPaise(amount))) {
+            JOptionPane.showMessageDialog(this, "Please enter a positive amount up to Rs"
+                                          + Money.format(Money.MAX_AMOUNT_PAISE) + ".", 
+                                        "Invalid Amount", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        final String account = currentAccount;
+        submit("Dispensing cash...", new BankCall<Outcome>() {
+            long newBalance;
+            
+            protected Outcome doInBackground() {
+                if (Money.toPaise(amount) > bank.getBalancePaise(account)) {
+                    return Outcome.INSUFFICIENT_FUNDS;
+                }
+                if (Money.toPaise(amount) > remainingLimit) {
+                    return Outcome.LIMIT_EXCEEDED;
+                }
+                boolean ok = bank.withdraw(account, amount);
+                newBalance = readBalance(account);
+                if (ok || newBalance < Money.toPaise(amount)) {
+                    return ok ? Outcome.OK : Outcome.UNKNOWN_ACCOUNT;
+                }
+                return bank.getRemainingWithdrawalPaise(account) < Money.toPaise(amount)
+                       ? Outcome.LIMIT_EXCEEDED : Outcome.DECLINED;
+            }
+            
+            protected void succeeded(Outcome outcome) {
+                if (outcome == Outcome.OK) {
+                    String message = "Withdrawal successful!\nAmount: Rs" + Money.format(Money.toPaise(amount))
+                                     + "\nNew Balance: Rs" + Money.format(newBalance);
+                    JOptionPane.showMessageDialog(ATMApplication.this, message, "Withdrawal Successful", JOptionPane.INFORMATION_MESSAGE);
+                } else if (outcome == Outcome.INSUFFICIENT_FUNDS) {
+                    JOptionPane.showMessageDialog(ATMApplication.this, "Insufficient funds!", 
+                                                "Withdrawal Failed", JOptionPane.ERROR_MESSAGE);
+                } else if (outcome == Outcome.LIMIT_EXCEEDED) {
+                    JOptionPane.showMessageDialog(ATMApplication.this, "This would exceed your withdrawal limit!", 
+                                                "Withdrawal Failed", JOptionPane.ERROR_MESSAGE);
+                } else if (outcome == Outcome.DECLINED) {
+                    JOptionPane.showMessageDialog(ATMApplication.this, "Withdrawal declined by the bank's security checks.", 
+                                                "Withdrawal Declined", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(ATMApplication.this, "Withdrawal failed. Please try again.", 
+                                                "Withdrawal Failed", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+    }
+    
+    private void deposit() {
+        String input = JOptionPane.showInputDialog(this, 
+            "Current Balance: Rs" + Money.format(displayedBalance) + "\nEnter deposit amount:",
+            "Deposit Money", JOptionPane.QUESTION_MESSAGE);
+        
+        if (input == null || input.trim().isEmpty()) return;
+        
+        final double amount;
+        try {
+            amount = Double.parseDouble(input);
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Please enter a valid amount.", 
+                                        "Invalid Amount", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        if (!Money.isValidAmount(Money.toPaise(amount))) {
+            JOptionPane.showMessageDialog(this, "Please enter a positive amount up to Rs"
+                                          + Money.format(Money.MAX_AMOUNT_PAISE) + ".", 
+                                        "Invalid Amount", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        final String account = currentAccount;
+        submit("Accepting deposit...", new BankCall<Boolean>() {
+            long newBalance;
+            
+            protected Boolean doInBackground() {
+                boolean ok = bank.deposit(account, amount);
+                newBalance = readBalance(account);
+                return ok;
+            }
+            
+            protected void succeeded(Boolean ok) {
+                if (ok) {
+                    String message = "Deposit successful!\nAmount: Rs" + Money.format(Money.toPaise(amount))
+                                     + "\nNew Balance: Rs" + Money.format(newBalance);
+                    JOptionPane.showMessageDialog(ATMApplication.this, message, "Deposit Successful", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(ATMApplication.this, "Deposit failed. Please try again.", 
+                                                "Deposit Failed", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+    }
+    
+    private void transfer() {
+        final String toAccount = JOptionPane.showInputDialog(this, "Enter recipient account number:", 
+                                                     "Transfer Money", JOptionPane.QUESTION_MESSAGE);
+        
+        if (toAccount == null || toAccount.trim().isEmpty()) return;
+        
+        if (toAccount.equals(currentAccount)) {
+            JOptionPane.showMessageDialog(this, "Cannot transfer to the same account.", 
+                                        "Transfer Failed", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        submit("Looking up recipient...", new BankCall<String>() {
+            protected String doInBackground() {
+                return bank.getAccountHolderName(toAccount);
+            }
+            
+            protected void succeeded(String recipient) {
+                if (recipient == null) {
+                    JOptionPane.showMessageDialog(ATMApplication.this, "Recipient account not found.", 
+                                                "Transfer Failed", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                transferTo(toAccount, recipient);
+            }
+        });
+    }
+    
+    // Second half of a transfer, once the recipient is known
+    private void transferTo(final String toAccount, final String recipient) {
+        String input = JOptionPane.showInputDialog(this, 
+            "Recipient: " + recipient
+                + "\nCurrent Balance: Rs" + Money.format(displayedBalance) + "\nEnter transfer amount:",
+            "Transfer Money", JOptionPane.QUESTION_MESSAGE);
+        
+        if (input == null || input.trim().isEmpty()) return;
+        
+        final double amount;
+        try {
+            amount = Double.parseDouble(input);
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Please enter a valid amount.", 
+                                        "Invalid Amount", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        if (!Money.isValidAmount(Money.toPaise(amount))) {
+            JOptionPane.showMessageDialog(this, "Please enter a positive amount up to Rs"
+                                          + Money.format(Money.MAX_AMOUNT_PAISE) + ".", 
+                                        "Invalid Amount", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        final String account = currentAccount;
+        submit("Transferring...", new BankCall<Outcome>() {
+            long newBalance;
+            
+            protected Outcome doInBackground() {
+                if (Money.toPaise(amount) > bank.getBalancePaise(account)) {
+                    return Outcome.INSUFFICIENT_FUNDS;
+                }
+                boolean ok = bank.transfer(account, toAccount, amount);
+                newBalance = readBalance(account);
+                return ok ? Outcome.OK : newBalance >= Money.toPaise(amount) ? Outcome.DECLINED : Outcome.UNKNOWN_ACCOUNT;
+            }
+            
+            protected void succeeded(Outcome outcome) {
+                if (outcome == Outcome.OK) {
+                    String message = "Transfer successful!\nAmount: Rs" + Money.format(Money.toPaise(amount))
+                                     + "\nTo: " + recipient + " (" + toAccount + ")"
+                                     + "\nNew Balance: Rs" + Money.format(newBalance);
+                    JOptionPane.showMessageDialog(ATMApplication.this, message, "Transfer Successful", JOptionPane.INFORMATION_MESSAGE);
+                } else if (outcome == Outcome.INSUFFICIENT_FUNDS) {
+                    JOptionPane.showMessageDialog(ATMApplication.this, "Insufficient funds!", 
+                                                "Transfer Failed", JOptionPane.ERROR_MESSAGE);
+                } else if (outcome == Outcome.DECLINED) {
+                    JOptionPane.showMessageDialog(ATMApplication.this, "Transfer declined by the bank's security checks.", 
+                                                "Transfer Declined", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(ATMApplication.this, "Transfer failed. Please try again.", 
+                                                "Transfer Failed", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+    }
+    
+    private void transactionHistory() {
+        // The dialog's table fetches its rows on the bank thread as they are shown
+        new HistoryDialog(this, bank, currentAccount, bankExecutor).setVisible(true);
+    }
+    
+    private void changePin() {
+        final String currentPin = JOptionPane.showInputDialog(this, "Enter current PIN:", 
+                                                      "Change PIN", JOptionPane.QUESTION_MESSAGE);
+        
+        if (currentPin == null || currentPin.trim().isEmpty()) return;
+        
+        final String account = currentAccount;
+        submit("Verifying PIN...", new BankCall<Boolean>() {
+            protected Boolean doInBackground() {
+                return bank.validateAccount(account, currentPin);
+            }
+            
+            protected void succeeded(Boolean valid) {
+                if (!valid) {
+                    JOptionPane.showMessageDialog(ATMApplication.this, "Incorrect current PIN.", 
+                                                "PIN Change Failed", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                chooseNewPin(account);
+            }
+        });
+    }
+    
+    // Second half of a PIN change, once the current PIN has been verified
+    private void chooseNewPin(final String account) {
+        final String newPin = JOptionPane.showInputDialog(this, "Enter new PIN (4 digits):", 
+                                                  "Change PIN", JOptionPane.QUESTION_MESSAGE);
+        
+        if (newPin == null || newPin.trim().isEmpty()) return;
+        
+        if (newPin.length() != 4 || !newPin.matches("\\d{4}")) {
+            JOptionPane.showMessageDialog(this, "Invalid PIN format. PIN must be exactly 4 digits.", 
+                                        "PIN Change Failed", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        String confirmPin = JOptionPane.showInputDialog(this, "Confirm new PIN:", 
+                                                      "Change PIN", JOptionPane.QUESTION_MESSAGE);
+        
+        if (confirmPin == null || !newPin.equals(confirmPin)) {
+            JOptionPane.showMessageDialog(this, "PINs do not match. Please try again.", 
+                                        "PIN Change Failed", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        submit("Changing PIN...", new BankCall<Void>() {
+            protected Void doInBackground() {
+                bank.changePin(account, newPin);
+                return null;
+            }
+            
+            protected void succeeded(Void result) {
+                JOptionPane.showMessageDialog(ATMApplication.this, "PIN changed successfully!", 
+                                            "PIN Change Successful", JOptionPane.INFORMATION_MESSAGE);
+            }
+        });
+    }
+    
+    // Hands a bank call to the bank thread and shows that the terminal is busy
+    // until it is done
+    private void submit(String status, BankCall<?> call) {
+        if (callsInFlight++ == 0) {
+            for (JComponent control : bankControls) {
+                control.setEnabled(false);
+            }
+            progressBar.setVisible(true);
+            setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        }
+        statusLabel.setText(status);
+        bankExecutor.execute(call);
+    }
+    
+    private void callFinished() {
+        if (--callsInFlight == 0) {
+            for (JComponent control : bankControls) {
+                control.setEnabled(true);
+            }
+            progressBar.setVisible(false);
+            setCursor(Cursor.getDefaultCursor());
+            statusLabel.setText(" ");
+        }
+    }
+    
+    // A call to the bank made from the UI: doInBackground() runs on the bank
+    // thread, succeeded() afterwards on the Event Dispatch Thread with its
+    // result. A call that throws (a lost server connection, say) is reported
+    // instead.
+    private abstract class BankCall<T> extends SwingWorker<T, Void> {
+        protected abstract void succeeded(T result);
+        
+        protected final void done() {
+            callFinished();
+            T result;
+            try {
+                result = get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                JOptionPane.showMessageDialog(ATMApplication.this, "The bank is not responding. Please try again.\n"
+                                            + e.getCause().getMessage(),
+                                            "Service Unavailable", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            succeeded(result);
+        }
+    }
+    
+    // Balance read on the bank thread, waiting to be shown on the label
+    private static final class BalanceUpdate {
+        final String accountNumber;
+        final long balance;
+        
+        BalanceUpdate(String accountNumber, long balance) {
+            this.accountNumber = accountNumber;
+            this.balance = balance;
+        }
+    }
+    
+    private void logout() {
+        int choice = JOptionPane.showConfirmDialog(this, 
+            "Are you sure you want to logout?", "Logout", 
+            JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+        
+        if (choice == JOptionPane.YES_OPTION) {
+            isLoggedIn = false;
+            currentAccount = null;
+            currentHolder = null;
+            cardLayout.show(cardPanel, "LOGIN");
+            
+            JOptionPane.showMessageDialog(this, "Thank you for using our ATM!\nHave a great day!", 
+                                        "Logout Successful", JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+    
+    private void showDemoAccountsDialog() {
+        String message = "Demo Accounts for Testing:\n\n" +
+                        "Account 1:\n" +
+                        "Number: 1234567890\n" +
+                        "PIN: 1234\n" +
+                        "Holder: Bharat Choudhary\n" +
+                        "Balance: Rs1,500,000.00\n\n" +
+                        "Account 2:\n" +
+                        "Number: 0987654321\n" +
+                        "PIN: 5678\n" +
+                        "Holder: Anil Seervi\n" +
+                        "Balance: Rs250,000.75\n\n" +
+                        "Account 3:\n" +
+                        "Number: 1122334455\n" +
+                        "PIN: 9999\n" +
+                        "Holder: Manish Kumar\n" +
+                        "Balance: Rs750,000.25";
+        
+        JOptionPane.showMessageDialog(this, message, "Demo Accounts", JOptionPane.INFORMATION_MESSAGE);
+    }
+    
+    public static void main(String[] args) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                new ATMApplication().setVisible(true);
+            }
+        });
+    }
+}
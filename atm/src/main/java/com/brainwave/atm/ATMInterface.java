@@ -1,164 +1,54 @@
-import java.text.DecimalFormat;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.*;
+package com.brainwave.atm;
 
-// Account class to represent bank accounts
-class Account {
-    private String accountNumber;
-    public String pin;
-    private double balance;
-    private String accountHolderName;
-    private List<Transaction> transactionHistory;
-    
-    public Account(String accountNumber, String pin, double initialBalance, String accountHolderName) {
-        this.accountNumber = accountNumber;
-        this.pin = pin;
-        this.balance = initialBalance;
-        this.accountHolderName = accountHolderName;
-        this.transactionHistory = new ArrayList<>();
-    }
-    
-    // Getters and setters
-    public String getAccountNumber() { return accountNumber; }
-    public String getPin() { return pin; }
-    public double getBalance() { return balance; }
-    public String getAccountHolderName() { return accountHolderName; }
-    public List<Transaction> getTransactionHistory() { return transactionHistory; }
-    
-    public void setBalance(double balance) { this.balance = balance; }
-    
-    public void addTransaction(Transaction transaction) {
-        transactionHistory.add(transaction);
-    }
-    
-    public boolean validatePin(String inputPin) {
-        return this.pin.equals(inputPin);
-    }
-    
-    public void setPin(String newPin) {
-        this.pin = newPin;
-    }
-}
+import com.brainwave.atm.core.BankEngine;
+import com.brainwave.atm.core.Money;
+import com.brainwave.atm.core.TerminalBank;
+import com.brainwave.atm.core.Transaction;
+import com.brainwave.atm.eod.EndOfDay;
+import com.brainwave.atm.load.LoadGenerator;
+import com.brainwave.atm.metrics.InstrumentedBank;
+import com.brainwave.atm.risk.RiskCheckedBank;
+import com.brainwave.atm.server.AtmServer;
+import com.brainwave.atm.server.GatewayServer;
+import com.brainwave.atm.server.RemoteBank;
+import com.brainwave.atm.statement.StatementStore;
 
-// Transaction class to record transaction details
-class Transaction {
-    private String type;
-    private double amount;
-    private double balanceAfter;
-    private LocalDateTime timestamp;
-    
-    public Transaction(String type, double amount, double balanceAfter) {
-        this.type = type;
-        this.amount = amount;
-        this.balanceAfter = balanceAfter;
-        this.timestamp = LocalDateTime.now();
-    }
-    
-    // Getters
-    public String getType() { return type; }
-    public double getAmount() { return amount; }
-    public double getBalanceAfter() { return balanceAfter; }
-    public LocalDateTime getTimestamp() { return timestamp; }
-    
-    @Override
-    public String toString() {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        return String.format("%s | %s | ₹%.2f | Balance: ₹%.2f", 
-                           timestamp.format(formatter), type, amount, balanceAfter);
-    }
-}
-
-// Bank class to manage accounts and operations
-class Bank {
-    private Map<String, Account> accounts;
-    private DecimalFormat df;
-    
-    public Bank() {
-        accounts = new HashMap<>();
-        df = new DecimalFormat("#.00");
-        initializeAccounts();
-    }
-    
-    private void initializeAccounts() {
-        // Initialize some demo accounts
-        accounts.put("1234567890", new Account("1234567890", "1234", 1500000.00, "Bharat Choudhary"));
-        accounts.put("0987654321", new Account("0987654321", "5678", 250000.75, "Anil Seervi"));
-        accounts.put("1122334455", new Account("1122334455", "9999", 750000.25, "Manish Kumar"));
-    }
-    
-    public Account getAccount(String accountNumber) {
-        return accounts.get(accountNumber);
-    }
-    
-    public boolean validateAccount(String accountNumber, String pin) {
-        Account account = accounts.get(accountNumber);
-        return account != null && account.validatePin(pin);
-    }
-    
-    public boolean withdraw(String accountNumber, double amount) {
-        Account account = accounts.get(accountNumber);
-        if (account != null && account.getBalance() >= amount && amount > 0) {
-            double newBalance = account.getBalance() - amount;
-            account.setBalance(newBalance);
-            account.addTransaction(new Transaction("WITHDRAWAL", amount, newBalance));
-            return true;
-        }
-        return false;
-    }
-    
-    public boolean deposit(String accountNumber, double amount) {
-        Account account = accounts.get(accountNumber);
-        if (account != null && amount > 0) {
-            double newBalance = account.getBalance() + amount;
-            account.setBalance(newBalance);
-            account.addTransaction(new Transaction("DEPOSIT", amount, newBalance));
-            return true;
-        }
-        return false;
-    }
-    
-    public boolean transfer(String fromAccount, String toAccount, double amount) {
-        Account from = accounts.get(fromAccount);
-        Account to = accounts.get(toAccount);
-        
-        if (from != null && to != null && from.getBalance() >= amount && amount > 0) {
-            double fromNewBalance = from.getBalance() - amount;
-            double toNewBalance = to.getBalance() + amount;
-            
-            from.setBalance(fromNewBalance);
-            to.setBalance(toNewBalance);
-            
-            from.addTransaction(new Transaction("TRANSFER OUT to " + toAccount, amount, fromNewBalance));
-            to.addTransaction(new Transaction("TRANSFER IN from " + fromAccount, amount, toNewBalance));
-            
-            return true;
-        }
-        return false;
-    }
-    
-    public void changePin(String accountNumber, String newPin) {
-        Account account = accounts.get(accountNumber);
-        if (account != null) {
-            account.setPin(newPin);
-            account.addTransaction(new Transaction("PIN CHANGE", 0, account.getBalance()));
-        }
-    }
-}
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
 
 // Main ATM class with user interface
 public class ATMInterface {
-    private Bank bank;
+    private TerminalBank bank;
     private Scanner scanner;
-    private Account currentAccount;
+    private String currentAccount;
+    private String currentHolder;
     private boolean isLoggedIn;
     
     public ATMInterface() {
-        bank = new Bank();
+        bank = openBank();
         scanner = new Scanner(System.in);
         isLoggedIn = false;
     }
     
+    // The bank the terminals talk to: an ATM server when -Datm.server=host:port
+    // is set, otherwise a local engine chosen by -Datm.engine (default the
+    // journaled ledger in -Datm.data, default atm-data). Calls are measured
+    // (see InstrumentedBank) unless -Datm.metrics=false, and a local engine's
+    // debits pass the risk checks (see RiskCheckedBank) unless -Datm.risk=false;
+    // a server runs its own.
+    static TerminalBank openBank() {
+        String server = System.getProperty("atm.server");
+        if (server == null) {
+            return InstrumentedBank.instrument(RiskCheckedBank.protect(BankEngine.fromSystemProperties()));
+        }
+        try {
+            return InstrumentedBank.instrument(RemoteBank.connect(server));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot connect to ATM server " + server, e);
+        }
+    }
+    
     public void start() {
         System.out.println("=================================");
         System.out.println("   WELCOME TO SECURE ATM");
@@ -180,6 +70,7 @@ public class ATMInterface {
         
         if (accountNumber.equalsIgnoreCase("exit")) {
             System.out.println("Thank you for using our ATM!");
+            bank.close();
             System.exit(0);
         }
         
@@ -187,9 +78,13 @@ public class ATMInterface {
         String pin = scanner.nextLine();
         
         if (bank.validateAccount(accountNumber, pin)) {
-            currentAccount = bank.getAccount(accountNumber);
+            currentAccount = accountNumber;
+            currentHolder = bank.getAccountHolderName(accountNumber);
             isLoggedIn = true;
-            System.out.println("\nLogin successful! Welcome, " + currentAccount.getAccountHolderName());
+            System.out.println("\nLogin successful! Welcome, " + currentHolder);
+        } else if (bank.isLockedOut(accountNumber)) {
+            System.out.println("Too many failed attempts. This account is locked for up to "
+                               + bank.getLockoutSeconds() / 60 + " minutes.");
         } else {
             System.out.println("Invalid account number or PIN. Please try again.");
         }
@@ -243,37 +138,52 @@ public class ATMInterface {
     
     private void balanceInquiry() {
         System.out.println("\n--- BALANCE INQUIRY ---");
-        System.out.printf("Account Number: %s\n", currentAccount.getAccountNumber());
-        System.out.printf("Account Holder: %s\n", currentAccount.getAccountHolderName());
-        System.out.printf("Current Balance: ₹%.2f\n", currentAccount.getBalance());
+        System.out.printf("Account Number: %s\n", currentAccount);
+        System.out.printf("Account Holder: %s\n", currentHolder);
+        System.out.println("Current Balance: ₹" + Money.format(bank.balanceInquiry(currentAccount)));
         
-        currentAccount.addTransaction(new Transaction("BALANCE INQUIRY", 0, currentAccount.getBalance()));
         pressEnterToContinue();
     }
     
     private void withdraw() {
         System.out.println("\n--- WITHDRAW MONEY ---");
-        System.out.printf("Current Balance: ₹%.2f\n", currentAccount.getBalance());
+        System.out.println("Current Balance: ₹" + Money.format(bank.getBalancePaise(currentAccount)));
+        long remainingLimit = bank.getRemainingWithdrawalPaise(currentAccount);
+        if (remainingLimit != Long.MAX_VALUE) {
+            System.out.println("Withdrawal limit left (24 hours): ₹" + Money.format(remainingLimit));
+        }
         System.out.print("Enter withdrawal amount: ₹");
         
         try {
             double amount = Double.parseDouble(scanner.nextLine());
             
-            if (amount <= 0) {
-                System.out.println("Invalid amount. Please enter a positive number.");
+            if (!Money.isValidAmount(Money.toPaise(amount))) {
+                System.out.println("Invalid amount. Please enter a positive number up to ₹"
+                                   + Money.format(Money.MAX_AMOUNT_PAISE) + ".");
                 return;
             }
             
-            if (amount > currentAccount.getBalance()) {
+            if (Money.toPaise(amount) > bank.getBalancePaise(currentAccount)) {
                 System.out.println("Insufficient funds. Your current balance is ₹" + 
-                                 String.format("%.2f", currentAccount.getBalance()));
+                                 Money.format(bank.getBalancePaise(currentAccount)));
+                return;
+            }
+            
+            if (Money.toPaise(amount) > remainingLimit) {
+                System.out.println("Withdrawal limit exceeded. You can withdraw up to ₹" +
+                                 Money.format(remainingLimit) + " now.");
                 return;
             }
             
-            if (bank.withdraw(currentAccount.getAccountNumber(), amount)) {
+            if (bank.withdraw(currentAccount, amount)) {
                 System.out.println("Withdrawal successful!");
-                System.out.printf("Amount withdrawn: ₹%.2f\n", amount);
-                System.out.printf("New balance: ₹%.2f\n", currentAccount.getBalance());
+                System.out.println("Amount withdrawn: ₹" + Money.format(Money.toPaise(amount)));
+                System.out.println("New balance: ₹" + Money.format(bank.getBalancePaise(currentAccount)));
+            } else if (bank.getRemainingWithdrawalPaise(currentAccount) < Money.toPaise(amount)) {
+                System.out.println("Withdrawal limit exceeded. You can withdraw up to ₹" +
+                                 Money.format(bank.getRemainingWithdrawalPaise(currentAccount)) + " now.");
+            } else if (bank.getBalancePaise(currentAccount) >= Money.toPaise(amount)) {
+                System.out.println("Withdrawal declined by the bank's security checks.");
             } else {
                 System.out.println("Withdrawal failed. Please try again.");
             }
@@ -286,21 +196,22 @@ public class ATMInterface {
     
     private void deposit() {
         System.out.println("\n--- DEPOSIT MONEY ---");
-        System.out.printf("Current Balance: ₹%.2f\n", currentAccount.getBalance());
+        System.out.println("Current Balance: ₹" + Money.format(bank.getBalancePaise(currentAccount)));
         System.out.print("Enter deposit amount: ₹");
         
         try {
             double amount = Double.parseDouble(scanner.nextLine());
             
-            if (amount <= 0) {
-                System.out.println("Invalid amount. Please enter a positive number.");
+            if (!Money.isValidAmount(Money.toPaise(amount))) {
+                System.out.println("Invalid amount. Please enter a positive number up to ₹"
+                                   + Money.format(Money.MAX_AMOUNT_PAISE) + ".");
                 return;
             }
             
-            if (bank.deposit(currentAccount.getAccountNumber(), amount)) {
+            if (bank.deposit(currentAccount, amount)) {
                 System.out.println("Deposit successful!");
-                System.out.printf("Amount deposited: ₹%.2f\n", amount);
-                System.out.printf("New balance: ₹%.2f\n", currentAccount.getBalance());
+                System.out.println("Amount deposited: ₹" + Money.format(Money.toPaise(amount)));
+                System.out.println("New balance: ₹" + Money.format(bank.getBalancePaise(currentAccount)));
             } else {
                 System.out.println("Deposit failed. Please try again.");
             }
@@ -313,45 +224,48 @@ public class ATMInterface {
     
     private void transfer() {
         System.out.println("\n--- TRANSFER MONEY ---");
-        System.out.printf("Current Balance: ₹%.2f\n", currentAccount.getBalance());
+        System.out.println("Current Balance: ₹" + Money.format(bank.getBalancePaise(currentAccount)));
         System.out.print("Enter recipient account number: ");
         String toAccount = scanner.nextLine();
         
-        Account recipient = bank.getAccount(toAccount);
+        String recipient = bank.getAccountHolderName(toAccount);
         if (recipient == null) {
             System.out.println("Recipient account not found.");
             pressEnterToContinue();
             return;
         }
         
-        if (toAccount.equals(currentAccount.getAccountNumber())) {
+        if (toAccount.equals(currentAccount)) {
             System.out.println("Cannot transfer to the same account.");
             pressEnterToContinue();
             return;
         }
         
-        System.out.printf("Recipient: %s\n", recipient.getAccountHolderName());
+        System.out.printf("Recipient: %s\n", recipient);
         System.out.print("Enter transfer amount: ₹");
         
         try {
             double amount = Double.parseDouble(scanner.nextLine());
             
-            if (amount <= 0) {
-                System.out.println("Invalid amount. Please enter a positive number.");
+            if (!Money.isValidAmount(Money.toPaise(amount))) {
+                System.out.println("Invalid amount. Please enter a positive number up to ₹"
+                                   + Money.format(Money.MAX_AMOUNT_PAISE) + ".");
                 return;
             }
             
-            if (amount > currentAccount.getBalance()) {
+            if (Money.toPaise(amount) > bank.getBalancePaise(currentAccount)) {
                 System.out.println("Insufficient funds. Your current balance is ₹" + 
-                                 String.format("%.2f", currentAccount.getBalance()));
+                                 Money.format(bank.getBalancePaise(currentAccount)));
                 return;
             }
             
-            if (bank.transfer(currentAccount.getAccountNumber(), toAccount, amount)) {
+            if (bank.transfer(currentAccount, toAccount, amount)) {
                 System.out.println("Transfer successful!");
-                System.out.printf("Amount transferred: ₹%.2f\n", amount);
-                System.out.printf("To: %s (%s)\n", recipient.getAccountHolderName(), toAccount);
-                System.out.printf("New balance: ₹%.2f\n", currentAccount.getBalance());
+                System.out.println("Amount transferred: ₹" + Money.format(Money.toPaise(amount)));
+                System.out.printf("To: %s (%s)\n", recipient, toAccount);
+                System.out.println("New balance: ₹" + Money.format(bank.getBalancePaise(currentAccount)));
+            } else if (bank.getBalancePaise(currentAccount) >= Money.toPaise(amount)) {
+                System.out.println("Transfer declined by the bank's security checks.");
             } else {
                 System.out.println("Transfer failed. Please try again.");
             }
@@ -364,21 +278,20 @@ public class ATMInterface {
     
     private void transactionHistory() {
         System.out.println("\n--- TRANSACTION HISTORY ---");
-        List<Transaction> history = currentAccount.getTransactionHistory();
+        long count = bank.getTransactionCount(currentAccount);
         
-        if (history.isEmpty()) {
+        if (count == 0) {
             System.out.println("No transactions found.");
         } else {
             System.out.println("Recent Transactions (most recent first):");
             System.out.println("----------------------------------------");
             
             // Show last 10 transactions
-            int start = Math.max(0, history.size() - 10);
-            for (int i = history.size() - 1; i >= start; i--) {
-                System.out.println(history.get(i));
+            for (Transaction transaction : bank.recentTransactions(currentAccount, 10)) {
+                System.out.println(transaction);
             }
             
-            if (history.size() > 10) {
+            if (count > 10) {
                 System.out.println("\n(Showing last 10 transactions)");
             }
         }
@@ -391,7 +304,7 @@ public class ATMInterface {
         System.out.print("Enter current PIN: ");
         String currentPin = scanner.nextLine();
         
-        if (!currentAccount.validatePin(currentPin)) {
+        if (!bank.validateAccount(currentAccount, currentPin)) {
             System.out.println("Incorrect current PIN.");
             pressEnterToContinue();
             return;
@@ -415,7 +328,7 @@ public class ATMInterface {
             return;
         }
         
-        bank.changePin(currentAccount.getAccountNumber(), newPin);
+        bank.changePin(currentAccount, newPin);
         System.out.println("PIN changed successfully!");
         
         pressEnterToContinue();
@@ -423,10 +336,11 @@ public class ATMInterface {
     
     private void logout() {
         System.out.println("\n--- LOGOUT ---");
-        System.out.println("Thank you for using our ATM, " + currentAccount.getAccountHolderName() + "!");
+        System.out.println("Thank you for using our ATM, " + currentHolder + "!");
         System.out.println("Have a great day!");
         isLoggedIn = false;
         currentAccount = null;
+        currentHolder = null;
         
         System.out.println("\nPress Enter to return to login screen...");
         scanner.nextLine();
@@ -446,9 +360,35 @@ public class ATMInterface {
         System.out.println("===================================");
     }
     
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // Headless mode: simulated sessions instead of a keyboard
+        if (args.length > 0 && args[0].equals("--load")) {
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // Server mode: serve remote terminals instead of a local keyboard
+        if (args.length > 0 && args[0].equals("--server")) {
+            AtmServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // Gateway mode: binary pipelined protocol for terminal concentrators
+        if (args.length > 0 && args[0].equals("--gateway")) {
+            GatewayServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // Statement run: render a month's statements of every account
+        if (args.length > 0 && args[0].equals("--statements")) {
+            StatementStore.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // End-of-day run: reconcile every account and post the day's interest
+        if (args.length > 0 && args[0].equals("--eod")) {
+            EndOfDay.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
         ATMInterface atm = new ATMInterface();
         atm.showDemoAccounts();
         atm.start();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,133 @@
+package com.brainwave.atm;
+
+import com.brainwave.atm.core.Money;
+import com.brainwave.atm.core.TerminalBank;
+import com.brainwave.atm.core.TransactionType;
+
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.Executor;
+
+// Transaction history screen: the account's whole history in a table that
+// loads rows as they are scrolled into view (see HistoryTableModel), with a
+// filter bar for type, date range and amount range and a choice of order.
+class HistoryDialog extends JDialog {
+    private final HistoryTableModel model;
+    private final JComboBox<Object> typeBox;
+    private final JTextField fromField = new JTextField(8);
+    private final JTextField toField = new JTextField(8);
+    private final JTextField minField = new JTextField(6);
+    private final JTextField maxField = new JTextField(6);
+    private final JComboBox<HistoryTableModel.Order> orderBox;
+    private final JLabel statusLabel = new JLabel(" ");
+
+    HistoryDialog(Frame owner, TerminalBank bank, String account, Executor executor) {
+        super(owner, "Transaction History", true);
+        model = new HistoryTableModel(bank, account, executor);
+
+        Object[] types = new Object[TransactionType.values().length + 1];
+        types[0] = "All types";
+        System.arraycopy(TransactionType.values(), 0, types, 1, TransactionType.values().length);
+        typeBox = new JComboBox<Object>(types);
+        orderBox = new JComboBox<HistoryTableModel.Order>(HistoryTableModel.Order.values());
+
+        // Filter bar
+        JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 4));
+        filterPanel.add(typeBox);
+        filterPanel.add(new JLabel("From"));
+        filterPanel.add(fromField);
+        filterPanel.add(new JLabel("To"));
+        filterPanel.add(toField);
+        filterPanel.add(new JLabel("Rs"));
+        filterPanel.add(minField);
+        filterPanel.add(new JLabel("-"));
+        filterPanel.add(maxField);
+        filterPanel.add(orderBox);
+        fromField.setToolTipText("yyyy-MM-dd, blank for no limit");
+        toField.setToolTipText("yyyy-MM-dd (inclusive), blank for no limit");
+        minField.setToolTipText("Smallest amount, blank for no limit");
+        maxField.setToolTipText("Largest amount, blank for no limit");
+
+        JButton applyButton = new JButton("Apply");
+        applyButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                applyFilter();
+            }
+        });
+        filterPanel.add(applyButton);
+
+        // Rows have a fixed height, so the table never needs to look at rows
+        // outside the viewport to lay itself out
+        JTable table = new JTable(model);
+        table.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        table.setRowHeight(18);
+        table.setFillsViewportHeight(true);
+        table.getTableHeader().setReorderingAllowed(false);
+        table.getColumnModel().getColumn(0).setPreferredWidth(150);
+        table.getColumnModel().getColumn(1).setPreferredWidth(220);
+
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setPreferredSize(new Dimension(760, 380));
+
+        statusLabel.setBorder(new EmptyBorder(4, 8, 4, 8));
+        model.addTableModelListener(new TableModelListener() {
+            public void tableChanged(TableModelEvent e) {
+                updateStatus();
+            }
+        });
+
+        add(filterPanel, BorderLayout.NORTH);
+        add(scrollPane, BorderLayout.CENTER);
+        add(statusLabel, BorderLayout.SOUTH);
+        pack();
+        setLocationRelativeTo(owner);
+
+        model.setView(HistoryTableModel.View.all());
+    }
+
+    private void applyFilter() {
+        try {
+            LocalDateTime from = fromField.getText().trim().isEmpty()
+                                 ? HistoryTableModel.EARLIEST
+                                 : LocalDate.parse(fromField.getText().trim()).atStartOfDay();
+            LocalDateTime to = toField.getText().trim().isEmpty()
+                               ? null
+                               : LocalDate.parse(toField.getText().trim()).plusDays(1).atStartOfDay();
+            long min = minField.getText().trim().isEmpty() ? 0 : Money.toPaise(Double.parseDouble(minField.getText().trim()));
+            long max = maxField.getText().trim().isEmpty()
+                       ? Long.MAX_VALUE
+                       : Money.toPaise(Double.parseDouble(maxField.getText().trim()));
+            Object type = typeBox.getSelectedItem();
+            model.setView(new HistoryTableModel.View(from, to,
+                                                     type instanceof TransactionType ? (TransactionType) type : null,
+                                                     min, max, (HistoryTableModel.Order) orderBox.getSelectedItem()));
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Please enter dates as yyyy-MM-dd.",
+                                        "Invalid Date", JOptionPane.ERROR_MESSAGE);
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Please enter a valid amount.",
+                                        "Invalid Amount", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void updateStatus() {
+        if (model.getError() != null) {
+            statusLabel.setText("Could not load history: " + model.getError());
+        } else if (model.isScanning()) {
+            statusLabel.setText(model.getView().filters() || model.getView().order.byAmount()
+                                ? "Searching history..." : "Loading...");
+        } else if (model.getRowCount() == 0) {
+            statusLabel.setText("No transactions found.");
+        } else {
+            statusLabel.setText(model.getRowCount() + " transactions");
+        }
+    }
+}
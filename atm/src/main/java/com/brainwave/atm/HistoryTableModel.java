@@ -0,0 +1,381 @@
+package com.brainwave.atm;
+
+import com.brainwave.atm.core.Money;
+import com.brainwave.atm.core.TerminalBank;
+import com.brainwave.atm.core.Transaction;
+import com.brainwave.atm.core.TransactionType;
+
+import javax.swing.SwingWorker;
+import javax.swing.table.AbstractTableModel;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+// Table model over an account's whole transaction history that never holds
+// more than a few pages of it.
+//
+// Rows are fetched from the bank a page at a time, on the terminal's bank
+// thread, the first time the table paints one of them; until the page arrives
+// its cells are blank. Only the CACHED_PAGES most recently used pages are
+// kept, so memory stays flat however long the history is and however far the
+// user scrolls.
+//
+// A view is a date range, which the history finds by binary search, in either
+// date order. Filtering by type or amount, or ordering by amount, has to look
+// at every entry in the range once: the range is scanned in pages on the bank
+// thread and only the positions of the matching entries are kept (a long per
+// row, plus its amount when ordering by amount); rows are then fetched through
+// that index.
+//
+// A view's range ends when it was set, so entries recorded while the table is
+// open don't shift its rows.
+class HistoryTableModel extends AbstractTableModel {
+    static final int PAGE_SIZE = 100;
+    static final int CACHED_PAGES = 8;
+    static final LocalDateTime EARLIEST = LocalDateTime.of(1970, 1, 1, 0, 0);
+    // Entries per bank call while scanning a range for a filter
+    private static final int SCAN_PAGE = 1000;
+    // Rows of a page closer together than this are fetched in one call
+    private static final int MAX_GAP = 16;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String[] COLUMNS = { "Date", "Type", "Amount (Rs)", "Balance (Rs)" };
+
+    enum Order {
+        NEWEST_FIRST("Newest first"),
+        OLDEST_FIRST("Oldest first"),
+        LARGEST_FIRST("Largest amount first"),
+        SMALLEST_FIRST("Smallest amount first");
+
+        private final String label;
+
+        Order(String label) {
+            this.label = label;
+        }
+
+        boolean byAmount() {
+            return this == LARGEST_FIRST || this == SMALLEST_FIRST;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    // What the table shows. Amounts are paise, both bounds inclusive; a null
+    // type matches every type.
+    static final class View {
+        final LocalDateTime from;
+        final LocalDateTime to;
+        final TransactionType type;
+        final long minAmount;
+        final long maxAmount;
+        final Order order;
+
+        View(LocalDateTime from, LocalDateTime to, TransactionType type, long minAmount, long maxAmount, Order order) {
+            this.from = from;
+            this.to = to;
+            this.type = type;
+            this.minAmount = minAmount;
+            this.maxAmount = maxAmount;
+            this.order = order;
+        }
+
+        // Everything, newest first
+        static View all() {
+            return new View(EARLIEST, null, null, 0, Long.MAX_VALUE, Order.NEWEST_FIRST);
+        }
+
+        boolean filters() {
+            return type != null || minAmount > 0 || maxAmount < Long.MAX_VALUE;
+        }
+
+        boolean matches(Transaction transaction) {
+            long amount = transaction.getAmountPaise();
+            return (type == null || transaction.getTransactionType() == type)
+                   && amount >= minAmount && amount <= maxAmount;
+        }
+    }
+
+    private final TerminalBank bank;
+    private final String account;
+    private final Executor executor;
+
+    // Everything below is only touched on the Event Dispatch Thread
+    private View view;
+    private LocalDateTime to;
+    private long rangeCount;
+    // Range offsets (newest first) of the rows, in row order; null when rows
+    // map straight onto the range
+    private long[] index;
+    private int rowCount;
+    private boolean scanning;
+    private String error;
+    // Bumped by every setView so that answers for an older view are dropped
+    private int generation;
+    private final Set<Integer> loading = new HashSet<Integer>();
+    private final Map<Integer, List<Transaction>> pages = new LinkedHashMap<Integer, List<Transaction>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<Transaction>> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    HistoryTableModel(TerminalBank bank, String account, Executor executor) {
+        this.bank = bank;
+        this.account = account;
+        this.executor = executor;
+    }
+
+    // Switches to view; rows appear once the bank has counted (and if need be
+    // scanned) the range
+    void setView(final View view) {
+        this.view = view;
+        final int current = ++generation;
+        LocalDateTime now = LocalDateTime.now().plusNanos(1_000_000);
+        to = view.to == null || view.to.isAfter(now) ? now : view.to;
+        final LocalDateTime rangeEnd = to;
+        pages.clear();
+        loading.clear();
+        index = null;
+        rowCount = 0;
+        error = null;
+        scanning = true;
+        fireTableDataChanged();
+
+        executor.execute(new SwingWorker<long[], Void>() {
+            long count;
+
+            protected long[] doInBackground() {
+                count = bank.countTransactionsBetween(account, view.from, rangeEnd);
+                return view.filters() || view.order.byAmount() ? scan(view, rangeEnd, count) : null;
+            }
+
+            protected void done() {
+                if (current != generation) {
+                    return;
+                }
+                scanning = false;
+                try {
+                    index = get();
+                    rangeCount = count;
+                    rowCount = (int) Math.min(Integer.MAX_VALUE, index == null ? count : index.length);
+                } catch (InterruptedException | ExecutionException e) {
+                    error = failure(e);
+                }
+                fireTableDataChanged();
+            }
+        });
+    }
+
+    View getView() {
+        return view;
+    }
+
+    // True while the bank is still counting or scanning the current view
+    boolean isScanning() {
+        return scanning;
+    }
+
+    // Why the current view could not be shown, or null
+    String getError() {
+        return error;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    public Object getValueAt(int row, int column) {
+        int page = row / PAGE_SIZE;
+        List<Transaction> rows = pages.get(page);
+        if (rows == null) {
+            load(page);
+            return null;
+        }
+        Transaction transaction = rows.get(row - page * PAGE_SIZE);
+        if (transaction == null) {
+            return null;
+        }
+        switch (column) {
+            case 0: return DATE_FORMAT.format(transaction.getTimestamp());
+            case 1: return transaction.getType();
+            case 2: return Money.format(transaction.getAmountPaise());
+            default: return Money.format(transaction.getBalanceAfterPaise());
+        }
+    }
+
+    // Range offset (newest first) of a row of the current view
+    private long offsetOf(int row) {
+        if (index == null) {
+            return view.order == Order.OLDEST_FIRST ? rangeCount - 1 - row : row;
+        }
+        return view.order == Order.OLDEST_FIRST ? index[rowCount - 1 - row] : index[row];
+    }
+
+    private void load(final int page) {
+        if (!loading.add(page)) {
+            return;
+        }
+        final int current = generation;
+        final int first = page * PAGE_SIZE;
+        final long[] offsets = new long[Math.min(PAGE_SIZE, rowCount - first)];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = offsetOf(first + i);
+        }
+        final View pageView = view;
+        final LocalDateTime rangeEnd = to;
+
+        executor.execute(new SwingWorker<List<Transaction>, Void>() {
+            protected List<Transaction> doInBackground() {
+                return fetch(pageView.from, rangeEnd, offsets);
+            }
+
+            protected void done() {
+                if (current != generation) {
+                    return;
+                }
+                try {
+                    pages.put(page, get());
+                    loading.remove(page);
+                } catch (InterruptedException | ExecutionException e) {
+                    // left marked as loading so painting doesn't retry it in a loop
+                    error = failure(e);
+                }
+                fireTableRowsUpdated(first, first + offsets.length - 1);
+            }
+        });
+    }
+
+    // Bank thread: the entries at the given range offsets, in the same order.
+    // Offsets close to each other are read with one call.
+    private List<Transaction> fetch(LocalDateTime from, LocalDateTime rangeEnd, long[] offsets) {
+        long[] sorted = offsets.clone();
+        Arrays.sort(sorted);
+        Map<Long, Transaction> found = new HashMap<Long, Transaction>();
+        int i = 0;
+        while (i < sorted.length) {
+            int j = i + 1;
+            while (j < sorted.length && sorted[j] - sorted[j - 1] <= MAX_GAP) {
+                j++;
+            }
+            long start = sorted[i];
+            List<Transaction> run = bank.transactionsBetween(account, from, rangeEnd, start,
+                                                             (int) (sorted[j - 1] - start + 1));
+            for (int k = 0; k < run.size(); k++) {
+                found.put(start + k, run.get(k));
+            }
+            i = j;
+        }
+        List<Transaction> rows = new ArrayList<Transaction>(offsets.length);
+        for (long offset : offsets) {
+            rows.add(found.get(offset));
+        }
+        return rows;
+    }
+
+    // Bank thread: range offsets of the entries matching view, ordered for the
+    // view (newest first unless it orders by amount)
+    private long[] scan(View view, LocalDateTime rangeEnd, long count) {
+        long[] offsets = new long[64];
+        long[] amounts = view.order.byAmount() ? new long[64] : null;
+        int matches = 0;
+        for (long start = 0; start < count; start += SCAN_PAGE) {
+            List<Transaction> chunk = bank.transactionsBetween(account, view.from, rangeEnd, start, SCAN_PAGE);
+            if (chunk.isEmpty()) {
+                break;
+            }
+            for (int i = 0; i < chunk.size(); i++) {
+                Transaction transaction = chunk.get(i);
+                if (!view.matches(transaction)) {
+                    continue;
+                }
+                if (matches == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, matches * 2);
+                    if (amounts != null) {
+                        amounts = Arrays.copyOf(amounts, matches * 2);
+                    }
+                }
+                offsets[matches] = start + i;
+                if (amounts != null) {
+                    amounts[matches] = transaction.getAmountPaise();
+                }
+                matches++;
+            }
+        }
+        offsets = Arrays.copyOf(offsets, matches);
+        if (amounts != null) {
+            sortByAmount(offsets, amounts, matches, view.order == Order.LARGEST_FIRST);
+        }
+        return offsets;
+    }
+
+    // Heap sort of offsets by amount (then newest first), descending or
+    // ascending, without boxing either array
+    private static void sortByAmount(long[] offsets, long[] amounts, int n, boolean descending) {
+        int sign = descending ? -1 : 1;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(offsets, amounts, i, n, sign);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            swap(offsets, amounts, 0, end);
+            siftDown(offsets, amounts, 0, end, sign);
+        }
+    }
+
+    private static void siftDown(long[] offsets, long[] amounts, int i, int n, int sign) {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < n && compare(offsets, amounts, left, largest, sign) > 0) {
+                largest = left;
+            }
+            if (right < n && compare(offsets, amounts, right, largest, sign) > 0) {
+                largest = right;
+            }
+            if (largest == i) {
+                return;
+            }
+            swap(offsets, amounts, i, largest);
+            i = largest;
+        }
+    }
+
+    private static int compare(long[] offsets, long[] amounts, int a, int b, int sign) {
+        int byAmount = Long.compare(amounts[a], amounts[b]) * sign;
+        return byAmount != 0 ? byAmount : Long.compare(offsets[a], offsets[b]);
+    }
+
+    private static void swap(long[] offsets, long[] amounts, int a, int b) {
+        long offset = offsets[a];
+        offsets[a] = offsets[b];
+        offsets[b] = offset;
+        long amount = amounts[a];
+        amounts[a] = amounts[b];
+        amounts[b] = amount;
+    }
+
+    private static String failure(Exception e) {
+        Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+        return cause.getMessage() == null ? cause.toString() : cause.getMessage();
+    }
+}
@@ -0,0 +1,156 @@
+package com.brainwave.atm.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Verifies PINs against stored hashes at a predictable cost.
+//
+// The slow hash only ever runs on a small dedicated pool (atm.auth.threads,
+// default half the cores) with a bounded queue (atm.auth.queue). When a login
+// storm fills the queue further attempts fail straight away instead of piling
+// up, so hashing can never occupy more than that many cores and transaction
+// threads keep theirs.
+//
+// A successful verification is remembered for a short time (atm.auth.cache.seconds,
+// default 30): the entry holds the stored hash it was checked against and a
+// keyed SHA-256 of the PIN, so the same PIN for the same account within the
+// TTL is confirmed with one fast digest. A changed PIN changes the stored hash
+// and so never matches an old entry.
+public class Authenticator {
+    public enum Verification { MATCH, MISMATCH, BUSY }
+
+    private static final int MAX_CACHED = 100_000;
+
+    private final PinHasher hasher;
+    private final ThreadPoolExecutor executor;
+    private final long ttlNanos;
+    private final Map<String, Verified> cache = new ConcurrentHashMap<String, Verified>();
+    private final byte[] cacheKey = new byte[32];
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final class Verified {
+        final String stored;
+        final byte[] digest;
+        final long expiresAt;
+
+        Verified(String stored, byte[] digest, long expiresAt) {
+            this.stored = stored;
+            this.digest = digest;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public Authenticator(PinHasher hasher) {
+        this(hasher,
+             Integer.getInteger("atm.auth.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+             Integer.getInteger("atm.auth.queue", 1024),
+             Long.getLong("atm.auth.cache.seconds", 30));
+    }
+
+    public Authenticator(PinHasher hasher, int threads, int queueSize, long cacheSeconds) {
+        this.hasher = hasher;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(cacheSeconds);
+        new SecureRandom().nextBytes(cacheKey);
+
+        final AtomicInteger created = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "pin-verify-" + created.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public PinHasher getHasher() {
+        return hasher;
+    }
+
+    // Checks pin against the stored hash of accountNumber. BUSY means the
+    // verification pool was saturated and the PIN was not checked at all.
+    public Verification verify(String accountNumber, final String stored, final String pin) {
+        byte[] digest = digest(pin);
+        Verified verified = cache.get(accountNumber);
+        long now = System.nanoTime();
+        if (verified != null && verified.stored == stored && now - verified.expiresAt < 0
+                && MessageDigest.isEqual(verified.digest, digest)) {
+            return Verification.MATCH;
+        }
+
+        boolean matches;
+        try {
+            Future<Boolean> result = executor.submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    return hasher.verify(pin, stored);
+                }
+            });
+            matches = result.get();
+        } catch (RejectedExecutionException e) {
+            return Verification.BUSY;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Verification.BUSY;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("PIN verification failed", e.getCause());
+        }
+
+        if (!matches) {
+            return Verification.MISMATCH;
+        }
+        remember(accountNumber, new Verified(stored, digest, System.nanoTime() + ttlNanos));
+        return Verification.MATCH;
+    }
+
+    // Forgets a cached verification, e.g. after the PIN changed
+    public void invalidate(String accountNumber) {
+        cache.remove(accountNumber);
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void remember(String accountNumber, Verified verified) {
+        if (cache.size() >= MAX_CACHED) {
+            long now = System.nanoTime();
+            for (Iterator<Verified> it = cache.values().iterator(); it.hasNext(); ) {
+                if (now - it.next().expiresAt >= 0) {
+                    it.remove();
+                }
+            }
+            if (cache.size() >= MAX_CACHED) {
+                return;
+            }
+        }
+        cache.put(accountNumber, verified);
+    }
+
+    private byte[] digest(String pin) {
+        MessageDigest digest = digests.get();
+        digest.update(cacheKey);
+        return digest.digest(pin.getBytes(StandardCharsets.UTF_8));
+    }
+}
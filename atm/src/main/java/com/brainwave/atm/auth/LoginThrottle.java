@@ -0,0 +1,174 @@
+package com.brainwave.atm.auth;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Per-account failed-login throttle, consulted before any PIN hashing so a
+// credential-stuffing burst against a locked account costs a few array reads.
+// Every attempt is counted as a failure before its PIN is verified (see
+// reserveAttempt) and taken back if it turns out not to be one, so concurrent
+// guesses can't all pass the lockout check while the first ones are still
+// being hashed.
+//
+// Failures are counted over a sliding window (atm.login.window.seconds, default
+// 900) made of BUCKETS time buckets; an account with atm.login.max.failures
+// (default 5) failures in the window is locked out until enough buckets age
+// out. All counters live in one AtomicLongArray whose cells pack
+// (bucket number << 32 | count) and are updated by CAS, so there is no lock,
+// no allocation per attempt and a fixed footprint however many accounts exist.
+//
+// Accounts map to cells by hash, count-min style: each account owns a cell
+// group in each of two rows, hashed independently, and its count is the
+// smaller of the two. An account is only over-counted when it collides with
+// failing accounts in both rows.
+public class LoginThrottle {
+    private static final int ROWS = 2;
+    private static final int BUCKETS = 4;
+    private static final int SLOTS = 1 << 14;
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+    private final AtomicLongArray cells = new AtomicLongArray(ROWS * SLOTS * BUCKETS);
+    private final int maxFailures;
+    private final long bucketMillis;
+
+    public LoginThrottle() {
+        this(Integer.getInteger("atm.login.max.failures", 5),
+             Long.getLong("atm.login.window.seconds", 900));
+    }
+
+    public LoginThrottle(int maxFailures, long windowSeconds) {
+        this.maxFailures = maxFailures;
+        this.bucketMillis = Math.max(1, windowSeconds * 1000 / BUCKETS);
+    }
+
+    // Longest time a lockout can last
+    public long getWindowSeconds() {
+        return bucketMillis * BUCKETS / 1000;
+    }
+
+    public boolean isLockedOut(String accountNumber) {
+        return failures(accountNumber) >= maxFailures;
+    }
+
+    // Failures counted against the account in the current window, including
+    // attempts still being verified
+    public int failures(String accountNumber) {
+        return count(accountNumber.hashCode(), System.currentTimeMillis() / bucketMillis);
+    }
+
+    // Counts a login attempt against the account before its PIN is verified.
+    // An attempt only goes ahead if, counted, it leaves the account within
+    // maxFailures, so no more than that many are ever verified at once
+    // against an account that has not logged in since. Returns the bucket the
+    // attempt was counted in, for releaseAttempt() should it be neither a
+    // failure nor a success (reset() takes it back on a success); -1, with
+    // nothing counted, if the account is locked out.
+    public long reserveAttempt(String accountNumber) {
+        long bucket = System.currentTimeMillis() / bucketMillis;
+        int hash = accountNumber.hashCode();
+        add(hash, bucket);
+        if (count(hash, bucket) > maxFailures) {
+            subtract(hash, bucket);
+            return -1;
+        }
+        return bucket;
+    }
+
+    // Takes back an attempt reserved in bucket whose PIN was never checked,
+    // e.g. because the verification pool was saturated
+    public void releaseAttempt(String accountNumber, long bucket) {
+        subtract(accountNumber.hashCode(), bucket);
+    }
+
+    private int count(int hash, long bucket) {
+        long fewest = Long.MAX_VALUE;
+        for (int row = 0; row < ROWS; row++) {
+            int base = group(row, hash);
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                long cell = cells.get(base + i);
+                if (bucket - (cell >>> 32) < BUCKETS) {
+                    count += cell & COUNT_MASK;
+                }
+            }
+            fewest = Math.min(fewest, count);
+        }
+        return (int) Math.min(fewest, Integer.MAX_VALUE);
+    }
+
+    private void add(int hash, long bucket) {
+        for (int row = 0; row < ROWS; row++) {
+            int index = group(row, hash) + (int) (bucket % BUCKETS);
+            while (true) {
+                long cell = cells.get(index);
+                long next;
+                if (cell >>> 32 != bucket) {
+                    next = bucket << 32 | 1; // the cell held an older bucket that has aged out
+                } else if ((cell & COUNT_MASK) == COUNT_MASK) {
+                    break;
+                } else {
+                    next = cell + 1;
+                }
+                if (cells.compareAndSet(index, cell, next)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // Takes one back out of both of the account's cells for bucket, unless
+    // they have moved on to a newer bucket
+    private void subtract(int hash, long bucket) {
+        for (int row = 0; row < ROWS; row++) {
+            int index = group(row, hash) + (int) (bucket % BUCKETS);
+            while (true) {
+                long cell = cells.get(index);
+                if (cell >>> 32 != bucket || (cell & COUNT_MASK) == 0) {
+                    break;
+                }
+                if (cells.compareAndSet(index, cell, cell - 1)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // Takes the account's own failures back out after a successful login.
+    // Per bucket, that is the smaller of its two cells (the most the account
+    // itself can have added there), subtracted from both and floored at zero;
+    // whatever accounts sharing a cell counted stays.
+    public void reset(String accountNumber) {
+        long bucket = System.currentTimeMillis() / bucketMillis;
+        int hash = accountNumber.hashCode();
+        for (int i = 0; i < BUCKETS; i++) {
+            long number = bucket - Math.floorMod(bucket - i, BUCKETS); // the live bucket in cell i
+            long own = Long.MAX_VALUE;
+            for (int row = 0; row < ROWS; row++) {
+                long cell = cells.get(group(row, hash) + i);
+                own = Math.min(own, cell >>> 32 == number ? cell & COUNT_MASK : 0);
+            }
+            if (own == 0) {
+                continue;
+            }
+            for (int row = 0; row < ROWS; row++) {
+                int index = group(row, hash) + i;
+                while (true) {
+                    long cell = cells.get(index);
+                    if (cell >>> 32 != number) {
+                        break; // reused for a newer bucket meanwhile
+                    }
+                    long next = (cell & ~COUNT_MASK) | Math.max(0, (cell & COUNT_MASK) - own);
+                    if (cells.compareAndSet(index, cell, next)) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    // First cell of the account's bucket group in a row
+    private static int group(int row, int hash) {
+        int h = row == 0 ? hash * 0x9E3779B9 : (hash ^ (hash >>> 15)) * 0x85EBCA6B;
+        int slot = (h ^ (h >>> 16)) & (SLOTS - 1);
+        return (row * SLOTS + slot) * BUCKETS;
+    }
+}
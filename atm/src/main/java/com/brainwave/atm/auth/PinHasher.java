@@ -0,0 +1,85 @@
+package com.brainwave.atm.auth;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Salted slow hashes for PINs, encoded as a single string so they are stored
+// wherever the clear PIN used to be:
+//   pbkdf2-sha256$<iterations>$<salt>$<hash>      (salt and hash in Base64)
+// The cost of new hashes comes from atm.pin.iterations. A stored hash carries
+// its own iteration count, so changing the setting never locks anyone out;
+// needsRehash() tells when a stored value should be replaced.
+public final class PinHasher {
+    public static final int DEFAULT_ITERATIONS = 100_000;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+
+    public PinHasher() {
+        this(Integer.getInteger("atm.pin.iterations", DEFAULT_ITERATIONS));
+    }
+
+    public PinHasher(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations must be positive: " + iterations);
+        }
+        this.iterations = iterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public String hash(String pin) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + base64.encodeToString(salt)
+               + "$" + base64.encodeToString(derive(pin, salt, iterations));
+    }
+
+    // Checks pin against a stored hash in time independent of where they
+    // differ. Anything that is not a hash in the format above never verifies.
+    public boolean verify(String pin, String stored) {
+        if (!stored.startsWith(PREFIX)) {
+            return false;
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        try {
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(parts[3]);
+            byte[] actual = derive(pin, base64.decode(parts[2]), Integer.parseInt(parts[1]));
+            return MessageDigest.isEqual(expected, actual);
+        } catch (IllegalArgumentException e) {
+            return false; // corrupt stored value
+        }
+    }
+
+    // True for hashes made with a different cost
+    public boolean needsRehash(String stored) {
+        return !stored.startsWith(PREFIX + iterations + "$");
+    }
+
+    private static byte[] derive(String pin, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
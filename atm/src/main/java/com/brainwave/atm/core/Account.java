@@ -0,0 +1,136 @@
+package com.brainwave.atm.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Account class to represent bank accounts.
+// The balance is a count of paise in an AtomicLong: debits and credits are a
+// single CAS/add, so the ledger hot path needs no lock and never rounds.
+// Cash withdrawals also count against the account's WithdrawalLimit.
+// The PIN is only held as a salted hash (see auth.PinHasher); checking it goes
+// through Bank.validateAccount.
+public class Account {
+    // Longest holder name an account can be opened with, in chars
+    public static final int MAX_HOLDER_NAME = 100;
+    // Longest account number, in digits: history records keep a transfer's
+    // counterparty number whole only up to this length
+    public static final int MAX_ACCOUNT_NUMBER = TransactionHistory.MAX_COUNTERPARTY_LENGTH;
+    // lastInterestDay of an account that never had interest
+    static final long NO_INTEREST = Long.MIN_VALUE;
+
+    private final String accountNumber;
+    private volatile String pinHash;
+    private final AtomicLong balance;
+    private final String accountHolderName;
+    private final TransactionHistory transactionHistory;
+    private final WithdrawalLimit withdrawalLimit = new WithdrawalLimit();
+    // Sequence of the last journal record that touched this account (guarded by its Bank stripe)
+    private long lastJournalSequence;
+    // Epoch day of the last business day interest was posted for; written only
+    // by whoever serializes the account's mutations, like the balance
+    private volatile long lastInterestDay = NO_INTEREST;
+    
+    Account(String accountNumber, String pinHash, double initialBalance, String accountHolderName,
+            TransactionHistory transactionHistory) {
+        this.accountNumber = accountNumber;
+        this.pinHash = pinHash;
+        this.balance = new AtomicLong(Money.toPaise(initialBalance));
+        this.accountHolderName = accountHolderName;
+        this.transactionHistory = transactionHistory;
+    }
+    
+    // Whether name can be used as a holder name: present, and short enough to
+    // fit a journal record along with everything else an opening carries
+    static boolean isValidHolderName(String name) {
+        return name != null && name.length() <= MAX_HOLDER_NAME;
+    }
+
+    // Whether an account can be opened with these details: a number of 1 to
+    // MAX_ACCOUNT_NUMBER digits, a usable holder name and an initial balance
+    // of zero up to Money.MAX_AMOUNT_PAISE. Checked before anything is
+    // hashed, journaled or published.
+    static boolean isValidOpening(String accountNumber, double initialBalance, String holderName) {
+        if (accountNumber == null || accountNumber.isEmpty() || accountNumber.length() > MAX_ACCOUNT_NUMBER) {
+            return false;
+        }
+        for (int i = 0; i < accountNumber.length(); i++) {
+            char c = accountNumber.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        long paise = Money.toPaise(initialBalance);
+        return isValidHolderName(holderName) && initialBalance >= 0 && paise <= Money.MAX_AMOUNT_PAISE;
+    }
+    
+    // Getters and setters
+    public String getAccountNumber() { return accountNumber; }
+    public double getBalance() { return Money.toRupees(balance.get()); }
+    public long getBalancePaise() { return balance.get(); }
+    public String getAccountHolderName() { return accountHolderName; }
+    public TransactionHistory getTransactionHistory() { return transactionHistory; }
+    
+    // Atomically takes paise out of the account; returns the new balance,
+    // or -1 if the balance was too low (nothing is changed in that case)
+    public long tryDebit(long paise) {
+        long current;
+        do {
+            current = balance.get();
+            if (current < paise) {
+                return -1;
+            }
+        } while (!balance.compareAndSet(current, current - paise));
+        return current - paise;
+    }
+    
+    // Atomically adds paise to the account; returns the new balance, or -1
+    // if it would overflow (nothing is changed in that case)
+    public long credit(long paise) {
+        long current;
+        long updated;
+        do {
+            current = balance.get();
+            updated = plus(current, paise);
+            if (updated < 0) {
+                return -1;
+            }
+        } while (!balance.compareAndSet(current, updated));
+        return updated;
+    }
+
+    // balance + paise, or -1 if that overflows
+    static long plus(long balance, long paise) {
+        return balance > Long.MAX_VALUE - paise ? -1 : balance + paise;
+    }
+    
+    // Used when rebuilding the bank from its journal
+    void restoreBalance(long paise) {
+        balance.set(paise);
+    }
+    
+    WithdrawalLimit getWithdrawalLimit() { return withdrawalLimit; }
+    
+    String getPinHash() { return pinHash; }
+    void setPinHash(String pinHash) { this.pinHash = pinHash; }
+    
+    long getLastJournalSequence() { return lastJournalSequence; }
+    void setLastJournalSequence(long sequence) { this.lastJournalSequence = sequence; }
+    
+    long getLastInterestDay() { return lastInterestDay; }
+    void setLastInterestDay(long epochDay) { this.lastInterestDay = epochDay; }
+    
+    // Whether interest for the business day may still be posted: once per day,
+    // and never for a day before one already posted
+    boolean takesInterestFor(long epochDay) {
+        return epochDay > lastInterestDay;
+    }
+    
+    // Appends a history entry without allocating; counterparty is the other
+    // account of a transfer, otherwise null
+    public void record(TransactionType type, String counterparty, long amount, long balanceAfter) {
+        transactionHistory.add(type, counterparty, amount, balanceAfter);
+    }
+    
+    void record(TransactionType type, String counterparty, long amount, long balanceAfter, long timestamp) {
+        transactionHistory.add(type, counterparty, amount, balanceAfter, timestamp);
+    }
+}
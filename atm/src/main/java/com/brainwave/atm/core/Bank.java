@@ -0,0 +1,880 @@
+package com.brainwave.atm.core;
+
+import com.brainwave.atm.auth.Authenticator;
+import com.brainwave.atm.auth.LoginThrottle;
+import com.brainwave.atm.auth.PinHasher;
+import com.brainwave.atm.journal.DirectoryLock;
+import com.brainwave.atm.journal.Journal;
+import com.brainwave.atm.journal.JournalRecord;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bank class to manage accounts and operations.
+// Accounts are indexed in a ConcurrentHashMap. Withdrawals and deposits are a
+// single atomic update on the account's paise balance; operations spanning
+// several accounts take striped locks chosen by account number, so terminals
+// working on different accounts never wait on each other.
+//
+// When created with a data directory every mutation is also written to a
+// Journal and the call returns once the record is durable. The account's stripe
+// is held while appending and applying, so records for one account land in the
+// journal in the same order their balances change, and a record is appended
+// before memory changes: an append that fails leaves the account as it was. If
+// an appended record then fails to become durable, memory is ahead of the
+// journal, and the bank refuses every further mutation and snapshot. A background thread
+// periodically writes a snapshot of all accounts and drops journal segments the
+// snapshot covers, so startup time depends on recent activity, not on history.
+// The data directory is locked for as long as the bank is open: a second
+// process opening it (a server, or an end-of-day or statement run) fails to
+// start rather than replaying and appending alongside the first.
+//
+// Cash withdrawals are also counted against the account's rolling 24-hour
+// WithdrawalLimit, lock-free and before the balance is touched; a withdrawal
+// the balance then can't cover gives its share back.
+//
+// PINs are stored, journaled and snapshotted only as salted hashes; logins are
+// checked by an Authenticator that bounds how much CPU hashing can take, behind
+// a LoginThrottle that locks an account out after repeated wrong PINs.
+public class Bank implements BankService {
+    private static final long OVER_LIMIT = -2;
+    private static final long ALREADY_POSTED = -3;
+    private static final long TOO_LARGE = -4;
+
+    private final Map<String, Account> accounts;
+    private final TransactionIndex index;
+    private final ReentrantLock[] locks;
+    private final int stripeMask;
+    private final Path historyDirectory;
+    private final Authenticator authenticator;
+    private final LoginThrottle loginThrottle;
+    private final DirectoryLock directoryLock;
+    private final Journal journal;
+    private final ScheduledExecutorService snapshotter;
+    private final Object snapshotLock = new Object();
+    private long lastSnapshotSequence;
+    // Set when a PIN hash was replaced without a journal record, so the next
+    // snapshot is written even if nothing else changed
+    private volatile boolean pinsRehashed;
+    // Why the journal failed a durability wait, if it did; see checkUsable()
+    private volatile RuntimeException journalFailure;
+
+    // In-memory bank seeded with the demo accounts
+    public Bank() {
+        this(null);
+    }
+
+    // Durable bank: replays the journal in dataDirectory, or seeds the demo
+    // accounts if there is nothing to replay
+    public Bank(Path dataDirectory) {
+        accounts = new ConcurrentHashMap<String, Account>();
+        index = new TransactionIndex(accounts);
+
+        // Power-of-two stripe count, a few per core, so the index is a cheap mask
+        // (at most 2^16, so applyBatch can pack a stripe pair into a sort key)
+        int stripes = Math.min(1 << 16,
+                Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 8 - 1) << 1);
+        locks = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        stripeMask = stripes - 1;
+
+        authenticator = new Authenticator(new PinHasher());
+        loginThrottle = new LoginThrottle();
+
+        // Older transaction history spills to per-account files; an in-memory
+        // bank keeps them in a scratch directory removed by close()
+        try {
+            historyDirectory = dataDirectory == null
+                    ? Files.createTempDirectory("atm-history")
+                    : Files.createDirectories(dataDirectory.resolve("history"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create history directory", e);
+        }
+
+        if (dataDirectory == null) {
+            directoryLock = null;
+            journal = null;
+            snapshotter = null;
+        } else {
+            try {
+                directoryLock = DirectoryLock.acquire(dataDirectory);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot lock " + dataDirectory, e);
+            }
+            try {
+                lastSnapshotSequence = BankSnapshot.load(dataDirectory, historyDirectory, accounts);
+                int segmentSize = Integer.getInteger("atm.journal.segment.bytes", Journal.DEFAULT_SEGMENT_SIZE);
+                journal = Journal.open(dataDirectory, segmentSize, lastSnapshotSequence + 1, new JournalRecord.Handler() {
+                    public void onRecord(JournalRecord record) {
+                        replay(record);
+                    }
+                });
+            } catch (IOException e) {
+                directoryLock.close();
+                throw new UncheckedIOException("Cannot open journal in " + dataDirectory, e);
+            } catch (RuntimeException e) {
+                directoryLock.close();
+                throw e;
+            }
+            // The limits are not journaled; the last day's withdrawals are
+            // counted again from the rebuilt histories
+            WithdrawalLimit.restore(accounts.values());
+
+            long interval = Long.getLong("atm.snapshot.seconds", 60);
+            snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "bank-snapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            snapshotter.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    snapshot();
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+
+        if (accounts.isEmpty()) {
+            openDemoAccounts(this);
+        }
+    }
+
+    // Initialize demo accounts
+    static void openDemoAccounts(BankService bank) {
+        bank.openAccount("1234567890", "1234", 1500000.00, "Bharat Choudhary");
+        bank.openAccount("0987654321", "5678", 250000.75, "Anil Seervi");
+        bank.openAccount("1122334455", "9999", 750000.25, "Manish Kumar");
+    }
+
+    private Path historyFile(String accountNumber) {
+        return historyDirectory.resolve(accountNumber + ".hist");
+    }
+
+    private Account newAccount(String accountNumber, String pinHash, double initialBalance, String accountHolderName) {
+        return new Account(accountNumber, pinHash, initialBalance, accountHolderName,
+                           new TransactionHistory(historyFile(accountNumber), 0));
+    }
+
+    private int stripe(String accountNumber) {
+        int h = accountNumber.hashCode();
+        return (h ^ (h >>> 16)) & stripeMask;
+    }
+
+    // Opens a new account; returns false if the number is already taken or
+    // the details are unusable (see Account.isValidOpening)
+    public boolean openAccount(String accountNumber, String pin, double initialBalance, String accountHolderName) {
+        checkUsable();
+        if (!Account.isValidOpening(accountNumber, initialBalance, accountHolderName)
+                || accounts.containsKey(accountNumber)) {
+            return false;
+        }
+        // Hashed outside the lock: it is deliberately slow
+        String pinHash = authenticator.getHasher().hash(pin);
+
+        // Checked again under the stripe lock before anything is built: a new
+        // account's history starts by clearing the account's history file, which
+        // must never happen to one that already exists. The OPEN record is
+        // appended before the account is published, so no live account is
+        // ever missing from the journal.
+        long sequence = 0;
+        ReentrantLock lock = locks[stripe(accountNumber)];
+        lock.lock();
+        try {
+            if (accounts.containsKey(accountNumber)) {
+                return false;
+            }
+            Account account = newAccount(accountNumber, pinHash, initialBalance, accountHolderName);
+            if (journal != null) {
+                sequence = journal.appendOpen(accountNumber, pinHash, accountHolderName, account.getBalancePaise());
+                account.setLastJournalSequence(sequence);
+            }
+            accounts.put(accountNumber, account);
+        } finally {
+            lock.unlock();
+        }
+        if (journal != null) {
+            awaitDurable(sequence);
+        }
+        return true;
+    }
+
+    // True while too many wrong PINs were entered for the account recently
+    public boolean isLockedOut(String accountNumber) {
+        return loginThrottle.isLockedOut(accountNumber);
+    }
+
+    // Upper bound on how long a lockout lasts
+    public long getLockoutSeconds() {
+        return loginThrottle.getWindowSeconds();
+    }
+
+    public Account getAccount(String accountNumber) {
+        return accounts.get(accountNumber);
+    }
+
+    public String getAccountHolderName(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? null : account.getAccountHolderName();
+    }
+
+    public long getBalancePaise(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? -1 : account.getBalancePaise();
+    }
+
+    // Inquiries only touch the history, so they are not journaled
+    public long balanceInquiry(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        if (account == null) {
+            return -1;
+        }
+        long balance = account.getBalancePaise();
+        account.record(TransactionType.BALANCE_INQUIRY, null, 0, balance);
+        return balance;
+    }
+
+    public List<Transaction> recentTransactions(String accountNumber, int count) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? new ArrayList<Transaction>() : account.getTransactionHistory().recent(count);
+    }
+
+    public long getTransactionCount(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? 0 : account.getTransactionHistory().size();
+    }
+
+    public List<Transaction> transactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to,
+                                                 long offset, int limit) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? new ArrayList<Transaction>()
+                               : account.getTransactionHistory().between(from, to, offset, limit);
+    }
+
+    public long countTransactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? 0 : account.getTransactionHistory().countBetween(from, to);
+    }
+
+    public long writeStatement(String accountNumber, LocalDateTime from, LocalDateTime to,
+                               StatementWriter writer, WritableByteChannel out) throws IOException {
+        Account account = accounts.get(accountNumber);
+        return account == null ? -1 : writer.write(out, accountNumber, account.getTransactionHistory(), from, to);
+    }
+
+    public List<String> getAccountNumbers() {
+        return new ArrayList<String>(accounts.keySet());
+    }
+
+    public List<TransactionQuery.Match> findTransactions(TransactionQuery query) {
+        return index.find(query);
+    }
+
+    // Checks a PIN. Also used to re-confirm the current PIN before a change.
+    // Returns false without looking at the PIN while the account is locked out
+    // (see isLockedOut), and when the verification pool is saturated.
+    public boolean validateAccount(String accountNumber, String pin) {
+        Account account = accounts.get(accountNumber);
+        if (account == null) {
+            return false;
+        }
+        // Counted before the PIN is hashed, so concurrent guesses can't all
+        // get past the lockout
+        long attempt = loginThrottle.reserveAttempt(accountNumber);
+        if (attempt < 0) {
+            return false;
+        }
+        String stored = account.getPinHash();
+        switch (authenticator.verify(accountNumber, stored, pin)) {
+            case MISMATCH:
+                // The attempt stays counted as a failure
+                return false;
+            case BUSY:
+                loginThrottle.releaseAttempt(accountNumber, attempt);
+                return false;
+            default:
+                break;
+        }
+        loginThrottle.reset(accountNumber);
+
+        // Hashes of a different cost are replaced now that the PIN is known. The
+        // new hash reaches disk with the next snapshot; until then the old one
+        // still verifies. Clear-text PINs never get here, since they no longer
+        // verify at all.
+        PinHasher hasher = authenticator.getHasher();
+        if (hasher.needsRehash(stored)) {
+            String rehashed = hasher.hash(pin);
+            ReentrantLock lock = locks[stripe(accountNumber)];
+            lock.lock();
+            try {
+                if (account.getPinHash() == stored) {
+                    account.setPinHash(rehashed);
+                    pinsRehashed = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    public boolean withdraw(String accountNumber, double amount) {
+        checkUsable();
+        Account account = accounts.get(accountNumber);
+        long paise = Money.toPaise(amount);
+        if (account == null || !Money.isValidAmount(paise)) {
+            return false;
+        }
+
+        if (journal == null) {
+            return debit(account, paise) >= 0;
+        }
+
+        long sequence;
+        ReentrantLock lock = locks[stripe(accountNumber)];
+        lock.lock();
+        try {
+            sequence = debit(account, paise);
+        } finally {
+            lock.unlock();
+        }
+        if (sequence < 0) {
+            return false;
+        }
+        awaitDurable(sequence);
+        return true;
+    }
+
+    public long getRemainingWithdrawalPaise(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? -1 : account.getWithdrawalLimit().remaining(System.currentTimeMillis());
+    }
+
+    public boolean deposit(String accountNumber, double amount) {
+        checkUsable();
+        Account account = accounts.get(accountNumber);
+        long paise = Money.toPaise(amount);
+        if (account == null || !Money.isValidAmount(paise)) {
+            return false;
+        }
+
+        if (journal == null) {
+            return credit(account, paise) >= 0;
+        }
+
+        long sequence;
+        ReentrantLock lock = locks[stripe(accountNumber)];
+        lock.lock();
+        try {
+            sequence = credit(account, paise);
+        } finally {
+            lock.unlock();
+        }
+        if (sequence < 0) {
+            return false;
+        }
+        awaitDurable(sequence);
+        return true;
+    }
+
+    public boolean transfer(String fromAccount, String toAccount, double amount) {
+        checkUsable();
+        Account from = accounts.get(fromAccount);
+        Account to = toAccount == null ? null : accounts.get(toAccount);
+        long paise = Money.toPaise(amount);
+        // A transfer to the same account would journal a pair of entries
+        // that cancel out; every engine refuses it
+        if (from == null || to == null || from == to || !Money.isValidAmount(paise)) {
+            return false;
+        }
+
+        // Balances are atomic on their own; the stripes only keep the two legs of
+        // a transfer together with respect to other transfers. Always take the
+        // lower stripe first so two opposite transfers can't deadlock.
+        int fromStripe = stripe(fromAccount);
+        int toStripe = stripe(toAccount);
+        ReentrantLock first = locks[Math.min(fromStripe, toStripe)];
+        ReentrantLock second = locks[Math.max(fromStripe, toStripe)];
+
+        long sequence;
+        first.lock();
+        if (second != first) {
+            second.lock();
+        }
+        try {
+            sequence = move(from, to, paise);
+        } finally {
+            if (second != first) {
+                second.unlock();
+            }
+            first.unlock();
+        }
+        if (sequence < 0) {
+            return false;
+        }
+        if (journal != null) {
+            awaitDurable(sequence);
+        }
+        return true;
+    }
+
+    // Applies a list of withdrawals, deposits and transfers and returns one
+    // outcome per operation, in the same order.
+    //
+    // Accounts are looked up once per operation up front, then the operations
+    // are sorted by the stripes they lock: each group of operations on the same
+    // stripe (or ordered stripe pair, for transfers) is applied under a single
+    // lock acquisition, and a journaled bank waits for durability once, after
+    // the last record, instead of once per operation. Operations within a
+    // group apply in input order; groups apply one after another, so an
+    // operation may not yet see the effect of an earlier one in a different
+    // group (e.g. a withdrawal funded by a transfer earlier in the batch).
+    public List<Outcome> applyBatch(List<Operation> operations) {
+        checkUsable();
+        int count = operations.size();
+        Outcome[] outcomes = new Outcome[count];
+        Account[] debited = new Account[count];
+        Account[] credited = new Account[count];
+
+        // Sort key: lower stripe | higher stripe | operation index
+        long[] keys = new long[count];
+        int valid = 0;
+        for (int i = 0; i < count; i++) {
+            Operation operation = operations.get(i);
+            Account account = accounts.get(operation.getAccount());
+            Account counterparty = operation.getKind() != Operation.Kind.TRANSFER ? account
+                                   : operation.getCounterparty() == null ? null
+                                   : accounts.get(operation.getCounterparty());
+            if (account == null || counterparty == null
+                    || (operation.getKind() == Operation.Kind.TRANSFER && counterparty == account)) {
+                outcomes[i] = Outcome.UNKNOWN_ACCOUNT;
+            } else if (!Money.isValidAmount(operation.getAmountPaise())) {
+                outcomes[i] = Outcome.INVALID_AMOUNT;
+            } else {
+                debited[i] = account;
+                credited[i] = counterparty;
+                long a = stripe(account.getAccountNumber());
+                long b = stripe(counterparty.getAccountNumber());
+                keys[valid++] = Math.min(a, b) << 48 | Math.max(a, b) << 32 | i;
+            }
+        }
+        Arrays.sort(keys, 0, valid);
+
+        long lastSequence = 0;
+        int next = 0;
+        while (next < valid) {
+            long group = keys[next] >>> 32;
+            ReentrantLock first = locks[(int) (group >>> 16)];
+            ReentrantLock second = locks[(int) (group & 0xFFFF)];
+            first.lock();
+            if (second != first) {
+                second.lock();
+            }
+            try {
+                while (next < valid && keys[next] >>> 32 == group) {
+                    int i = (int) keys[next++];
+                    long paise = operations.get(i).getAmountPaise();
+                    long sequence;
+                    switch (operations.get(i).getKind()) {
+                        case WITHDRAWAL: sequence = debit(debited[i], paise); break;
+                        case DEPOSIT: sequence = credit(debited[i], paise); break;
+                        case INTEREST: sequence = interest(debited[i], paise, operations.get(i)); break;
+                        default: sequence = move(debited[i], credited[i], paise); break;
+                    }
+                    outcomes[i] = sequence == OVER_LIMIT ? Outcome.LIMIT_EXCEEDED
+                                  : sequence == ALREADY_POSTED ? Outcome.ALREADY_POSTED
+                                  : sequence == TOO_LARGE ? Outcome.INVALID_AMOUNT
+                                  : sequence < 0 ? Outcome.INSUFFICIENT_FUNDS : Outcome.OK;
+                    lastSequence = Math.max(lastSequence, sequence);
+                }
+            } finally {
+                if (second != first) {
+                    second.unlock();
+                }
+                first.unlock();
+            }
+        }
+
+        if (journal != null && lastSequence > 0) {
+            awaitDurable(lastSequence);
+        }
+        return Arrays.asList(outcomes);
+    }
+
+    // The helpers below apply one mutation, append it to the journal, if there
+    // is one, and record it in the history. The caller holds the stripes of
+    // the accounts involved when journaling or transferring. They return the
+    // journal sequence to wait for (0 without a journal), -1 if the debited
+    // account had insufficient funds, OVER_LIMIT if a withdrawal would take
+    // it past its cash limit, ALREADY_POSTED for a repeated day's interest,
+    // or TOO_LARGE if a credit would overflow the credited balance.
+    //
+    // With a journal nothing else can move the balances while the stripes are
+    // held, so the new balances are worked out first, the record carrying them
+    // is appended, and only then are the accounts changed. Without one, plain
+    // withdrawals and deposits don't lock, and the atomic update comes first.
+
+    private long debit(Account account, long paise) {
+        WithdrawalLimit limit = account.getWithdrawalLimit();
+        long hour = limit.reserve(paise, System.currentTimeMillis());
+        if (hour < 0) {
+            return OVER_LIMIT;
+        }
+        long sequence = 0;
+        long newBalance;
+        if (journal == null) {
+            newBalance = account.tryDebit(paise);
+        } else {
+            newBalance = account.getBalancePaise() - paise;
+            if (newBalance >= 0) {
+                try {
+                    sequence = journal.appendWithdrawal(account.getAccountNumber(), paise, newBalance);
+                } catch (RuntimeException e) {
+                    limit.release(paise, hour);
+                    throw e;
+                }
+                account.tryDebit(paise);
+                account.setLastJournalSequence(sequence);
+            }
+        }
+        if (newBalance < 0) {
+            limit.release(paise, hour);
+            return -1;
+        }
+        account.record(TransactionType.WITHDRAWAL, null, paise, newBalance);
+        return sequence;
+    }
+
+    private long credit(Account account, long paise) {
+        long sequence = 0;
+        long newBalance;
+        if (journal == null) {
+            newBalance = account.credit(paise);
+        } else {
+            newBalance = Account.plus(account.getBalancePaise(), paise);
+            if (newBalance >= 0) {
+                sequence = journal.appendDeposit(account.getAccountNumber(), paise, newBalance);
+                account.credit(paise);
+                account.setLastJournalSequence(sequence);
+            }
+        }
+        if (newBalance < 0) {
+            return TOO_LARGE;
+        }
+        account.record(TransactionType.DEPOSIT, null, paise, newBalance);
+        return sequence;
+    }
+
+    private long interest(Account account, long paise, Operation operation) {
+        long day = operation.getInterestDay();
+        if (!account.takesInterestFor(day)) {
+            return ALREADY_POSTED;
+        }
+        long sequence = 0;
+        long newBalance;
+        if (journal == null) {
+            newBalance = account.credit(paise);
+        } else {
+            newBalance = Account.plus(account.getBalancePaise(), paise);
+            if (newBalance >= 0) {
+                sequence = journal.appendInterest(account.getAccountNumber(), operation.getCounterparty(),
+                                                  paise, newBalance);
+                account.credit(paise);
+                account.setLastJournalSequence(sequence);
+            }
+        }
+        if (newBalance < 0) {
+            return TOO_LARGE;
+        }
+        account.setLastInterestDay(day);
+        account.record(TransactionType.INTEREST, operation.getCounterparty(), paise, newBalance);
+        return sequence;
+    }
+
+    private long move(Account from, Account to, long paise) {
+        long sequence = 0;
+        long fromNewBalance;
+        long toNewBalance;
+        if (journal == null) {
+            fromNewBalance = from.tryDebit(paise);
+            if (fromNewBalance < 0) {
+                return -1;
+            }
+            toNewBalance = to.credit(paise);
+            if (toNewBalance < 0) {
+                from.credit(paise); // gives back what was just taken
+                return TOO_LARGE;
+            }
+        } else {
+            fromNewBalance = from.getBalancePaise() - paise;
+            if (fromNewBalance < 0) {
+                return -1;
+            }
+            toNewBalance = Account.plus(to.getBalancePaise(), paise);
+            if (toNewBalance < 0) {
+                return TOO_LARGE;
+            }
+            sequence = journal.appendTransfer(from.getAccountNumber(), to.getAccountNumber(),
+                                              paise, fromNewBalance, toNewBalance);
+            from.tryDebit(paise);
+            to.credit(paise);
+            from.setLastJournalSequence(sequence);
+            to.setLastJournalSequence(sequence);
+        }
+
+        // One timestamp for both legs, so they fall on the same side of any cut
+        long now = System.currentTimeMillis();
+        from.record(TransactionType.TRANSFER_OUT, to.getAccountNumber(), paise, fromNewBalance, now);
+        to.record(TransactionType.TRANSFER_IN, from.getAccountNumber(), paise, toNewBalance, now);
+        return sequence;
+    }
+
+    // Waits for a record like Journal.awaitDurable. A failure leaves memory
+    // ahead of the journal, so it also stops the bank (see checkUsable()).
+    private void awaitDurable(long sequence) {
+        try {
+            journal.awaitDurable(sequence);
+        } catch (RuntimeException e) {
+            if (journalFailure == null) {
+                journalFailure = e;
+            }
+            throw e;
+        }
+    }
+
+    // Called before every mutation: once a record failed to become durable,
+    // nothing more is built on balances the journal may not have
+    private void checkUsable() {
+        if (journalFailure != null) {
+            throw new IllegalStateException("Bank stopped after a journal failure", journalFailure);
+        }
+    }
+
+    public void changePin(String accountNumber, String newPin) {
+        checkUsable();
+        Account account = accounts.get(accountNumber);
+        if (account != null) {
+            String pinHash = authenticator.getHasher().hash(newPin);
+            long sequence = 0;
+            ReentrantLock lock = locks[stripe(accountNumber)];
+            lock.lock();
+            try {
+                if (journal != null) {
+                    sequence = journal.appendPinChange(accountNumber, pinHash);
+                    account.setLastJournalSequence(sequence);
+                }
+                account.setPinHash(pinHash);
+                account.record(TransactionType.PIN_CHANGE, null, 0, account.getBalancePaise());
+            } finally {
+                lock.unlock();
+            }
+            authenticator.invalidate(accountNumber);
+            if (journal != null) {
+                awaitDurable(sequence);
+            }
+        }
+    }
+
+    // Writes a snapshot of every account and deletes the journal segments it
+    // makes redundant. Runs periodically on its own thread; terminals never wait
+    // for it beyond the brief per-account copy.
+    public void snapshot() {
+        if (journal == null) {
+            return;
+        }
+
+        synchronized (snapshotLock) {
+            // Memory may be ahead of the journal; nothing of it goes to disk
+            if (journalFailure != null) {
+                return;
+            }
+            long cut = journal.getNextSequence() - 1;
+            if (cut == lastSnapshotSequence && !pinsRehashed) {
+                return;
+            }
+            pinsRehashed = false;
+            // A record is appended before it is applied, under its stripes:
+            // taking each stripe once waits out every record up to the cut, so
+            // each account copied after this point already reflects them (and
+            // an account opened before the cut is in the map)
+            for (ReentrantLock lock : locks) {
+                lock.lock();
+                lock.unlock();
+            }
+
+            // Accounts copied late may already reflect records appended after the
+            // cut; the snapshot must not reach disk ahead of them, or a crash
+            // could leave one leg of a transfer in the snapshot and the other
+            // in a record that was never forced
+            long copiedThrough = cut;
+            BankSnapshot snapshot = null;
+            try {
+                snapshot = new BankSnapshot(journal.getDirectory(), cut);
+                for (Account account : accounts.values()) {
+                    String pinHash;
+                    long balance;
+                    long lastSequence;
+                    long lastInterestDay;
+                    long spilled;
+                    List<Transaction> unspilled = new ArrayList<Transaction>();
+
+                    ReentrantLock lock = locks[stripe(account.getAccountNumber())];
+                    lock.lock();
+                    try {
+                        pinHash = account.getPinHash();
+                        balance = account.getBalancePaise();
+                        lastSequence = account.getLastJournalSequence();
+                        lastInterestDay = account.getLastInterestDay();
+                        spilled = account.getTransactionHistory().copyUnspilled(unspilled);
+                    } finally {
+                        lock.unlock();
+                    }
+                    copiedThrough = Math.max(copiedThrough, lastSequence);
+
+                    // The snapshot vouches for the spilled part of the history file
+                    account.getTransactionHistory().force();
+                    snapshot.writeAccount(account.getAccountNumber(), pinHash, account.getAccountHolderName(),
+                                          balance, lastSequence, lastInterestDay, spilled, unspilled);
+                }
+                awaitDurable(copiedThrough);
+                snapshot.commit();
+                snapshot = null;
+
+                journal.deleteSegmentsThrough(cut);
+                lastSnapshotSequence = cut;
+            } catch (IOException | UncheckedIOException e) {
+                // Keep running on the journal alone; the next attempt may succeed
+                System.err.println("Bank snapshot failed: " + e);
+                pinsRehashed = true;
+            } finally {
+                if (snapshot != null) {
+                    snapshot.abort();
+                }
+            }
+        }
+    }
+
+    // Takes a final snapshot, then flushes and closes the journal, if there is
+    // one; an in-memory bank deletes its scratch history files instead
+    public void close() {
+        authenticator.close();
+        if (journal != null) {
+            snapshotter.shutdownNow();
+            snapshot();
+            journal.close();
+            closeHistories();
+            directoryLock.close();
+            return;
+        }
+        closeHistories();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(historyDirectory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(historyDirectory);
+        } catch (IOException e) {
+            // only scratch space; leave it to the OS
+        }
+    }
+
+    private void closeHistories() {
+        for (Account account : accounts.values()) {
+            account.getTransactionHistory().close();
+        }
+    }
+
+    // Rebuilds state from one journal record. Records carry the resulting
+    // balances, so replay sets balances rather than re-running the arithmetic.
+    // Records an account's snapshot copy already includes are skipped.
+    private void replay(JournalRecord record) {
+        long sequence = record.getSequence();
+        long timestamp = record.getTimestamp();
+
+        if (record.getType() == JournalRecord.OPEN) {
+            Account existing = accounts.get(record.getAccount());
+            if (existing == null || existing.getLastJournalSequence() < sequence) {
+                Account account = newAccount(record.getAccount(), record.getPinHash(), 0, record.getHolderName());
+                account.restoreBalance(record.getBalance());
+                account.setLastJournalSequence(sequence);
+                accounts.put(record.getAccount(), account);
+            }
+            return;
+        }
+
+        Account account = accounts.get(record.getAccount());
+        if (account == null) {
+            return;
+        }
+        boolean applies = account.getLastJournalSequence() < sequence;
+
+        switch (record.getType()) {
+            case JournalRecord.WITHDRAWAL:
+                if (applies) {
+                    account.restoreBalance(record.getBalance());
+                    account.record(TransactionType.WITHDRAWAL, null, record.getAmount(), record.getBalance(), timestamp);
+                }
+                break;
+            case JournalRecord.DEPOSIT:
+                if (applies) {
+                    account.restoreBalance(record.getBalance());
+                    account.record(TransactionType.DEPOSIT, null, record.getAmount(), record.getBalance(), timestamp);
+                }
+                break;
+            case JournalRecord.TRANSFER: {
+                // Reference the accounts' own number strings rather than the
+                // per-record copies the journal decoded
+                Account to = accounts.get(record.getCounterparty());
+                if (applies) {
+                    account.restoreBalance(record.getBalance());
+                    account.record(TransactionType.TRANSFER_OUT, to != null ? to.getAccountNumber() : record.getCounterparty(),
+                                   record.getAmount(), record.getBalance(), timestamp);
+                }
+                if (to != null && to.getLastJournalSequence() < sequence) {
+                    to.restoreBalance(record.getCounterBalance());
+                    to.record(TransactionType.TRANSFER_IN, account.getAccountNumber(),
+                              record.getAmount(), record.getCounterBalance(), timestamp);
+                    to.setLastJournalSequence(sequence);
+                }
+                break;
+            }
+            case JournalRecord.INTEREST:
+                if (applies) {
+                    account.restoreBalance(record.getBalance());
+                    account.setLastInterestDay(LocalDate.parse(record.getCounterparty()).toEpochDay());
+                    account.record(TransactionType.INTEREST, record.getCounterparty(), record.getAmount(),
+                                   record.getBalance(), timestamp);
+                }
+                break;
+            case JournalRecord.PIN_CHANGE:
+                if (applies) {
+                    account.setPinHash(record.getPinHash());
+                    account.record(TransactionType.PIN_CHANGE, null, 0, account.getBalancePaise(), timestamp);
+                }
+                break;
+            default:
+                break;
+        }
+        if (applies) {
+            account.setLastJournalSequence(sequence);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.brainwave.atm.core;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+// The BankService implementations a deployment can choose between, by name
+// (-Datm.engine=<name>, or --engine for the load generator):
+//   single     SingleThreadedBank: one monitor, in memory
+//   striped    Bank without a data directory: lock-free balances, striped
+//              locks for transfers, in memory
+//   journaled  Bank with a data directory: striped, and every mutation is
+//              durable in the journal before the call returns
+//   ring       RingBufferBank: one ledger thread fed through a ring buffer,
+//              in memory
+//   ring-journaled  RingBufferBank with its own journal under the data directory
+//   sharded    ShardedBank: accounts split across single-threaded shards
+//              (-Datm.shards), two-phase commit between them, in memory
+public enum BankEngine {
+    SINGLE,
+    STRIPED,
+    JOURNALED,
+    RING,
+    RING_JOURNALED,
+    SHARDED;
+
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+
+    // Whether open() uses its data directory
+    public boolean isDurable() {
+        return this == JOURNALED || this == RING_JOURNALED;
+    }
+
+    // Opens a bank of this kind; dataDirectory is ignored by in-memory engines
+    public BankService open(Path dataDirectory) {
+        switch (this) {
+            case SINGLE: return new SingleThreadedBank();
+            case STRIPED: return new Bank();
+            case RING: return new RingBufferBank();
+            case RING_JOURNALED: return new RingBufferBank(dataDirectory);
+            case SHARDED: return new ShardedBank();
+            default: return new Bank(dataDirectory);
+        }
+    }
+
+    public static BankEngine fromName(String name) {
+        for (BankEngine engine : values()) {
+            if (engine.getName().equals(name)) {
+                return engine;
+            }
+        }
+        throw new IllegalArgumentException("Unknown bank engine: " + name);
+    }
+
+    // The engine named by atm.engine (journaled by default) opened on the
+    // directory named by atm.data (atm-data by default)
+    public static BankService fromSystemProperties() {
+        return fromName(System.getProperty("atm.engine", JOURNALED.getName()))
+                .open(Paths.get(System.getProperty("atm.data", "atm-data")));
+    }
+
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,23 @@
+package com.brainwave.atm.core;
+
+import java.util.List;
+
+// The whole bank, in-process: everything a terminal asks of it (see
+// TerminalBank) plus the back-office operations that span accounts. Implemented
+// by Bank and the other engines; the servers, end of day and statement runs
+// work against it, while remote terminals only get a TerminalBank.
+public interface BankService extends TerminalBank {
+    // Opens a new account; returns false if the number is already taken, is
+    // not 1 to Account.MAX_ACCOUNT_NUMBER digits, the holder name is missing
+    // or longer than Account.MAX_HOLDER_NAME, or the initial balance is negative
+    boolean openAccount(String accountNumber, String pin, double initialBalance, String accountHolderName);
+
+    // Numbers of all accounts, in no particular order
+    List<String> getAccountNumbers();
+
+    // The newest entries matching query, newest first, found through the
+    // bank's secondary indexes (see TransactionQuery and TransactionIndex)
+    List<TransactionQuery.Match> findTransactions(TransactionQuery query);
+
+    List<Outcome> applyBatch(List<Operation> operations);
+}
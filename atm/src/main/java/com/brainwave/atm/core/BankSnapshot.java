@@ -0,0 +1,176 @@
+package com.brainwave.atm.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Point-in-time copy of every account, written next to the journal so startup
+// only replays what came after it.
+//
+// File snapshot-<cut>.bin, where cut is the last journal sequence known to be
+// reflected in every account. Each account also records the last sequence that
+// touched it, so records after the cut that were already copied are skipped on
+// replay, the last business day it was paid interest for, and how many history
+// entries its history file held (those are forced to disk first) plus the
+// entries still in memory. Layout:
+// magic | version | cut | accounts... | 0 | crc32.
+class BankSnapshot {
+    private static final int MAGIC = 0x41544d53; // "ATMS"
+    private static final int VERSION = 2;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+
+    private final Path directory;
+    private final long cutSequence;
+    private final Path temporary;
+    private final FileOutputStream file;
+    private final CheckedOutputStream checked;
+    private final DataOutputStream out;
+
+    // Starts writing a new snapshot; nothing is visible until commit()
+    BankSnapshot(Path directory, long cutSequence) throws IOException {
+        this.directory = directory;
+        this.cutSequence = cutSequence;
+        this.temporary = directory.resolve(PREFIX + cutSequence + ".tmp");
+        this.file = new FileOutputStream(temporary.toFile());
+        this.checked = new CheckedOutputStream(new BufferedOutputStream(file, 64 * 1024), new CRC32());
+        this.out = new DataOutputStream(checked);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(cutSequence);
+    }
+
+    void writeAccount(String accountNumber, String pinHash, String holderName, long balance,
+                      long lastSequence, long lastInterestDay, long spilled, List<Transaction> unspilled)
+            throws IOException {
+        out.writeByte(1);
+        out.writeUTF(accountNumber);
+        out.writeUTF(pinHash);
+        out.writeUTF(holderName);
+        out.writeLong(balance);
+        out.writeLong(lastSequence);
+        out.writeLong(lastInterestDay);
+        out.writeLong(spilled);
+        out.writeShort(unspilled.size());
+        for (Transaction transaction : unspilled) {
+            String counterparty = transaction.getCounterparty();
+            out.writeByte(transaction.getTransactionType().getCode());
+            out.writeUTF(counterparty == null ? "" : counterparty);
+            out.writeLong(transaction.getAmountPaise());
+            out.writeLong(transaction.getBalanceAfterPaise());
+            out.writeLong(transaction.getTimestampMillis());
+        }
+    }
+
+    // Seals the file, makes it durable, swaps it in and removes older snapshots
+    void commit() throws IOException {
+        out.writeByte(0);
+        out.flush();
+        long crc = checked.getChecksum().getValue();
+        out.writeLong(crc);
+        out.flush();
+        file.getFD().sync();
+        out.close();
+
+        Path target = directory.resolve(String.format("%s%020d%s", PREFIX, cutSequence, SUFFIX));
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+
+        for (Path old : list(directory)) {
+            if (!old.equals(target)) {
+                Files.delete(old);
+            }
+        }
+    }
+
+    // Gives up on an unfinished snapshot
+    void abort() {
+        try {
+            out.close();
+            Files.deleteIfExists(temporary);
+        } catch (IOException e) {
+            // nothing more to do; the next snapshot overwrites it
+        }
+    }
+
+    // Loads the newest snapshot in directory into accounts, with history files
+    // in historyDirectory, and returns its cut sequence, or 0 if there is none
+    static long load(Path directory, Path historyDirectory, Map<String, Account> accounts) throws IOException {
+        List<Path> snapshots = list(directory);
+        if (snapshots.isEmpty()) {
+            return 0;
+        }
+        Path latest = snapshots.get(snapshots.size() - 1);
+
+        try (InputStream stream = Files.newInputStream(latest)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(stream, 64 * 1024), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a bank snapshot: " + latest);
+            }
+            long cutSequence = in.readLong();
+
+            while (in.readByte() == 1) {
+                String accountNumber = in.readUTF();
+                String pinHash = in.readUTF();
+                String holderName = in.readUTF();
+                long balance = in.readLong();
+                long lastSequence = in.readLong();
+                long lastInterestDay = in.readLong();
+                long spilled = in.readLong();
+
+                Account account = new Account(accountNumber, pinHash, 0, holderName,
+                                              new TransactionHistory(historyDirectory.resolve(accountNumber + ".hist"), spilled));
+                account.restoreBalance(balance);
+                account.setLastJournalSequence(lastSequence);
+                account.setLastInterestDay(lastInterestDay);
+
+                int unspilled = in.readUnsignedShort();
+                TransactionHistory history = account.getTransactionHistory();
+                for (int i = 0; i < unspilled; i++) {
+                    TransactionType type = TransactionType.fromCode(in.readByte());
+                    String counterparty = in.readUTF();
+                    if (counterparty.isEmpty()) {
+                        counterparty = null;
+                    }
+                    long amount = in.readLong();
+                    long balanceAfter = in.readLong();
+                    history.add(type, counterparty, amount, balanceAfter, in.readLong());
+                }
+                accounts.put(accountNumber, account);
+            }
+
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("Corrupt bank snapshot: " + latest);
+            }
+            return cutSequence;
+        }
+    }
+
+    private static List<Path> list(Path directory) throws IOException {
+        List<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+}
@@ -0,0 +1,229 @@
+package com.brainwave.atm.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Secondary indexes over one account's history, by entry position (0 is the
+// oldest entry): a bitmap per transaction type, and for every counterparty
+// the ascending positions of the entries that name it. Date ranges need no
+// index of their own, as the history is in time order.
+//
+// Built by TransactionHistory the first time the account is queried and kept
+// up to date by every add() after that; guarded by the history's monitor.
+// Also tells the bank-wide TransactionIndex which minutes the account has
+// entries in and which counterparties it has dealt with.
+//
+// Only the owner's retention window is covered. The index starts at the
+// first entry inside it, and each new day (or the owner's daily sweep) drops
+// the days that have left it: the words of the bitmaps before the first
+// position still covered, and the postings before it. A counterparty left
+// without postings is forgotten by the owner too.
+final class HistoryIndex {
+    private static final long DAY = 86_400_000L;
+
+    private final TransactionIndex owner;
+    private final Account account;
+    // Indexed by type code; word 0 holds positions firstWord * 64 onwards
+    private final long[][] typeBits = new long[8][];
+    private long firstWord;
+    // Oldest position covered, and the one the next add() will bring
+    private long first;
+    private long next;
+    private final Map<String, Postings> counterparties = new HashMap<String, Postings>();
+    private long lastMinute = Long.MIN_VALUE;
+    // Each day with entries (days since the epoch) and its first position,
+    // oldest first, from dayHead to dayCount
+    private long[] days = new long[4];
+    private long[] dayStarts = new long[4];
+    private int dayHead;
+    private int dayCount;
+
+    // Covers the history from position start on
+    HistoryIndex(TransactionIndex owner, Account account, long start) {
+        this.owner = owner;
+        this.account = account;
+        this.first = start;
+        this.next = start;
+        this.firstWord = start >>> 6;
+    }
+
+    void add(long position, byte type, String counterparty, long timestamp) {
+        next = position + 1;
+        long day = Math.floorDiv(timestamp, DAY);
+        if (dayCount == dayHead || days[dayCount - 1] != day) {
+            addDay(day, position);
+            trim(owner.horizon());
+        }
+
+        long[] bits = typeBits[type];
+        int word = (int) ((position >>> 6) - firstWord);
+        if (bits == null || word >= bits.length) {
+            bits = bits == null ? new long[Math.max(16, word + 1)] : Arrays.copyOf(bits, Math.max(bits.length * 2, word + 1));
+            typeBits[type] = bits;
+        }
+        bits[word] |= 1L << position;
+
+        // An interest entry's counterparty is its business day, not an account
+        if (counterparty != null && type != TransactionType.INTEREST.getCode()) {
+            Postings postings = counterparties.get(counterparty);
+            if (postings == null) {
+                postings = new Postings();
+                counterparties.put(counterparty, postings);
+                owner.dealtWith(counterparty, account);
+            }
+            postings.add(position);
+        }
+
+        // Entries arrive in time order, so each minute is reported once
+        long minute = Math.floorDiv(timestamp, TransactionIndex.MINUTE);
+        if (minute != lastMinute) {
+            lastMinute = minute;
+            owner.activeIn(minute, account);
+        }
+    }
+
+    // Drops the days before the one horizon (epoch millis) falls in
+    void trim(long horizon) {
+        long horizonDay = Math.floorDiv(horizon, DAY);
+        int kept = dayHead;
+        while (kept < dayCount && days[kept] < horizonDay) {
+            kept++;
+        }
+        if (kept == dayHead) {
+            return;
+        }
+        dayHead = kept;
+        first = dayHead < dayCount ? dayStarts[dayHead] : next;
+
+        int dropped = (int) ((first >>> 6) - firstWord);
+        if (dropped > 0) {
+            for (int type = 0; type < typeBits.length; type++) {
+                long[] bits = typeBits[type];
+                if (bits != null) {
+                    typeBits[type] = dropped >= bits.length ? null : Arrays.copyOfRange(bits, dropped, bits.length);
+                }
+            }
+            firstWord += dropped;
+        }
+
+        Iterator<Map.Entry<String, Postings>> entries = counterparties.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Postings> entry = entries.next();
+            if (entry.getValue().dropBelow(first) == 0) {
+                entries.remove();
+                owner.forgot(entry.getKey(), account);
+            }
+        }
+    }
+
+    private void addDay(long day, long position) {
+        if (dayCount == days.length) {
+            if (dayHead > 0) {
+                System.arraycopy(days, dayHead, days, 0, dayCount - dayHead);
+                System.arraycopy(dayStarts, dayHead, dayStarts, 0, dayCount - dayHead);
+                dayCount -= dayHead;
+                dayHead = 0;
+            } else {
+                days = Arrays.copyOf(days, days.length * 2);
+                dayStarts = Arrays.copyOf(dayStarts, dayStarts.length * 2);
+            }
+        }
+        days[dayCount] = day;
+        dayStarts[dayCount] = position;
+        dayCount++;
+    }
+
+    // Fills out with up to out.length candidate positions for query between
+    // high and low (both inclusive), highest first; returns how many. Entries
+    // of the query's counterparty, else of its type, else every position;
+    // none from before the window.
+    int candidates(TransactionQuery query, long high, long low, long[] out) {
+        low = Math.max(low, first);
+        int found = 0;
+        if (query.getCounterparty() != null) {
+            Postings postings = counterparties.get(query.getCounterparty());
+            if (postings == null) {
+                return 0;
+            }
+            for (int i = postings.below(high + 1) - 1; i >= 0 && found < out.length; i--) {
+                long position = postings.positions[i];
+                if (position < low) {
+                    break;
+                }
+                out[found++] = position;
+            }
+        } else if (query.getType() != null) {
+            long[] bits = typeBits[query.getType().getCode()];
+            if (bits == null) {
+                return 0;
+            }
+            long base = firstWord << 6;
+            for (long position = previousSetBit(bits, high - base); position >= 0 && position + base >= low
+                 && found < out.length; position = previousSetBit(bits, position - 1)) {
+                out[found++] = position + base;
+            }
+        } else {
+            for (long position = high; position >= low && found < out.length; position--) {
+                out[found++] = position;
+            }
+        }
+        return found;
+    }
+
+    // Highest set bit at or below from, or -1
+    private static long previousSetBit(long[] bits, long from) {
+        if (from < 0) {
+            return -1;
+        }
+        int word = (int) Math.min(from >>> 6, bits.length - 1);
+        long mask = word == from >>> 6 ? -1L >>> (63 - (from & 63)) : -1L;
+        for (long value = bits[word] & mask; ; value = bits[word]) {
+            if (value != 0) {
+                return ((long) word << 6) + 63 - Long.numberOfLeadingZeros(value);
+            }
+            if (--word < 0) {
+                return -1;
+            }
+        }
+    }
+
+    // Ascending positions of the entries naming one counterparty
+    private static final class Postings {
+        long[] positions = new long[4];
+        int size;
+
+        void add(long position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+
+        // Removes the positions below limit; returns how many are left
+        int dropBelow(long limit) {
+            int dropped = below(limit);
+            if (dropped > 0) {
+                System.arraycopy(positions, dropped, positions, 0, size - dropped);
+                size -= dropped;
+            }
+            return size;
+        }
+
+        // Number of positions below limit
+        int below(long limit) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (positions[mid] < limit) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
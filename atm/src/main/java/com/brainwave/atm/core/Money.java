@@ -0,0 +1,50 @@
+package com.brainwave.atm.core;
+
+// Money helpers. Balances and amounts are held as whole paise in a long so
+// arithmetic is exact; rupee doubles only appear at the UI boundary.
+public final class Money {
+    // Most one operation may move: 1,000 crore rupees. Far beyond any real
+    // withdrawal, deposit or batch line, and small enough that a balance
+    // can't be pushed past Long.MAX_VALUE by a handful of them.
+    public static final long MAX_AMOUNT_PAISE = 1_000_000_000_000L;
+
+    private Money() {
+    }
+
+    // Rounds to the nearest paisa. NaN comes out as 0 and anything too large
+    // for a long (infinities included) as Long.MIN_VALUE or Long.MAX_VALUE,
+    // which isValidAmount refuses.
+    public static long toPaise(double rupees) {
+        return Math.round(rupees * 100);
+    }
+
+    // Whether paise is something an operation may move: positive and at most
+    // MAX_AMOUNT_PAISE
+    public static boolean isValidAmount(long paise) {
+        return paise > 0 && paise <= MAX_AMOUNT_PAISE;
+    }
+
+    public static double toRupees(long paise) {
+        return paise / 100.0;
+    }
+
+    // Paise as rupees with two decimals, e.g. 150000075 -> "1500000.75". Same
+    // text as String.format("%.2f", rupees) without parsing a format string
+    // or going through a double.
+    public static String format(long paise) {
+        return appendTo(new StringBuilder(24), paise).toString();
+    }
+
+    public static StringBuilder appendTo(StringBuilder out, long paise) {
+        long rupees = paise / 100;
+        int fraction = (int) Math.abs(paise % 100);
+        if (paise < 0 && rupees == 0) {
+            out.append('-');
+        }
+        out.append(rupees).append('.');
+        if (fraction < 10) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+}
@@ -0,0 +1,61 @@
+package com.brainwave.atm.core;
+
+import java.time.LocalDate;
+
+// One entry of a batch passed to Bank.applyBatch, e.g. a line of a salary or
+// settlement file. Amounts are in rupees like the single-operation methods.
+//
+// An INTEREST operation credits a business day's interest. The engines post
+// it at most once per account and day, and only for a day later than the last
+// one posted; a repeat is ALREADY_POSTED and changes nothing.
+public final class Operation {
+    public enum Kind { WITHDRAWAL, DEPOSIT, TRANSFER, INTEREST }
+
+    private final Kind kind;
+    private final String account;
+    private final String counterparty;
+    private final long amount;
+
+    private Operation(Kind kind, String account, String counterparty, long amount) {
+        this.kind = kind;
+        this.account = account;
+        this.counterparty = counterparty;
+        this.amount = amount;
+    }
+
+    public static Operation withdrawal(String accountNumber, double amount) {
+        return new Operation(Kind.WITHDRAWAL, accountNumber, null, Money.toPaise(amount));
+    }
+
+    public static Operation deposit(String accountNumber, double amount) {
+        return new Operation(Kind.DEPOSIT, accountNumber, null, Money.toPaise(amount));
+    }
+
+    public static Operation transfer(String fromAccount, String toAccount, double amount) {
+        return new Operation(Kind.TRANSFER, fromAccount, toAccount, Money.toPaise(amount));
+    }
+
+    public static Operation interest(String accountNumber, LocalDate day, long paise) {
+        return new Operation(Kind.INTEREST, accountNumber, day.toString(), paise);
+    }
+
+    // For callers that already hold paise, such as the binary gateway;
+    // counterparty is only used by transfers
+    public static Operation ofPaise(Kind kind, String accountNumber, String counterparty, long amount) {
+        if (kind == Kind.INTEREST) {
+            throw new IllegalArgumentException("Interest needs its business day; use interest()");
+        }
+        return new Operation(kind, accountNumber, kind == Kind.TRANSFER ? counterparty : null, amount);
+    }
+
+    public Kind getKind() { return kind; }
+    // The debited account of a transfer
+    public String getAccount() { return account; }
+    // The credited account of a transfer, the business day (ISO date) of
+    // interest, otherwise null
+    public String getCounterparty() { return counterparty; }
+    // The business day of interest, as an epoch day
+    long getInterestDay() { return LocalDate.parse(counterparty).toEpochDay(); }
+    public double getAmount() { return Money.toRupees(amount); }
+    public long getAmountPaise() { return amount; }
+}
@@ -0,0 +1,20 @@
+package com.brainwave.atm.core;
+
+// Result of one operation in a batch
+public enum Outcome {
+    OK,
+    // The account, or a transfer's counterparty, doesn't exist; also a
+    // transfer from an account to itself
+    UNKNOWN_ACCOUNT,
+    INVALID_AMOUNT,
+    INSUFFICIENT_FUNDS,
+    // Refused before reaching the ledger by a pre-authorization check (see
+    // risk.RiskEngine)
+    DECLINED,
+    // The withdrawal would take the account past its rolling 24-hour cash
+    // limit (see WithdrawalLimit)
+    LIMIT_EXCEEDED,
+    // An INTEREST operation for a day the account already has interest for,
+    // or an earlier one; nothing changed (see Operation)
+    ALREADY_POSTED
+}
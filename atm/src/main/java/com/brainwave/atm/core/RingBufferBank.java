@@ -0,0 +1,931 @@
+package com.brainwave.atm.core;
+
+import com.brainwave.atm.auth.Authenticator;
+import com.brainwave.atm.auth.LoginThrottle;
+import com.brainwave.atm.auth.PinHasher;
+import com.brainwave.atm.journal.DirectoryLock;
+import com.brainwave.atm.journal.Journal;
+import com.brainwave.atm.journal.JournalRecord;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+// Bank whose ledger is owned by a single thread.
+//
+// Every command that changes state (opening an account, withdrawals, deposits,
+// transfers, balance inquiries, PIN changes and rehashes) is written into a
+// slot of a pre-allocated ring and passes three stages, each a single thread
+// working through the ring in sequence order:
+//   1. the ledger thread applies it to the accounts and keeps the result in
+//      the slot; as the only writer it needs no locks and never contends
+//   2. the journal stage appends the results to the Journal and waits for one
+//      fsync per run of slots it picked up (skipped without a data directory)
+//   3. the publisher completes each command's future and frees the slot
+// Callers claim slots with one atomic increment and wait only when the ring is
+// full. The blocking BankService methods submit and wait for their future;
+// submit() hands it to callers that want to keep going instead.
+//
+// Reads (balances, holder names, history) go straight to the accounts: the
+// index is a ConcurrentHashMap, balances are atomic and histories synchronize
+// on their own.
+//
+// The journal is written in the same format as Bank's but in a ring/
+// subdirectory of the data directory, next to snapshots in Bank's format.
+// Snapshots go through the ring as commands, so the ledger thread never stops
+// for more than a moment: a first command marks the snapshot's cut (the
+// journal stage notes the last record before it), then further commands,
+// interleaved with everything else, each copy SNAPSHOT_CHUNK accounts. Every
+// account is saved with the last record before its own chunk, and, as in
+// Bank, replay skips the records an account's copy already reflects. The
+// snapshot thread writes each chunk as it arrives and finally drops the
+// segments the cut covers.
+// Balance inquiries are not journaled, so their history entries only survive a
+// restart if a snapshot was taken after them. Like Bank, a durable ring bank
+// holds a DirectoryLock on its directory until it is closed.
+//
+// A command that throws in a stage fails its own future and the stage goes on
+// with the next slot. A journal append or fsync that fails stops the bank as
+// it does Bank: the commands not yet durable fail, and every later change is
+// refused, because memory is now ahead of the journal.
+public class RingBufferBank implements BankService {
+    private static final int RING_SIZE = Integer.highestOneBit(
+            Math.max(2, Integer.getInteger("atm.ring.size", 4096)));
+    private static final int MASK = RING_SIZE - 1;
+    private static final long PARK_NANOS = 50_000;
+    // Accounts the ledger thread copies per snapshot command
+    private static final int SNAPSHOT_CHUNK = 256;
+
+    private static final byte OPEN = 1;
+    private static final byte WITHDRAWAL = 2;
+    private static final byte DEPOSIT = 3;
+    private static final byte TRANSFER = 4;
+    private static final byte INQUIRY = 5;
+    private static final byte PIN_CHANGE = 6;
+    private static final byte INTEREST = 7;
+    private static final byte SNAPSHOT = 8;
+    private static final byte REHASH = 9;
+
+    private static final Outcome[] OUTCOMES = Outcome.values();
+    private static final Function<Long, Outcome> TO_OUTCOME = new Function<Long, Outcome>() {
+        public Outcome apply(Long result) {
+            return OUTCOMES[result.intValue()];
+        }
+    };
+
+    private final Map<String, Account> accounts = new ConcurrentHashMap<String, Account>();
+    private final TransactionIndex index = new TransactionIndex(accounts);
+    private final Authenticator authenticator = new Authenticator(new PinHasher());
+    private final LoginThrottle loginThrottle = new LoginThrottle();
+    private final Path historyDirectory;
+    private final DirectoryLock directoryLock;
+    private final Journal journal;
+    private final ScheduledExecutorService snapshotter;
+    private final Object snapshotLock = new Object();
+    private long lastSnapshotSequence;
+    // Set when a PIN hash was replaced without a journal record, so the next
+    // snapshot is written even if nothing else changed
+    private volatile boolean pinsRehashed;
+
+    // One account as the ledger thread copied it for a snapshot; created by
+    // the snapshot thread, filled in by take()
+    private static final class AccountCopy {
+        final Account account;
+        String pinHash;
+        long balance;
+        long lastInterestDay;
+        long spilled;
+        final List<Transaction> unspilled = new ArrayList<Transaction>();
+
+        AccountCopy(Account account) {
+            this.account = account;
+        }
+
+        // Ledger thread only
+        void take() {
+            pinHash = account.getPinHash();
+            balance = account.getBalancePaise();
+            lastInterestDay = account.getLastInterestDay();
+            spilled = account.getTransactionHistory().copyUnspilled(unspilled);
+        }
+    }
+
+    // One slot per ring position; fields are written by the caller before
+    // publishing and by the ledger thread before it advances applied
+    private static final class Slot {
+        byte command;
+        String account;
+        String counterparty;
+        long amount;
+        String pinHash;
+        String holderName;
+        // Accounts for the ledger thread to copy for a snapshot
+        List<AccountCopy> copies;
+        CompletableFuture<Long> done;
+
+        // Set by the ledger thread
+        long result;
+        boolean changed;
+        long balance;
+        long counterBalance;
+        // Set by the stage the command failed in, instead of a result
+        RuntimeException failure;
+    }
+
+    private final Slot[] slots = new Slot[RING_SIZE];
+    // available[i] holds the sequence last published into slot i
+    private final AtomicLongArray available = new AtomicLongArray(RING_SIZE);
+    private final AtomicLong claimed = new AtomicLong();
+    // Highest sequence each stage has finished
+    private final AtomicLong applied = new AtomicLong(-1);
+    private final AtomicLong journaled = new AtomicLong(-1);
+    private final AtomicLong published = new AtomicLong(-1);
+
+    private final Thread ledger;
+    private final Thread journalStage;
+    private final Thread publisher;
+    private volatile boolean accepting = true;
+    // Cleared by close(); the ledger thread then finishes what was claimed
+    private volatile boolean running = true;
+    // Set by close() once every stage has stopped
+    private volatile boolean stopped;
+    // Why the journal stage failed, if it did; see checkUsable()
+    private volatile RuntimeException journalFailure;
+
+    // In-memory bank seeded with the demo accounts
+    public RingBufferBank() {
+        this(null);
+    }
+
+    // Durable bank: replays the journal in dataDirectory/ring, or seeds the
+    // demo accounts if there is nothing to replay
+    public RingBufferBank(Path dataDirectory) {
+        for (int i = 0; i < RING_SIZE; i++) {
+            slots[i] = new Slot();
+            available.set(i, -1);
+        }
+
+        DirectoryLock lock = null;
+        try {
+            if (dataDirectory == null) {
+                historyDirectory = Files.createTempDirectory("atm-history");
+                journal = null;
+            } else {
+                Path directory = dataDirectory.resolve("ring");
+                lock = DirectoryLock.acquire(directory);
+                historyDirectory = Files.createDirectories(directory.resolve("history"));
+                lastSnapshotSequence = BankSnapshot.load(directory, historyDirectory, accounts);
+                int segmentSize = Integer.getInteger("atm.journal.segment.bytes", Journal.DEFAULT_SEGMENT_SIZE);
+                journal = Journal.open(directory, segmentSize, lastSnapshotSequence + 1, new JournalRecord.Handler() {
+                    public void onRecord(JournalRecord record) {
+                        replay(record);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (lock != null) {
+                lock.close();
+            }
+            throw new UncheckedIOException("Cannot open ring bank in " + dataDirectory, e);
+        } catch (RuntimeException e) {
+            if (lock != null) {
+                lock.close();
+            }
+            throw e;
+        }
+        directoryLock = lock;
+        WithdrawalLimit.restore(accounts.values());
+
+        ledger = stage("bank-ledger", new Runnable() {
+            public void run() {
+                ledgerLoop();
+            }
+        });
+        journalStage = journal == null ? null : stage("bank-journal", new Runnable() {
+            public void run() {
+                journalLoop();
+            }
+        });
+        publisher = stage("bank-publisher", new Runnable() {
+            public void run() {
+                publishLoop();
+            }
+        });
+
+        if (journal == null) {
+            snapshotter = null;
+        } else {
+            long interval = Long.getLong("atm.snapshot.seconds", 60);
+            snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "bank-snapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            snapshotter.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    snapshot();
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+
+        if (accounts.isEmpty()) {
+            Bank.openDemoAccounts(this);
+        }
+    }
+
+    private static Thread stage(String name, Runnable loop) {
+        Thread thread = new Thread(loop, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Queues a withdrawal, deposit or transfer and returns its outcome once it
+    // is applied (and durable, for a journaled bank)
+    public CompletableFuture<Outcome> submit(Operation operation) {
+        checkUsable();
+        if (operation.getAccount() == null) {
+            return CompletableFuture.completedFuture(Outcome.UNKNOWN_ACCOUNT);
+        }
+        byte command;
+        switch (operation.getKind()) {
+            case WITHDRAWAL: command = WITHDRAWAL; break;
+            case DEPOSIT: command = DEPOSIT; break;
+            case INTEREST: command = INTEREST; break;
+            default: command = TRANSFER; break;
+        }
+        return enqueue(command, operation.getAccount(), operation.getCounterparty(),
+                       operation.getAmountPaise(), null, null).thenApply(TO_OUTCOME);
+    }
+
+    // Unusable details are refused here, so the journal stage never meets an
+    // OPEN record it can't append
+    public boolean openAccount(String accountNumber, String pin, double initialBalance, String accountHolderName) {
+        checkUsable();
+        if (!Account.isValidOpening(accountNumber, initialBalance, accountHolderName)) {
+            return false;
+        }
+        // Hashed on the caller's thread: it is deliberately slow
+        String pinHash = authenticator.getHasher().hash(pin);
+        return await(enqueue(OPEN, accountNumber, null, Money.toPaise(initialBalance), pinHash, accountHolderName)) == 1;
+    }
+
+    public boolean validateAccount(String accountNumber, String pin) {
+        Account account = accounts.get(accountNumber);
+        if (account == null) {
+            return false;
+        }
+        // Counted before the PIN is hashed, so concurrent guesses can't all
+        // get past the lockout
+        long attempt = loginThrottle.reserveAttempt(accountNumber);
+        if (attempt < 0) {
+            return false;
+        }
+        String stored = account.getPinHash();
+        switch (authenticator.verify(accountNumber, stored, pin)) {
+            case MISMATCH:
+                // The attempt stays counted as a failure
+                return false;
+            case BUSY:
+                loginThrottle.releaseAttempt(accountNumber, attempt);
+                return false;
+            default:
+                break;
+        }
+        loginThrottle.reset(accountNumber);
+        // Hashes of a different cost are replaced by the ledger thread, which
+        // owns the account, and only if no PIN change got there first. They
+        // are not journaled; the next snapshot keeps the new one.
+        PinHasher hasher = authenticator.getHasher();
+        if (hasher.needsRehash(stored)) {
+            enqueue(REHASH, accountNumber, stored, 0, hasher.hash(pin), null);
+        }
+        return true;
+    }
+
+    public boolean isLockedOut(String accountNumber) {
+        return loginThrottle.isLockedOut(accountNumber);
+    }
+
+    public long getLockoutSeconds() {
+        return loginThrottle.getWindowSeconds();
+    }
+
+    public String getAccountHolderName(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? null : account.getAccountHolderName();
+    }
+
+    public long getBalancePaise(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? -1 : account.getBalancePaise();
+    }
+
+    // Goes through the ring so the history entry lands in order with the
+    // mutations around it
+    public long balanceInquiry(String accountNumber) {
+        return await(enqueue(INQUIRY, accountNumber, null, 0, null, null));
+    }
+
+    public boolean withdraw(String accountNumber, double amount) {
+        checkUsable();
+        return await(enqueue(WITHDRAWAL, accountNumber, null, Money.toPaise(amount), null, null))
+               == Outcome.OK.ordinal();
+    }
+
+    // Read straight from the account's limit, like balances
+    public long getRemainingWithdrawalPaise(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? -1 : account.getWithdrawalLimit().remaining(System.currentTimeMillis());
+    }
+
+    public boolean deposit(String accountNumber, double amount) {
+        checkUsable();
+        return await(enqueue(DEPOSIT, accountNumber, null, Money.toPaise(amount), null, null))
+               == Outcome.OK.ordinal();
+    }
+
+    public boolean transfer(String fromAccount, String toAccount, double amount) {
+        checkUsable();
+        return await(enqueue(TRANSFER, fromAccount, toAccount, Money.toPaise(amount), null, null))
+               == Outcome.OK.ordinal();
+    }
+
+    public void changePin(String accountNumber, String newPin) {
+        checkUsable();
+        String pinHash = authenticator.getHasher().hash(newPin);
+        await(enqueue(PIN_CHANGE, accountNumber, null, 0, pinHash, null));
+        authenticator.invalidate(accountNumber);
+    }
+
+    public List<Transaction> recentTransactions(String accountNumber, int count) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? new ArrayList<Transaction>() : account.getTransactionHistory().recent(count);
+    }
+
+    public long getTransactionCount(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? 0 : account.getTransactionHistory().size();
+    }
+
+    public List<Transaction> transactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to,
+                                                 long offset, int limit) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? new ArrayList<Transaction>()
+                               : account.getTransactionHistory().between(from, to, offset, limit);
+    }
+
+    public long countTransactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? 0 : account.getTransactionHistory().countBetween(from, to);
+    }
+
+    public long writeStatement(String accountNumber, LocalDateTime from, LocalDateTime to,
+                               StatementWriter writer, WritableByteChannel out) throws IOException {
+        Account account = accounts.get(accountNumber);
+        return account == null ? -1 : writer.write(out, accountNumber, account.getTransactionHistory(), from, to);
+    }
+
+    public List<String> getAccountNumbers() {
+        return new ArrayList<String>(accounts.keySet());
+    }
+
+    public List<TransactionQuery.Match> findTransactions(TransactionQuery query) {
+        return index.find(query);
+    }
+
+    // Operations are queued back to back and apply strictly in input order;
+    // a journaled bank makes them durable together
+    public List<Outcome> applyBatch(List<Operation> operations) {
+        List<CompletableFuture<Outcome>> pending = new ArrayList<CompletableFuture<Outcome>>(operations.size());
+        for (Operation operation : operations) {
+            pending.add(submit(operation));
+        }
+        List<Outcome> outcomes = new ArrayList<Outcome>(operations.size());
+        for (CompletableFuture<Outcome> outcome : pending) {
+            outcomes.add(outcome.join());
+        }
+        return outcomes;
+    }
+
+    // Writes a snapshot of every account and deletes the journal segments it
+    // covers. Runs on the snapshot thread and at close(); commands keep
+    // flowing while the accounts are copied and the file is written.
+    public void snapshot() {
+        // After a journal failure memory holds changes the journal may not
+        if (journal == null || journalFailure != null) {
+            return;
+        }
+
+        synchronized (snapshotLock) {
+            if (journal.getNextSequence() - 1 == lastSnapshotSequence && !pinsRehashed) {
+                return;
+            }
+            pinsRehashed = false;
+
+            BankSnapshot snapshot = null;
+            try {
+                // Every account opened up to the cut is in the map once the
+                // marker has gone through; those opened later are either
+                // listed and copied below or replayed from their OPEN record
+                long cut = enqueue(SNAPSHOT, null, null, 0, null, null, null).join();
+                List<Account> listed = new ArrayList<Account>(accounts.values());
+                snapshot = new BankSnapshot(journal.getDirectory(), cut);
+                for (int start = 0; start < listed.size(); start += SNAPSHOT_CHUNK) {
+                    List<AccountCopy> copies = new ArrayList<AccountCopy>(SNAPSHOT_CHUNK);
+                    for (Account account : listed.subList(start, Math.min(listed.size(), start + SNAPSHOT_CHUNK))) {
+                        copies.add(new AccountCopy(account));
+                    }
+                    // Published only once everything before it is durable
+                    long copiedAt = enqueue(SNAPSHOT, null, null, 0, null, null, copies).join();
+                    for (AccountCopy copy : copies) {
+                        // The snapshot vouches for the spilled part of the history file
+                        copy.account.getTransactionHistory().force();
+                        snapshot.writeAccount(copy.account.getAccountNumber(), copy.pinHash,
+                                              copy.account.getAccountHolderName(), copy.balance, copiedAt,
+                                              copy.lastInterestDay, copy.spilled, copy.unspilled);
+                    }
+                }
+                snapshot.commit();
+                snapshot = null;
+
+                journal.deleteSegmentsThrough(cut);
+                lastSnapshotSequence = cut;
+            } catch (IOException | UncheckedIOException | CompletionException | IllegalStateException e) {
+                // Keep running on the journal alone; the next attempt may succeed
+                System.err.println("Bank snapshot failed: " + e);
+                pinsRehashed = true;
+            } finally {
+                if (snapshot != null) {
+                    snapshot.abort();
+                }
+            }
+        }
+    }
+
+    // Waits for a blocking call's command and throws what failed it as it is,
+    // as Bank would, rather than wrapped in a CompletionException
+    private static long await(CompletableFuture<Long> done) {
+        try {
+            return done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private CompletableFuture<Long> enqueue(byte command, String account, String counterparty, long amount,
+                                           String pinHash, String holderName) {
+        return enqueue(command, account, counterparty, amount, pinHash, holderName, null);
+    }
+
+    // Claims the next slot, fills it in and publishes it to the ledger thread.
+    // A command that slips past the accepting check while close() runs is
+    // failed, by close() or here, once the stages have stopped.
+    private CompletableFuture<Long> enqueue(byte command, String account, String counterparty, long amount,
+                                           String pinHash, String holderName, List<AccountCopy> copies) {
+        if (!accepting) {
+            throw new IllegalStateException("Bank is closed");
+        }
+        long sequence = claimed.getAndIncrement();
+        // Wait for the publisher to free the slot's previous lap
+        for (int attempts = 0; sequence - RING_SIZE > published.get(); ) {
+            if (stopped) {
+                throw new IllegalStateException("Bank is closed");
+            }
+            attempts = idle(attempts);
+        }
+
+        CompletableFuture<Long> done = new CompletableFuture<Long>();
+        Slot slot = slots[(int) sequence & MASK];
+        slot.command = command;
+        slot.account = account;
+        slot.counterparty = counterparty;
+        slot.amount = amount;
+        slot.pinHash = pinHash;
+        slot.holderName = holderName;
+        slot.copies = copies;
+        slot.done = done;
+        available.set((int) sequence & MASK, sequence);
+        if (stopped) {
+            done.completeExceptionally(new IllegalStateException("Bank is closed"));
+        }
+        return done;
+    }
+
+    // Spin, then yield, then park briefly: stages on an idle bank cost
+    // little CPU, busy ones never sleep
+    private static int idle(int attempts) {
+        if (attempts < 100) {
+            Thread.onSpinWait();
+        } else if (attempts < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return attempts + 1;
+    }
+
+    private void ledgerLoop() {
+        long next = 0;
+        int attempts = 0;
+        while (running || next < claimed.get()) {
+            if (available.get((int) next & MASK) != next) {
+                attempts = idle(attempts);
+                continue;
+            }
+            attempts = 0;
+            Slot slot = slots[(int) next & MASK];
+            if (journalFailure != null) {
+                // Not applied: the journal could no longer record it
+                slot.changed = false;
+                slot.failure = stoppedByJournal();
+            } else {
+                try {
+                    apply(slot);
+                } catch (RuntimeException e) {
+                    // apply() checks a command before it touches an account,
+                    // so only a history file that can't be written fails one
+                    // part way
+                    slot.changed = false;
+                    slot.failure = e;
+                }
+            }
+            applied.set(next);
+            next++;
+        }
+    }
+
+    private void journalLoop() {
+        long next = 0;
+        int attempts = 0;
+        // Runs until the ledger thread has stopped and everything it applied
+        // is journaled
+        while (ledger.isAlive() || next <= applied.get()) {
+            long upTo = applied.get();
+            if (upTo < next) {
+                attempts = idle(attempts);
+                continue;
+            }
+            attempts = 0;
+            try {
+                long last = 0;
+                for (long sequence = next; sequence <= upTo && journalFailure == null; sequence++) {
+                    Slot slot = slots[(int) sequence & MASK];
+                    if (slot.command == SNAPSHOT) {
+                        // Everything before it is appended, nothing after it yet
+                        slot.result = journal.getNextSequence() - 1;
+                    }
+                    long journalSequence = append(slot);
+                    last = Math.max(last, journalSequence);
+                }
+                if (last > 0) {
+                    journal.awaitDurable(last);
+                }
+            } catch (RuntimeException e) {
+                if (journalFailure == null) {
+                    journalFailure = e;
+                }
+            }
+            if (journalFailure != null) {
+                // None of the run can be vouched for, nor anything after it
+                for (long sequence = next; sequence <= upTo; sequence++) {
+                    Slot slot = slots[(int) sequence & MASK];
+                    if (slot.failure == null) {
+                        slot.failure = stoppedByJournal();
+                    }
+                }
+            }
+            journaled.set(upTo);
+            next = upTo + 1;
+        }
+    }
+
+    private void publishLoop() {
+        AtomicLong upstream = journal == null ? applied : journaled;
+        Thread upstreamStage = journal == null ? ledger : journalStage;
+        long next = 0;
+        int attempts = 0;
+        while (upstreamStage.isAlive() || next <= upstream.get()) {
+            long upTo = upstream.get();
+            if (upTo < next) {
+                attempts = idle(attempts);
+                continue;
+            }
+            attempts = 0;
+            for (long sequence = next; sequence <= upTo; sequence++) {
+                Slot slot = slots[(int) sequence & MASK];
+                CompletableFuture<Long> done = slot.done;
+                long result = slot.result;
+                RuntimeException failure = slot.failure;
+                slot.done = null;
+                slot.account = null;
+                slot.counterparty = null;
+                slot.pinHash = null;
+                slot.holderName = null;
+                slot.copies = null;
+                slot.failure = null;
+                // Dependent stages run here, but what they throw goes to
+                // their own futures, never to this thread
+                if (failure != null) {
+                    done.completeExceptionally(failure);
+                } else {
+                    done.complete(result);
+                }
+            }
+            published.set(upTo);
+            next = upTo + 1;
+        }
+    }
+
+    // Ledger thread only. Leaves the command's result in the slot: an Outcome
+    // ordinal for mutations, the balance (or -1) for inquiries, 1 or 0 for
+    // account opening. A snapshot command's result (the last record before
+    // it) is set by the journal stage.
+    private void apply(Slot slot) {
+        slot.changed = false;
+        if (slot.command == SNAPSHOT) {
+            if (slot.copies != null) {
+                for (AccountCopy copy : slot.copies) {
+                    copy.take();
+                }
+            }
+            return;
+        }
+        Account account = slot.account == null ? null : accounts.get(slot.account);
+        long paise = slot.amount;
+
+        switch (slot.command) {
+            case OPEN:
+                if (account != null) {
+                    slot.result = 0;
+                    return;
+                }
+                account = newAccount(slot.account, slot.pinHash, slot.holderName);
+                account.restoreBalance(paise);
+                accounts.put(slot.account, account);
+                slot.balance = paise;
+                slot.result = 1;
+                slot.changed = true;
+                return;
+            case INQUIRY:
+                if (account == null) {
+                    slot.result = -1;
+                    return;
+                }
+                slot.result = account.getBalancePaise();
+                account.record(TransactionType.BALANCE_INQUIRY, null, 0, slot.result);
+                return;
+            case PIN_CHANGE:
+                if (account != null) {
+                    account.setPinHash(slot.pinHash);
+                    account.record(TransactionType.PIN_CHANGE, null, 0, account.getBalancePaise());
+                    slot.changed = true;
+                }
+                slot.result = 0;
+                return;
+            case REHASH:
+                // The counterparty is the hash the caller verified against
+                if (account != null && account.getPinHash() == slot.counterparty) {
+                    account.setPinHash(slot.pinHash);
+                    pinsRehashed = true;
+                }
+                slot.result = 0;
+                return;
+            default:
+                break;
+        }
+
+        Account counterparty = slot.command != TRANSFER ? account
+                               : slot.counterparty == null ? null : accounts.get(slot.counterparty);
+        Outcome outcome;
+        if (account == null || counterparty == null || (slot.command == TRANSFER && counterparty == account)) {
+            outcome = Outcome.UNKNOWN_ACCOUNT;
+        } else if (!Money.isValidAmount(paise)) {
+            outcome = Outcome.INVALID_AMOUNT;
+        } else if (slot.command == DEPOSIT) {
+            slot.balance = account.credit(paise);
+            if (slot.balance < 0) {
+                outcome = Outcome.INVALID_AMOUNT;
+            } else {
+                account.record(TransactionType.DEPOSIT, null, paise, slot.balance);
+                outcome = Outcome.OK;
+            }
+        } else if (slot.command == INTEREST) {
+            long day = LocalDate.parse(slot.counterparty).toEpochDay();
+            if (!account.takesInterestFor(day)) {
+                outcome = Outcome.ALREADY_POSTED;
+            } else {
+                slot.balance = account.credit(paise);
+                if (slot.balance < 0) {
+                    outcome = Outcome.INVALID_AMOUNT;
+                } else {
+                    account.setLastInterestDay(day);
+                    account.record(TransactionType.INTEREST, slot.counterparty, paise, slot.balance);
+                    outcome = Outcome.OK;
+                }
+            }
+        } else if (slot.command == TRANSFER && counterparty.getBalancePaise() > Long.MAX_VALUE - paise) {
+            // Checked before the debit: as the only writer, nothing can
+            // credit the counterparty in between
+            outcome = Outcome.INVALID_AMOUNT;
+        } else if (account.getBalancePaise() < paise) {
+            outcome = Outcome.INSUFFICIENT_FUNDS;
+        } else if (slot.command == WITHDRAWAL
+                   // The balance was checked first, so a reservation is never given back
+                   && account.getWithdrawalLimit().reserve(paise, System.currentTimeMillis()) < 0) {
+            outcome = Outcome.LIMIT_EXCEEDED;
+        } else if (slot.command == WITHDRAWAL) {
+            slot.balance = account.tryDebit(paise);
+            account.record(TransactionType.WITHDRAWAL, null, paise, slot.balance);
+            outcome = Outcome.OK;
+        } else {
+            slot.balance = account.tryDebit(paise);
+            slot.counterBalance = counterparty.credit(paise);
+            long now = System.currentTimeMillis();
+            account.record(TransactionType.TRANSFER_OUT, counterparty.getAccountNumber(), paise, slot.balance, now);
+            counterparty.record(TransactionType.TRANSFER_IN, account.getAccountNumber(), paise, slot.counterBalance, now);
+            outcome = Outcome.OK;
+        }
+        slot.changed = outcome == Outcome.OK;
+        slot.result = outcome.ordinal();
+    }
+
+    // Called before every mutation, as in Bank
+    private void checkUsable() {
+        if (journalFailure != null) {
+            throw stoppedByJournal();
+        }
+    }
+
+    private IllegalStateException stoppedByJournal() {
+        return new IllegalStateException("Bank stopped after a journal failure", journalFailure);
+    }
+
+    // Journal stage. Returns the journal sequence of the slot's record, or 0
+    // if it changed nothing.
+    private long append(Slot slot) {
+        if (!slot.changed) {
+            return 0;
+        }
+        switch (slot.command) {
+            case OPEN: return journal.appendOpen(slot.account, slot.pinHash, slot.holderName, slot.balance);
+            case WITHDRAWAL: return journal.appendWithdrawal(slot.account, slot.amount, slot.balance);
+            case DEPOSIT: return journal.appendDeposit(slot.account, slot.amount, slot.balance);
+            case INTEREST: return journal.appendInterest(slot.account, slot.counterparty, slot.amount, slot.balance);
+            case TRANSFER:
+                return journal.appendTransfer(slot.account, slot.counterparty, slot.amount,
+                                              slot.balance, slot.counterBalance);
+            case PIN_CHANGE: return journal.appendPinChange(slot.account, slot.pinHash);
+            default: return 0;
+        }
+    }
+
+    private Account newAccount(String accountNumber, String pinHash, String holderName) {
+        return new Account(accountNumber, pinHash, 0, holderName,
+                           new TransactionHistory(historyDirectory.resolve(accountNumber + ".hist"), 0));
+    }
+
+    // Rebuilds state from one journal record at start-up, before any stage
+    // runs. Accounts were copied into the snapshot a chunk at a time, so
+    // records an account's copy already includes are skipped.
+    private void replay(JournalRecord record) {
+        long sequence = record.getSequence();
+        long timestamp = record.getTimestamp();
+        if (record.getType() == JournalRecord.OPEN) {
+            Account existing = accounts.get(record.getAccount());
+            if (existing == null || existing.getLastJournalSequence() < sequence) {
+                Account account = newAccount(record.getAccount(), record.getPinHash(), record.getHolderName());
+                account.restoreBalance(record.getBalance());
+                account.setLastJournalSequence(sequence);
+                accounts.put(record.getAccount(), account);
+            }
+            return;
+        }
+
+        Account account = accounts.get(record.getAccount());
+        if (account == null) {
+            return;
+        }
+        boolean applies = account.getLastJournalSequence() < sequence;
+
+        switch (record.getType()) {
+            case JournalRecord.WITHDRAWAL:
+                if (applies) {
+                    account.restoreBalance(record.getBalance());
+                    account.record(TransactionType.WITHDRAWAL, null, record.getAmount(), record.getBalance(), timestamp);
+                }
+                break;
+            case JournalRecord.DEPOSIT:
+                if (applies) {
+                    account.restoreBalance(record.getBalance());
+                    account.record(TransactionType.DEPOSIT, null, record.getAmount(), record.getBalance(), timestamp);
+                }
+                break;
+            case JournalRecord.TRANSFER: {
+                Account to = accounts.get(record.getCounterparty());
+                if (applies) {
+                    account.restoreBalance(record.getBalance());
+                    account.record(TransactionType.TRANSFER_OUT, to != null ? to.getAccountNumber() : record.getCounterparty(),
+                                   record.getAmount(), record.getBalance(), timestamp);
+                }
+                if (to != null && to.getLastJournalSequence() < sequence) {
+                    to.restoreBalance(record.getCounterBalance());
+                    to.record(TransactionType.TRANSFER_IN, account.getAccountNumber(),
+                              record.getAmount(), record.getCounterBalance(), timestamp);
+                    to.setLastJournalSequence(sequence);
+                }
+                break;
+            }
+            case JournalRecord.INTEREST:
+                if (applies) {
+                    account.restoreBalance(record.getBalance());
+                    account.setLastInterestDay(LocalDate.parse(record.getCounterparty()).toEpochDay());
+                    account.record(TransactionType.INTEREST, record.getCounterparty(), record.getAmount(),
+                                   record.getBalance(), timestamp);
+                }
+                break;
+            case JournalRecord.PIN_CHANGE:
+                if (applies) {
+                    account.setPinHash(record.getPinHash());
+                    account.record(TransactionType.PIN_CHANGE, null, 0, account.getBalancePaise(), timestamp);
+                }
+                break;
+            default:
+                break;
+        }
+        if (applies) {
+            account.setLastJournalSequence(sequence);
+        }
+    }
+
+    // Takes a final snapshot, stops taking commands, lets the stages drain
+    // what was queued and fails anything claimed too late for them, then
+    // closes the journal; an in-memory bank deletes its scratch history files
+    public void close() {
+        if (snapshotter != null) {
+            snapshotter.shutdownNow();
+            snapshot();
+        }
+        accepting = false;
+        running = false;
+        try {
+            ledger.join();
+            if (journalStage != null) {
+                journalStage.join();
+            }
+            publisher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stopped = true;
+        for (long sequence = published.get() + 1; sequence < claimed.get(); sequence++) {
+            Slot slot = slots[(int) sequence & MASK];
+            CompletableFuture<Long> done = slot.done;
+            if (available.get((int) sequence & MASK) == sequence && done != null) {
+                done.completeExceptionally(new IllegalStateException("Bank is closed"));
+            }
+        }
+        authenticator.close();
+        for (Account account : accounts.values()) {
+            account.getTransactionHistory().close();
+        }
+        if (journal != null) {
+            journal.close();
+            directoryLock.close();
+            return;
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(historyDirectory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(historyDirectory);
+        } catch (IOException e) {
+            // only scratch space; leave it to the OS
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.brainwave.atm.core;
+
+import com.brainwave.atm.auth.Authenticator;
+import com.brainwave.atm.auth.LoginThrottle;
+import com.brainwave.atm.auth.PinHasher;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Bank partitioned by account number across independent in-memory shards.
+//
+// Each shard is a SingleThreadedBank with its own accounts, history files and
+// a single-thread executor it is pinned to: balance changes of a shard run on
+// that thread, so shards share nothing and scale with the number of cores,
+// and a shard's monitor is hardly ever contended. Reads (balances, holder
+// names, history) take the shard's monitor directly from the caller's thread.
+// Logins share one Authenticator and LoginThrottle.
+//
+// A transfer inside one shard is a single task on it. A transfer between
+// shards is a two-phase commit coordinated by the caller: the source shard
+// prepares by holding the amount, the target shard by checking the account
+// exists and keeping room for the credit under Long.MAX_VALUE; if both vote
+// yes both commit, otherwise what was held or kept is released.
+// Shards only ever talk to the coordinator, so each behaves like a separate
+// node and can be tested as one. While a transfer is between phases the
+// amount is still in the source account's balance but held: it can't be
+// spent, and it is only debited and recorded when the transfer commits.
+//
+// The number of shards is -Datm.shards (default the number of cores).
+public class ShardedBank implements BankService {
+    private final SingleThreadedBank[] shards;
+    private final ExecutorService[] executors;
+    private final Authenticator authenticator = new Authenticator(new PinHasher());
+    private final LoginThrottle loginThrottle = new LoginThrottle();
+    private final AtomicLong nextTransaction = new AtomicLong();
+
+    // Seeded with the demo accounts
+    public ShardedBank() {
+        this(Integer.getInteger("atm.shards", Runtime.getRuntime().availableProcessors()));
+    }
+
+    public ShardedBank(int shardCount) {
+        shards = new SingleThreadedBank[Math.max(1, shardCount)];
+        executors = new ExecutorService[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new SingleThreadedBank(authenticator, loginThrottle);
+            final String name = "bank-shard-" + i;
+            executors[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        Bank.openDemoAccounts(this);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    // Shard that owns accountNumber
+    int shardOf(String accountNumber) {
+        int h = accountNumber.hashCode();
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % shards.length;
+    }
+
+    // Runs task on the shard's own thread
+    private <T> CompletableFuture<T> on(int shard, Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, executors[shard]);
+    }
+
+    // Opening an account and changing a PIN hash the PIN first, which is
+    // deliberately slow; they run on the caller's thread so the shard thread
+    // isn't held up, and the shard's monitor covers the brief update
+    public boolean openAccount(String accountNumber, String pin, double initialBalance, String accountHolderName) {
+        if (!Account.isValidOpening(accountNumber, initialBalance, accountHolderName)) {
+            return false;
+        }
+        return shards[shardOf(accountNumber)].openAccount(accountNumber, pin, initialBalance, accountHolderName);
+    }
+
+    // PIN verification runs on the authenticator's pool, not the shard thread
+    public boolean validateAccount(String accountNumber, String pin) {
+        return shards[shardOf(accountNumber)].validateAccount(accountNumber, pin);
+    }
+
+    public boolean isLockedOut(String accountNumber) {
+        return loginThrottle.isLockedOut(accountNumber);
+    }
+
+    public long getLockoutSeconds() {
+        return loginThrottle.getWindowSeconds();
+    }
+
+    public String getAccountHolderName(String accountNumber) {
+        return shards[shardOf(accountNumber)].getAccountHolderName(accountNumber);
+    }
+
+    public long getBalancePaise(String accountNumber) {
+        return shards[shardOf(accountNumber)].getBalancePaise(accountNumber);
+    }
+
+    public long balanceInquiry(final String accountNumber) {
+        final SingleThreadedBank shard = shards[shardOf(accountNumber)];
+        return on(shardOf(accountNumber), new Supplier<Long>() {
+            public Long get() {
+                return shard.balanceInquiry(accountNumber);
+            }
+        }).join();
+    }
+
+    public boolean withdraw(String accountNumber, double amount) {
+        return applyOnShard(Operation.withdrawal(accountNumber, amount)) == Outcome.OK;
+    }
+
+    public long getRemainingWithdrawalPaise(String accountNumber) {
+        return shards[shardOf(accountNumber)].getRemainingWithdrawalPaise(accountNumber);
+    }
+
+    public boolean deposit(String accountNumber, double amount) {
+        return applyOnShard(Operation.deposit(accountNumber, amount)) == Outcome.OK;
+    }
+
+    public boolean transfer(String fromAccount, String toAccount, double amount) {
+        Operation transfer = Operation.transfer(fromAccount, toAccount, amount);
+        // A missing counterparty is refused by the source shard
+        if (toAccount == null || shardOf(fromAccount) == shardOf(toAccount)) {
+            return applyOnShard(transfer) == Outcome.OK;
+        }
+        return transferAcross(transfer) == Outcome.OK;
+    }
+
+    public void changePin(String accountNumber, String newPin) {
+        shards[shardOf(accountNumber)].changePin(accountNumber, newPin);
+    }
+
+    public List<Transaction> recentTransactions(String accountNumber, int count) {
+        return shards[shardOf(accountNumber)].recentTransactions(accountNumber, count);
+    }
+
+    public long getTransactionCount(String accountNumber) {
+        return shards[shardOf(accountNumber)].getTransactionCount(accountNumber);
+    }
+
+    public List<Transaction> transactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to,
+                                                 long offset, int limit) {
+        return shards[shardOf(accountNumber)].transactionsBetween(accountNumber, from, to, offset, limit);
+    }
+
+    public long countTransactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to) {
+        return shards[shardOf(accountNumber)].countTransactionsBetween(accountNumber, from, to);
+    }
+
+    public long writeStatement(String accountNumber, LocalDateTime from, LocalDateTime to,
+                               StatementWriter writer, WritableByteChannel out) throws IOException {
+        return shards[shardOf(accountNumber)].writeStatement(accountNumber, from, to, writer, out);
+    }
+
+    public List<String> getAccountNumbers() {
+        List<String> numbers = new ArrayList<String>();
+        for (SingleThreadedBank shard : shards) {
+            numbers.addAll(shard.getAccountNumbers());
+        }
+        return numbers;
+    }
+
+    // Each shard indexes its own accounts; a query spanning accounts asks
+    // every shard and keeps the newest of what they found
+    public List<TransactionQuery.Match> findTransactions(TransactionQuery query) {
+        if (query.getAccount() != null) {
+            return shards[shardOf(query.getAccount())].findTransactions(query);
+        }
+        List<TransactionQuery.Match> matches = new ArrayList<TransactionQuery.Match>();
+        for (SingleThreadedBank shard : shards) {
+            matches.addAll(shard.findTransactions(query));
+        }
+        return TransactionIndex.newest(matches, query.getLimit());
+    }
+
+    // Operations that stay within one shard are sent to it as one batch, all
+    // shards in parallel, and apply in input order there. Cross-shard
+    // transfers follow, one two-phase commit each, in input order; like
+    // Bank.applyBatch, an operation may not see the effect of an earlier one
+    // handled in a different group.
+    public List<Outcome> applyBatch(List<Operation> operations) {
+        int count = operations.size();
+        Outcome[] outcomes = new Outcome[count];
+
+        List<List<Operation>> local = new ArrayList<List<Operation>>();
+        List<List<Integer>> positions = new ArrayList<List<Integer>>();
+        for (int i = 0; i < shards.length; i++) {
+            local.add(new ArrayList<Operation>());
+            positions.add(new ArrayList<Integer>());
+        }
+        List<Integer> crossing = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            Operation operation = operations.get(i);
+            int shard = shardOf(operation.getAccount());
+            if (operation.getKind() == Operation.Kind.TRANSFER && operation.getCounterparty() != null
+                    && shardOf(operation.getCounterparty()) != shard) {
+                crossing.add(i);
+            } else {
+                local.get(shard).add(operation);
+                positions.get(shard).add(i);
+            }
+        }
+
+        List<CompletableFuture<List<Outcome>>> results = new ArrayList<CompletableFuture<List<Outcome>>>();
+        for (int i = 0; i < shards.length; i++) {
+            final SingleThreadedBank shard = shards[i];
+            final List<Operation> batch = local.get(i);
+            results.add(batch.isEmpty() ? null : on(i, new Supplier<List<Outcome>>() {
+                public List<Outcome> get() {
+                    return shard.applyBatch(batch);
+                }
+            }));
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (results.get(i) != null) {
+                List<Outcome> shardOutcomes = results.get(i).join();
+                for (int j = 0; j < shardOutcomes.size(); j++) {
+                    outcomes[positions.get(i).get(j)] = shardOutcomes.get(j);
+                }
+            }
+        }
+        for (int i : crossing) {
+            outcomes[i] = transferAcross(operations.get(i));
+        }
+        return Arrays.asList(outcomes);
+    }
+
+    // A withdrawal, deposit or same-shard transfer as one task on its shard
+    private Outcome applyOnShard(final Operation operation) {
+        final SingleThreadedBank shard = shards[shardOf(operation.getAccount())];
+        return on(shardOf(operation.getAccount()), new Supplier<Outcome>() {
+            public Outcome get() {
+                return shard.applyBatch(Arrays.asList(operation)).get(0);
+            }
+        }).join();
+    }
+
+    // Two-phase commit of a transfer between two shards. Both shards prepare
+    // in parallel; the outcome is final once both have answered.
+    private Outcome transferAcross(Operation operation) {
+        final long transactionId = nextTransaction.incrementAndGet();
+        final String from = operation.getAccount();
+        final String to = operation.getCounterparty();
+        final long amount = operation.getAmountPaise();
+        if (!Money.isValidAmount(amount)) {
+            return Outcome.INVALID_AMOUNT;
+        }
+        final int sourceIndex = shardOf(from);
+        final int targetIndex = shardOf(to);
+        final SingleThreadedBank source = shards[sourceIndex];
+        final SingleThreadedBank target = shards[targetIndex];
+
+        CompletableFuture<Outcome> debit = on(sourceIndex, new Supplier<Outcome>() {
+            public Outcome get() {
+                return source.prepareDebit(transactionId, from, to, amount);
+            }
+        });
+        CompletableFuture<Outcome> credit = on(targetIndex, new Supplier<Outcome>() {
+            public Outcome get() {
+                return target.prepareCredit(transactionId, to, from, amount);
+            }
+        });
+        Outcome debitVote = debit.join();
+        Outcome creditVote = credit.join();
+
+        final boolean commit = debitVote == Outcome.OK && creditVote == Outcome.OK;
+        CompletableFuture<Void> sourceDone = on(sourceIndex, new Supplier<Void>() {
+            public Void get() {
+                if (commit) {
+                    source.commit(transactionId);
+                } else {
+                    source.abort(transactionId);
+                }
+                return null;
+            }
+        });
+        CompletableFuture<Void> targetDone = on(targetIndex, new Supplier<Void>() {
+            public Void get() {
+                if (commit) {
+                    target.commit(transactionId);
+                } else {
+                    target.abort(transactionId);
+                }
+                return null;
+            }
+        });
+        sourceDone.join();
+        targetDone.join();
+
+        if (commit) {
+            return Outcome.OK;
+        }
+        return debitVote != Outcome.OK ? debitVote : creditVote;
+    }
+
+    // Lets each shard finish what it was given, then closes them
+    public void close() {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+        for (ExecutorService executor : executors) {
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (SingleThreadedBank shard : shards) {
+            shard.close();
+        }
+        authenticator.close();
+    }
+}
@@ -0,0 +1,431 @@
+package com.brainwave.atm.core;
+
+import com.brainwave.atm.auth.Authenticator;
+import com.brainwave.atm.auth.LoginThrottle;
+import com.brainwave.atm.auth.PinHasher;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// In-memory bank that serves one request at a time.
+//
+// Everything is guarded by the bank's own monitor: one map, no stripes and no
+// journal (the map is concurrent only so the TransactionIndex can read it).
+// It is the baseline the concurrent engines are measured against, and enough
+// for a single terminal or a test. Logins go through the same Authenticator
+// and LoginThrottle as Bank; PIN hashing and verification are the only work
+// done outside the monitor, since they are deliberately slow and touch no
+// ledger state.
+//
+// ShardedBank uses instances as its shards; the prepare/commit/abort methods
+// at the end are their side of its two-phase transfers.
+public class SingleThreadedBank implements BankService {
+    private final Map<String, Account> accounts = new ConcurrentHashMap<String, Account>();
+    private final TransactionIndex index = new TransactionIndex(accounts);
+    private final Authenticator authenticator;
+    private final PinHasher hasher;
+    private final LoginThrottle loginThrottle;
+    private final boolean ownsAuthenticator;
+    private final Path historyDirectory;
+    // Cross-shard transfers prepared here and not yet committed or aborted
+    private final Map<Long, PendingTransfer> pending = new HashMap<Long, PendingTransfer>();
+    // Paise of each account held for prepared outgoing transfers
+    private final Map<Account, Long> held = new HashMap<Account, Long>();
+    // Paise prepared to arrive at each account; room is kept for them under
+    // Long.MAX_VALUE so their commits can't overflow
+    private final Map<Account, Long> incoming = new HashMap<Account, Long>();
+
+    private static final class PendingTransfer {
+        final Account account;
+        final String counterparty;
+        final long amount;
+        final boolean debit;
+
+        PendingTransfer(Account account, String counterparty, long amount, boolean debit) {
+            this.account = account;
+            this.counterparty = counterparty;
+            this.amount = amount;
+            this.debit = debit;
+        }
+    }
+
+    // Seeded with the demo accounts
+    public SingleThreadedBank() {
+        this(new Authenticator(new PinHasher()), new LoginThrottle(), true);
+        Bank.openDemoAccounts(this);
+    }
+
+    // Empty shard that logs in through the owner's authenticator and throttle
+    SingleThreadedBank(Authenticator authenticator, LoginThrottle loginThrottle) {
+        this(authenticator, loginThrottle, false);
+    }
+
+    private SingleThreadedBank(Authenticator authenticator, LoginThrottle loginThrottle, boolean ownsAuthenticator) {
+        this.authenticator = authenticator;
+        this.hasher = authenticator.getHasher();
+        this.loginThrottle = loginThrottle;
+        this.ownsAuthenticator = ownsAuthenticator;
+        try {
+            historyDirectory = Files.createTempDirectory("atm-history");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create history directory", e);
+        }
+    }
+
+    public boolean openAccount(String accountNumber, String pin, double initialBalance, String accountHolderName) {
+        if (!Account.isValidOpening(accountNumber, initialBalance, accountHolderName)) {
+            return false;
+        }
+        String pinHash = hasher.hash(pin);
+        synchronized (this) {
+            if (accounts.containsKey(accountNumber)) {
+                return false;
+            }
+            accounts.put(accountNumber, new Account(accountNumber, pinHash, initialBalance, accountHolderName,
+                    new TransactionHistory(historyDirectory.resolve(accountNumber + ".hist"), 0)));
+            return true;
+        }
+    }
+
+    public boolean validateAccount(String accountNumber, String pin) {
+        String stored;
+        synchronized (this) {
+            Account account = accounts.get(accountNumber);
+            if (account == null) {
+                return false;
+            }
+            stored = account.getPinHash();
+        }
+        // Counted before the PIN is hashed, so concurrent guesses can't all
+        // get past the lockout
+        long attempt = loginThrottle.reserveAttempt(accountNumber);
+        if (attempt < 0) {
+            return false;
+        }
+        switch (authenticator.verify(accountNumber, stored, pin)) {
+            case MISMATCH:
+                // The attempt stays counted as a failure
+                return false;
+            case BUSY:
+                loginThrottle.releaseAttempt(accountNumber, attempt);
+                return false;
+            default:
+                break;
+        }
+        loginThrottle.reset(accountNumber);
+        if (hasher.needsRehash(stored)) {
+            String rehashed = hasher.hash(pin);
+            synchronized (this) {
+                Account account = accounts.get(accountNumber);
+                if (account.getPinHash() == stored) {
+                    account.setPinHash(rehashed);
+                }
+            }
+        }
+        return true;
+    }
+
+    public boolean isLockedOut(String accountNumber) {
+        return loginThrottle.isLockedOut(accountNumber);
+    }
+
+    public long getLockoutSeconds() {
+        return loginThrottle.getWindowSeconds();
+    }
+
+    public synchronized String getAccountHolderName(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? null : account.getAccountHolderName();
+    }
+
+    public synchronized long getBalancePaise(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? -1 : account.getBalancePaise();
+    }
+
+    public synchronized long balanceInquiry(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        if (account == null) {
+            return -1;
+        }
+        long balance = account.getBalancePaise();
+        account.record(TransactionType.BALANCE_INQUIRY, null, 0, balance);
+        return balance;
+    }
+
+    public synchronized boolean withdraw(String accountNumber, double amount) {
+        return apply(Operation.withdrawal(accountNumber, amount)) == Outcome.OK;
+    }
+
+    public synchronized long getRemainingWithdrawalPaise(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? -1 : account.getWithdrawalLimit().remaining(System.currentTimeMillis());
+    }
+
+    public synchronized boolean deposit(String accountNumber, double amount) {
+        return apply(Operation.deposit(accountNumber, amount)) == Outcome.OK;
+    }
+
+    public synchronized boolean transfer(String fromAccount, String toAccount, double amount) {
+        return apply(Operation.transfer(fromAccount, toAccount, amount)) == Outcome.OK;
+    }
+
+    public void changePin(String accountNumber, String newPin) {
+        String pinHash = hasher.hash(newPin);
+        synchronized (this) {
+            Account account = accounts.get(accountNumber);
+            if (account != null) {
+                account.setPinHash(pinHash);
+                account.record(TransactionType.PIN_CHANGE, null, 0, account.getBalancePaise());
+            }
+        }
+        authenticator.invalidate(accountNumber);
+    }
+
+    public synchronized List<Transaction> recentTransactions(String accountNumber, int count) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? new ArrayList<Transaction>() : account.getTransactionHistory().recent(count);
+    }
+
+    public synchronized long getTransactionCount(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? 0 : account.getTransactionHistory().size();
+    }
+
+    public synchronized List<Transaction> transactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to,
+                                                 long offset, int limit) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? new ArrayList<Transaction>()
+                               : account.getTransactionHistory().between(from, to, offset, limit);
+    }
+
+    public synchronized long countTransactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? 0 : account.getTransactionHistory().countBetween(from, to);
+    }
+
+    // The history has its own monitor, so the bank's is only held to find the
+    // account and not while the statement is written out
+    public long writeStatement(String accountNumber, LocalDateTime from, LocalDateTime to,
+                               StatementWriter writer, WritableByteChannel out) throws IOException {
+        Account account;
+        synchronized (this) {
+            account = accounts.get(accountNumber);
+        }
+        return account == null ? -1 : writer.write(out, accountNumber, account.getTransactionHistory(), from, to);
+    }
+
+    public synchronized List<String> getAccountNumbers() {
+        return new ArrayList<String>(accounts.keySet());
+    }
+
+    // Like writeStatement, runs without the bank's monitor: histories and the
+    // index synchronize on their own
+    public List<TransactionQuery.Match> findTransactions(TransactionQuery query) {
+        return index.find(query);
+    }
+
+    // Operations apply strictly in input order
+    public synchronized List<Outcome> applyBatch(List<Operation> operations) {
+        List<Outcome> outcomes = new ArrayList<Outcome>(operations.size());
+        for (Operation operation : operations) {
+            outcomes.add(apply(operation));
+        }
+        return outcomes;
+    }
+
+    // Caller holds the monitor
+    private Outcome apply(Operation operation) {
+        Account account = accounts.get(operation.getAccount());
+        Account counterparty = operation.getKind() != Operation.Kind.TRANSFER ? account
+                               : operation.getCounterparty() == null ? null
+                               : accounts.get(operation.getCounterparty());
+        long paise = operation.getAmountPaise();
+        if (account == null || counterparty == null
+                || (operation.getKind() == Operation.Kind.TRANSFER && counterparty == account)) {
+            return Outcome.UNKNOWN_ACCOUNT;
+        }
+        if (!Money.isValidAmount(paise)) {
+            return Outcome.INVALID_AMOUNT;
+        }
+
+        switch (operation.getKind()) {
+            case DEPOSIT: {
+                long newBalance = credit(account, paise);
+                if (newBalance < 0) {
+                    return Outcome.INVALID_AMOUNT;
+                }
+                account.record(TransactionType.DEPOSIT, null, paise, newBalance);
+                return Outcome.OK;
+            }
+            case INTEREST: {
+                long day = operation.getInterestDay();
+                if (!account.takesInterestFor(day)) {
+                    return Outcome.ALREADY_POSTED;
+                }
+                long newBalance = credit(account, paise);
+                if (newBalance < 0) {
+                    return Outcome.INVALID_AMOUNT;
+                }
+                account.setLastInterestDay(day);
+                account.record(TransactionType.INTEREST, operation.getCounterparty(), paise, newBalance);
+                return Outcome.OK;
+            }
+            case WITHDRAWAL: {
+                WithdrawalLimit limit = account.getWithdrawalLimit();
+                long hour = limit.reserve(paise, System.currentTimeMillis());
+                if (hour < 0) {
+                    return Outcome.LIMIT_EXCEEDED;
+                }
+                long newBalance = debit(account, paise);
+                if (newBalance < 0) {
+                    limit.release(paise, hour);
+                    return Outcome.INSUFFICIENT_FUNDS;
+                }
+                account.record(TransactionType.WITHDRAWAL, null, paise, newBalance);
+                return Outcome.OK;
+            }
+            default: {
+                long fromNewBalance = debit(account, paise);
+                if (fromNewBalance < 0) {
+                    return Outcome.INSUFFICIENT_FUNDS;
+                }
+                long toNewBalance = credit(counterparty, paise);
+                if (toNewBalance < 0) {
+                    account.credit(paise); // gives back what was just taken
+                    return Outcome.INVALID_AMOUNT;
+                }
+                long now = System.currentTimeMillis();
+                account.record(TransactionType.TRANSFER_OUT, counterparty.getAccountNumber(), paise, fromNewBalance, now);
+                counterparty.record(TransactionType.TRANSFER_IN, account.getAccountNumber(), paise, toNewBalance, now);
+                return Outcome.OK;
+            }
+        }
+    }
+
+    // Caller holds the monitor. Takes paise out of the account unless that
+    // would touch funds held for prepared transfers; returns the new balance,
+    // or -1 with nothing changed.
+    private long debit(Account account, long paise) {
+        Long onHold = held.get(account);
+        if (onHold != null && account.getBalancePaise() - onHold < paise) {
+            return -1;
+        }
+        return account.tryDebit(paise);
+    }
+
+    // Caller holds the monitor. Adds paise to the account unless that would
+    // overflow the balance together with the credits prepared for it; returns
+    // the new balance, or -1 with nothing changed.
+    private long credit(Account account, long paise) {
+        Long arriving = incoming.get(account);
+        if (arriving != null && account.getBalancePaise() > Long.MAX_VALUE - arriving - paise) {
+            return -1;
+        }
+        return account.credit(paise);
+    }
+
+    // Phase one of a transfer leaving this shard: holds the amount in the
+    // account under transactionId. It stays in the balance, but nothing else
+    // can spend it; the debit itself, and its history entry, wait for commit.
+    synchronized Outcome prepareDebit(long transactionId, String accountNumber, String counterparty, long amount) {
+        Account account = accounts.get(accountNumber);
+        if (account == null) {
+            return Outcome.UNKNOWN_ACCOUNT;
+        }
+        if (!Money.isValidAmount(amount)) {
+            return Outcome.INVALID_AMOUNT;
+        }
+        Long onHold = held.get(account);
+        long holding = onHold == null ? 0 : onHold;
+        if (account.getBalancePaise() - holding < amount) {
+            return Outcome.INSUFFICIENT_FUNDS;
+        }
+        held.put(account, holding + amount);
+        pending.put(transactionId, new PendingTransfer(account, counterparty, amount, true));
+        return Outcome.OK;
+    }
+
+    // Phase one of a transfer arriving at this shard: votes on whether the
+    // account exists and has room for the amount under Long.MAX_VALUE, and
+    // if so keeps that room for it until commit or abort.
+    synchronized Outcome prepareCredit(long transactionId, String accountNumber, String counterparty, long amount) {
+        Account account = accounts.get(accountNumber);
+        if (account == null) {
+            return Outcome.UNKNOWN_ACCOUNT;
+        }
+        Long arriving = incoming.get(account);
+        long expected = arriving == null ? 0 : arriving;
+        if (!Money.isValidAmount(amount) || account.getBalancePaise() > Long.MAX_VALUE - expected - amount) {
+            return Outcome.INVALID_AMOUNT;
+        }
+        incoming.put(account, expected + amount);
+        pending.put(transactionId, new PendingTransfer(account, counterparty, amount, false));
+        return Outcome.OK;
+    }
+
+    // Phase two: makes a prepared transfer final and records it. The debit
+    // side takes the held amount out now, so its entry follows everything the
+    // shard did to the account in between.
+    synchronized void commit(long transactionId) {
+        PendingTransfer transfer = pending.remove(transactionId);
+        if (transfer == null) {
+            return;
+        }
+        release(transfer);
+        if (transfer.debit) {
+            transfer.account.record(TransactionType.TRANSFER_OUT, transfer.counterparty, transfer.amount,
+                                    transfer.account.tryDebit(transfer.amount));
+        } else {
+            transfer.account.record(TransactionType.TRANSFER_IN, transfer.counterparty, transfer.amount,
+                                    transfer.account.credit(transfer.amount));
+        }
+    }
+
+    // Phase two after a no vote: lets go of a held debit or kept room
+    synchronized void abort(long transactionId) {
+        PendingTransfer transfer = pending.remove(transactionId);
+        if (transfer != null) {
+            release(transfer);
+        }
+    }
+
+    // Caller holds the monitor
+    private void release(PendingTransfer transfer) {
+        Map<Account, Long> amounts = transfer.debit ? held : incoming;
+        long remaining = amounts.get(transfer.account) - transfer.amount;
+        if (remaining == 0) {
+            amounts.remove(transfer.account);
+        } else {
+            amounts.put(transfer.account, remaining);
+        }
+    }
+
+    // Deletes the scratch history files
+    public synchronized void close() {
+        if (ownsAuthenticator) {
+            authenticator.close();
+        }
+        for (Account account : accounts.values()) {
+            account.getTransactionHistory().close();
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(historyDirectory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(historyDirectory);
+        } catch (IOException e) {
+            // only scratch space; leave it to the OS
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.brainwave.atm.core;
+
+// Encodings a statement can be exported in (see StatementWriter).
+//
+// CSV: a header line, then one line per entry, oldest first:
+//   date,type,counterparty,amount,balance_after
+//   2024-03-31 18:02:11,TRANSFER_OUT,0987654321,2500.00,148750.25
+// Dates are local time, amounts rupees with two decimals.
+//
+// BINARY: big-endian, all amounts paise, timestamps epoch millis:
+//   header  "ATMS" | byte version (1) | byte accountLength | account (ISO-8859-1) |
+//           long from | long to
+//   entry   byte typeCode | long timestamp | long amount | long balanceAfter |
+//           byte counterpartyLength | counterparty (ISO-8859-1)
+//   end     byte 0 | long entryCount
+public enum StatementFormat {
+    CSV("csv"),
+    BINARY("stmt");
+
+    private final String extension;
+
+    StatementFormat(String extension) {
+        this.extension = extension;
+    }
+
+    // File name extension of statements in this format
+    public String getExtension() {
+        return extension;
+    }
+
+    public static StatementFormat fromName(String name) {
+        for (StatementFormat format : values()) {
+            if (format.name().equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown statement format: " + name);
+    }
+}
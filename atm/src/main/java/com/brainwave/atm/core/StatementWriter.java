@@ -0,0 +1,204 @@
+package com.brainwave.atm.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+// Streams a statement of one account's history to a channel in a
+// StatementFormat.
+//
+// Entries go straight from the history's stored fields (a file record or a
+// ring slot) into one output buffer that is written out whenever it fills;
+// no Transaction, String or list is created along the way, and dates and
+// amounts are rendered digit by digit. The buffers belong to the writer, so a
+// bulk run that keeps one writer per thread allocates nothing per entry or per
+// statement. Not thread-safe.
+public final class StatementWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Upper bound on the encoded size of one entry in either format
+    private static final int MAX_ENTRY_SIZE = 256;
+    private static final byte[] MAGIC = { 'A', 'T', 'M', 'S' };
+    private static final byte VERSION = 1;
+    private static final byte[] CSV_HEADER = "date,type,counterparty,amount,balance_after\n"
+                                             .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[][] TYPE_NAMES = new byte[8][];
+    static {
+        for (TransactionType type : TransactionType.values()) {
+            TYPE_NAMES[type.getCode()] = type.name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final StatementFormat format;
+    private final ZoneRules zone;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    // Used by TransactionHistory while exporting: a chunk of file records and
+    // the counterparty of the entry being written
+    final ByteBuffer records = ByteBuffer.allocate(256 * TransactionHistory.RECORD_SIZE);
+    final byte[] counterparty = new byte[TransactionHistory.MAX_COUNTERPARTY_LENGTH];
+
+    private WritableByteChannel out;
+    private long entries;
+    // UTC offset in force from offsetFrom (inclusive) to offsetUntil (exclusive)
+    private long offsetMillis;
+    private long offsetFrom = Long.MAX_VALUE;
+    private long offsetUntil = Long.MIN_VALUE;
+
+    public StatementWriter(StatementFormat format) {
+        this(format, ZoneId.systemDefault());
+    }
+
+    public StatementWriter(StatementFormat format, ZoneId zone) {
+        this.format = format;
+        this.zone = zone.getRules();
+    }
+
+    public StatementFormat getFormat() {
+        return format;
+    }
+
+    // Writes the statement of history's entries with from <= timestamp < to;
+    // returns the number of entries in it
+    public long write(WritableByteChannel out, String accountNumber, TransactionHistory history,
+                      LocalDateTime from, LocalDateTime to) throws IOException {
+        long fromMillis = from.atZone(zone.getOffset(from)).toInstant().toEpochMilli();
+        long toMillis = to.atZone(zone.getOffset(to)).toInstant().toEpochMilli();
+        this.out = out;
+        entries = 0;
+        buffer.clear();
+        try {
+            if (format == StatementFormat.CSV) {
+                buffer.put(CSV_HEADER);
+            } else {
+                buffer.put(MAGIC).put(VERSION);
+                int length = Math.min(accountNumber.length(), 255);
+                buffer.put((byte) length);
+                for (int i = 0; i < length; i++) {
+                    buffer.put((byte) accountNumber.charAt(i));
+                }
+                buffer.putLong(fromMillis).putLong(toMillis);
+            }
+            history.export(this, fromMillis, toMillis);
+            if (format == StatementFormat.BINARY) {
+                ensureRoom(1);
+                buffer.put((byte) 0).putLong(entries);
+            }
+            flush();
+            return entries;
+        } finally {
+            this.out = null;
+        }
+    }
+
+    // Makes room for count more entries, writing out what is buffered if need
+    // be, so that they can then be added without any I/O
+    void ensureRoom(int count) throws IOException {
+        if (buffer.remaining() < count * MAX_ENTRY_SIZE) {
+            flush();
+        }
+    }
+
+    // Adds one entry; the first counterpartyLength bytes of counterparty are
+    // its counterparty (none if 0)
+    void entry(byte type, int counterpartyLength, long amount, long balanceAfter, long timestamp) throws IOException {
+        ensureRoom(1);
+        entries++;
+        if (format == StatementFormat.BINARY) {
+            buffer.put(type).putLong(timestamp).putLong(amount).putLong(balanceAfter);
+            buffer.put((byte) counterpartyLength).put(counterparty, 0, counterpartyLength);
+            return;
+        }
+        putDateTime(timestamp);
+        buffer.put((byte) ',').put(TYPE_NAMES[type]).put((byte) ',');
+        for (int i = 0; i < counterpartyLength; i++) {
+            byte b = counterparty[i];
+            // keep the line's framing whatever the account number holds
+            buffer.put(b == ',' || b == '"' || b == '\n' || b == '\r' ? (byte) ' ' : b);
+        }
+        buffer.put((byte) ',');
+        putMoney(amount);
+        buffer.put((byte) ',');
+        putMoney(balanceAfter);
+        buffer.put((byte) '\n');
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // yyyy-MM-dd HH:mm:ss in the writer's zone
+    private void putDateTime(long timestamp) {
+        if (timestamp < offsetFrom || timestamp >= offsetUntil) {
+            // Entries come in time order, so the offset only needs looking up
+            // again when a zone transition is crossed
+            Instant instant = Instant.ofEpochMilli(timestamp);
+            offsetMillis = zone.getOffset(instant).getTotalSeconds() * 1000L;
+            ZoneOffsetTransition next = zone.nextTransition(instant);
+            offsetFrom = timestamp;
+            offsetUntil = next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000;
+        }
+        long local = timestamp + offsetMillis;
+        long day = Math.floorDiv(local, 86_400_000L);
+        int secondOfDay = (int) (Math.floorMod(local, 86_400_000L) / 1000);
+
+        // Civil date from a day count (H. Hinnant's days_from_civil inverted)
+        long z = day + 719_468;
+        long era = Math.floorDiv(z, 146_097);
+        long dayOfEra = z - era * 146_097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        putDigits(year, 4);
+        buffer.put((byte) '-');
+        putDigits(month, 2);
+        buffer.put((byte) '-');
+        putDigits(dayOfMonth, 2);
+        buffer.put((byte) ' ');
+        putDigits(secondOfDay / 3600, 2);
+        buffer.put((byte) ':');
+        putDigits(secondOfDay / 60 % 60, 2);
+        buffer.put((byte) ':');
+        putDigits(secondOfDay % 60, 2);
+    }
+
+    // Rupees with two decimals and no grouping
+    private void putMoney(long paise) {
+        if (paise < 0) {
+            buffer.put((byte) '-');
+            paise = -paise;
+        }
+        putDigits(paise / 100, 1);
+        buffer.put((byte) '.');
+        putDigits(paise % 100, 2);
+    }
+
+    // value (non-negative) in decimal, zero-padded to at least width digits
+    private void putDigits(long value, int width) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        for (int i = digits; i < width; i++) {
+            buffer.put((byte) '0');
+        }
+        int end = buffer.position() + digits;
+        for (int i = end - 1; i >= end - digits; i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+}
@@ -0,0 +1,66 @@
+package com.brainwave.atm.core;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.time.LocalDateTime;
+import java.util.List;
+
+// The part of the bank a terminal uses, by account number: logins, one
+// account's balance, cash, transfers, PIN and history. Implemented over the
+// network by server.RemoteBank, which only acts on the account its connection
+// logged in to, and in-process by every BankService. Amounts passed in are
+// rupees; balances and amounts coming back are paise.
+public interface TerminalBank {
+    boolean validateAccount(String accountNumber, String pin);
+
+    // True while too many wrong PINs were entered for the account recently
+    boolean isLockedOut(String accountNumber);
+
+    // Upper bound on how long a lockout lasts
+    long getLockoutSeconds();
+
+    // null if there is no such account
+    String getAccountHolderName(String accountNumber);
+
+    // -1 if there is no such account
+    long getBalancePaise(String accountNumber);
+
+    // Current balance, recorded in the account's history as a balance inquiry
+    long balanceInquiry(String accountNumber);
+
+    boolean withdraw(String accountNumber, double amount);
+
+    // Paise the account may still withdraw in cash before it reaches its
+    // rolling 24-hour limit; Long.MAX_VALUE if withdrawals aren't limited,
+    // -1 if there is no such account
+    long getRemainingWithdrawalPaise(String accountNumber);
+
+    boolean deposit(String accountNumber, double amount);
+
+    // Returns false, and changes nothing, for a transfer to the same account
+    boolean transfer(String fromAccount, String toAccount, double amount);
+
+    void changePin(String accountNumber, String newPin);
+
+    // The newest count history entries, newest first
+    List<Transaction> recentTransactions(String accountNumber, int count);
+
+    // Total number of history entries of the account
+    long getTransactionCount(String accountNumber);
+
+    // Up to limit history entries with from <= timestamp < to, skipping the
+    // newest offset of them, newest first
+    List<Transaction> transactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to,
+                                          long offset, int limit);
+
+    // Number of history entries with from <= timestamp < to
+    long countTransactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to);
+
+    // Writes a statement of the account's history entries with from <=
+    // timestamp < to, oldest first, to out; returns how many entries it holds,
+    // or -1 (and writes nothing) if there is no such account
+    long writeStatement(String accountNumber, LocalDateTime from, LocalDateTime to,
+                        StatementWriter writer, WritableByteChannel out) throws IOException;
+
+    void close();
+}
@@ -0,0 +1,63 @@
+package com.brainwave.atm.core;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// Transaction class to record transaction details (amounts in paise).
+// History keeps entries as primitive columns; Transaction objects are only
+// created when a screen or export reads them.
+public class Transaction {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final TransactionType type;
+    private final String counterparty;
+    private final long amount;
+    private final long balanceAfter;
+    private final long timestamp;
+    private String line; // rendered on first toString()
+    
+    public Transaction(TransactionType type, String counterparty, long amount, long balanceAfter, long timestamp) {
+        this.type = type;
+        this.counterparty = counterparty;
+        this.amount = amount;
+        this.balanceAfter = balanceAfter;
+        this.timestamp = timestamp;
+    }
+    
+    // Getters
+    public String getType() { return type.describe(counterparty); }
+    public TransactionType getTransactionType() { return type; }
+    public String getCounterparty() { return counterparty; }
+    public double getAmount() { return Money.toRupees(amount); }
+    public long getAmountPaise() { return amount; }
+    public double getBalanceAfter() { return Money.toRupees(balanceAfter); }
+    public long getBalanceAfterPaise() { return balanceAfter; }
+    public long getTimestampMillis() { return timestamp; }
+    
+    public LocalDateTime getTimestamp() {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault());
+    }
+    
+    // "yyyy-MM-dd HH:mm:ss | TYPE | Rs<amount> | Balance: Rs<balance>". The
+    // entry is immutable, so the line is built once and reused by every screen
+    // or statement that shows it.
+    @Override
+    public String toString() {
+        String rendered = line;
+        if (rendered == null) {
+            StringBuilder out = new StringBuilder(80);
+            TIMESTAMP_FORMAT.formatTo(getTimestamp(), out);
+            out.append(" | ");
+            type.describeTo(out, counterparty);
+            out.append(" | Rs");
+            Money.appendTo(out, amount);
+            out.append(" | Balance: Rs");
+            Money.appendTo(out, balanceAfter);
+            rendered = out.toString();
+            line = rendered;
+        }
+        return rendered;
+    }
+}
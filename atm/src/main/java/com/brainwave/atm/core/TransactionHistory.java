@@ -0,0 +1,637 @@
+package com.brainwave.atm.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// Transaction history of one account with a flat memory footprint.
+//
+// The most recent entries live in a small ring buffer; when it fills up the
+// oldest half is appended to the account's history file as fixed-size records,
+// so entry i of the file sits at byte i * RECORD_SIZE and any page can be read
+// with one positioned read. Entries are kept in the order they were added,
+// which is time order, so date ranges are found by binary search. Timestamps
+// are taken (or, when the caller supplies one, clamped) under the history's
+// monitor so they never go backwards from one entry to the next.
+//
+// The file is opened on the first spill or read and then left open, but only
+// for the most recently used histories in the process (atm.history.open.files,
+// default 256): opening one more closes the least recently used, which is
+// reopened when it is next needed, so open descriptors don't grow with the
+// number of accounts. A file is never closed under a spill or read still
+// using it. Positioned reads need no lock, so readers never hold the monitor
+// while they wait for the disk. Spills reuse one buffer per history.
+//
+// The ring is stored as parallel primitive columns rather than Transaction
+// objects: recording an entry writes a few array slots and allocates nothing
+// (the counterparty is the account number String the caller already holds).
+// Transaction objects are only built for the entries a reader asks for.
+//
+// Record layout: long timestamp (epoch millis) | long amount | long balanceAfter |
+//                byte type code | byte counterpartyLength | counterparty (ISO-8859-1, up to 38 bytes)
+public class TransactionHistory {
+    static final int RING_CAPACITY = 64;
+    static final int RECORD_SIZE = 64;
+    private static final int SPILL_BATCH = RING_CAPACITY / 2;
+    // Candidates gathered per visit to the monitor while answering a query
+    private static final int FIND_BATCH = 256;
+    static final int MAX_COUNTERPARTY_LENGTH = RECORD_SIZE - 26;
+    private static final OpenFiles OPEN_FILES =
+            new OpenFiles(Math.max(1, Integer.getInteger("atm.history.open.files", 256)));
+
+    private final Path file;
+    private final byte[] types = new byte[RING_CAPACITY];
+    private final String[] counterparties = new String[RING_CAPACITY];
+    private final long[] amounts = new long[RING_CAPACITY];
+    private final long[] balances = new long[RING_CAPACITY];
+    private final long[] timestamps = new long[RING_CAPACITY];
+    private int head;
+    private int count;
+    private long spilled;
+    private long newest;
+    private boolean unsynced;
+    // The open file, if any, with the number of spills and reads using it
+    // (see acquire()). Guarded by channelLock, which is never held while
+    // taking another lock, rather than the monitor, so OPEN_FILES can close
+    // the file of a history whose monitor is held.
+    private final Object channelLock = new Object();
+    private FileChannel channel;
+    private int users;
+    // Pushed out of OPEN_FILES while in use: closed by the last release()
+    private boolean evicted;
+    private ByteBuffer spillBuffer;
+    // Secondary indexes, once a query has asked for them
+    private HistoryIndex index;
+
+    // Opens the history backed by file, which must hold exactly spilledCount
+    // records; anything beyond that (written after the last snapshot) is cut off
+    TransactionHistory(Path file, long spilledCount) {
+        this.file = file;
+        try {
+            if (spilledCount == 0) {
+                Files.deleteIfExists(file);
+            } else {
+                try (FileChannel channel = open()) {
+                    long records = channel.size() / RECORD_SIZE;
+                    if (records < spilledCount) {
+                        throw new IOException("History file " + file + " has " + records
+                                              + " records, expected " + spilledCount);
+                    }
+                    channel.truncate(spilledCount * RECORD_SIZE);
+                    ByteBuffer last = ByteBuffer.allocate(8);
+                    readFully(channel, last, (spilledCount - 1) * RECORD_SIZE);
+                    newest = last.getLong(0);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.spilled = spilledCount;
+    }
+
+    // Timestamped now, under the monitor
+    public synchronized void add(TransactionType type, String counterparty, long amount, long balanceAfter) {
+        add(type, counterparty, amount, balanceAfter, System.currentTimeMillis());
+    }
+
+    // A timestamp older than the newest entry's is moved up to it
+    public synchronized void add(TransactionType type, String counterparty, long amount,
+                                 long balanceAfter, long timestamp) {
+        timestamp = Math.max(timestamp, newest);
+        newest = timestamp;
+        if (count == RING_CAPACITY) {
+            spill();
+        }
+        int slot = (head + count) % RING_CAPACITY;
+        types[slot] = type.getCode();
+        counterparties[slot] = counterparty;
+        amounts[slot] = amount;
+        balances[slot] = balanceAfter;
+        timestamps[slot] = timestamp;
+        count++;
+        if (index != null) {
+            index.add(spilled + count - 1, type.getCode(), counterparty, timestamp);
+        }
+    }
+
+    // Total number of entries, in memory and on disk
+    public synchronized long size() {
+        return spilled + count;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // The newest count entries, newest first
+    public List<Transaction> recent(int count) {
+        return page(0, count);
+    }
+
+    // Up to limit entries starting offset entries back from the newest, newest first
+    public List<Transaction> page(long offset, int limit) {
+        long end = size() - offset;
+        if (end <= 0 || limit <= 0) {
+            return new ArrayList<Transaction>();
+        }
+        List<Transaction> page = get(Math.max(0, end - limit), end);
+        Collections.reverse(page);
+        return page;
+    }
+
+    // Up to limit entries with from <= timestamp < to, skipping the newest offset
+    // of them, newest first
+    public List<Transaction> between(LocalDateTime from, LocalDateTime to, long offset, int limit) {
+        long fromMillis = toMillis(from);
+        long toMillis = toMillis(to);
+        long first = firstIndexAtOrAfter(fromMillis);
+        long last = firstIndexAtOrAfter(toMillis);
+
+        long end = last - offset;
+        if (end <= first || limit <= 0) {
+            return new ArrayList<Transaction>();
+        }
+        long start = Math.max(first, end - limit);
+        List<Transaction> page = get(start, end);
+        Collections.reverse(page);
+        return page;
+    }
+
+    // Entries with timestamp >= fromMillis, oldest first
+    List<Transaction> since(long fromMillis) {
+        return get(firstIndexAtOrAfter(fromMillis), size());
+    }
+
+    // Number of entries with from <= timestamp < to
+    public long countBetween(LocalDateTime from, LocalDateTime to) {
+        return Math.max(0, firstIndexAtOrAfter(toMillis(to)) - firstIndexAtOrAfter(toMillis(from)));
+    }
+
+    // Streams the entries with fromMillis <= timestamp < toMillis, oldest
+    // first, into writer. Spilled entries are read from the file a chunk at a
+    // time into the writer's buffer and the rest taken from the ring; no
+    // Transaction is created. Entries added meanwhile are not included.
+    void export(StatementWriter writer, long fromMillis, long toMillis) throws IOException {
+        long next = firstIndexAtOrAfter(fromMillis);
+        long end = firstIndexAtOrAfter(toMillis);
+        ByteBuffer records = writer.records;
+        FileChannel channel = null;
+        try {
+            while (next < end) {
+                long spilledNow;
+                // Room for the whole ring first, so nothing is written to the
+                // channel while the monitor is held
+                writer.ensureRoom(RING_CAPACITY);
+                synchronized (this) {
+                    spilledNow = spilled;
+                    if (next >= spilled) {
+                        long stop = Math.min(end, spilled + count);
+                        for (; next < stop; next++) {
+                            int slot = (int) ((head + (next - spilled)) % RING_CAPACITY);
+                            String party = counterparties[slot];
+                            int length = party == null ? 0 : Math.min(party.length(), MAX_COUNTERPARTY_LENGTH);
+                            for (int i = 0; i < length; i++) {
+                                writer.counterparty[i] = (byte) party.charAt(i);
+                            }
+                            writer.entry(types[slot], length, amounts[slot], balances[slot], timestamps[slot]);
+                        }
+                        return;
+                    }
+                }
+
+                if (channel == null) {
+                    channel = acquire();
+                }
+                int chunk = (int) Math.min(Math.min(end, spilledNow) - next, records.capacity() / RECORD_SIZE);
+                records.clear().limit(chunk * RECORD_SIZE);
+                readFully(channel, records, next * RECORD_SIZE);
+                for (int i = 0; i < chunk; i++) {
+                    int position = i * RECORD_SIZE;
+                    int length = records.get(position + 25);
+                    records.get(position + 26, writer.counterparty, 0, length);
+                    writer.entry(records.get(position + 24), length, records.getLong(position + 8),
+                                 records.getLong(position + 16), records.getLong(position));
+                }
+                next += chunk;
+            }
+        } finally {
+            if (channel != null) {
+                release();
+            }
+        }
+    }
+
+    // The history's secondary indexes, built from the entries inside the
+    // owner's retention window the first time they are asked for. Spilled
+    // records never change, so they are read and indexed a chunk at a time
+    // outside the monitor; the monitor is only taken to see how far the file
+    // goes and, at the end, to index the ring and publish the result. Two
+    // threads building at once both finish and the first one's is kept.
+    HistoryIndex index(TransactionIndex owner, Account account) {
+        synchronized (this) {
+            if (index != null) {
+                return index;
+            }
+        }
+        long next = firstIndexAtOrAfter(owner.horizon());
+        HistoryIndex built = new HistoryIndex(owner, account, next);
+        ByteBuffer records = null;
+        byte[] counterparty = null;
+        while (true) {
+            long end;
+            synchronized (this) {
+                if (index != null) {
+                    return index;
+                }
+                if (next >= spilled) {
+                    for (long position = next; position < spilled + count; position++) {
+                        int slot = (int) ((head + (position - spilled)) % RING_CAPACITY);
+                        built.add(position, types[slot], counterparties[slot], timestamps[slot]);
+                    }
+                    index = built;
+                    owner.built();
+                    return index;
+                }
+                end = Math.min(spilled, next + FIND_BATCH);
+            }
+            if (records == null) {
+                records = ByteBuffer.allocate(FIND_BATCH * RECORD_SIZE);
+                counterparty = new byte[MAX_COUNTERPARTY_LENGTH];
+            }
+            int chunk = (int) (end - next);
+            records.clear().limit(chunk * RECORD_SIZE);
+            readFully(records, next * RECORD_SIZE);
+            for (int i = 0; i < chunk; i++) {
+                int position = i * RECORD_SIZE;
+                int length = records.get(position + 25);
+                String party = null;
+                if (length > 0) {
+                    records.get(position + 26, counterparty, 0, length);
+                    party = new String(counterparty, 0, length, StandardCharsets.ISO_8859_1);
+                }
+                built.add(next + i, records.get(position + 24), party, records.getLong(position));
+            }
+            next = end;
+        }
+    }
+
+    // Lets the index, if there is one, drop what is older than horizon
+    synchronized void trimIndex(long horizon) {
+        if (index != null) {
+            index.trim(horizon);
+        }
+    }
+
+    // Adds up to query's limit entries with fromMillis <= timestamp < toMillis
+    // that match it to matches, newest first. Candidates come from index a
+    // batch at a time under the monitor, and are read and checked outside it.
+    void find(HistoryIndex index, TransactionQuery query, long fromMillis, long toMillis,
+              String accountNumber, List<TransactionQuery.Match> matches) {
+        long low = firstIndexAtOrAfter(fromMillis);
+        long high = firstIndexAtOrAfter(toMillis) - 1;
+        long[] candidates = new long[FIND_BATCH];
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        byte[] counterparty = new byte[MAX_COUNTERPARTY_LENGTH];
+        FileChannel channel = null;
+        int found = 0;
+        try {
+            while (found < query.getLimit() && high >= low) {
+                int candidateCount;
+                synchronized (this) {
+                    candidateCount = index.candidates(query, high, low, candidates);
+                }
+                if (candidateCount == 0) {
+                    return;
+                }
+                for (int i = 0; i < candidateCount && found < query.getLimit(); i++) {
+                    Transaction transaction;
+                    synchronized (this) {
+                        long position = candidates[i];
+                        transaction = position >= spilled
+                                      ? entry((int) ((head + (position - spilled)) % RING_CAPACITY)) : null;
+                    }
+                    if (transaction == null) {
+                        if (channel == null) {
+                            channel = acquire();
+                        }
+                        record.clear();
+                        readFully(channel, record, candidates[i] * RECORD_SIZE);
+                        transaction = decode(record, 0, counterparty);
+                    }
+                    if (query.matches(transaction)) {
+                        matches.add(new TransactionQuery.Match(accountNumber, transaction));
+                        found++;
+                    }
+                }
+                high = candidates[candidateCount - 1] - 1;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (channel != null) {
+                release();
+            }
+        }
+    }
+
+    // Copies the entries still in memory into unspilled and returns how many are
+    // on disk, as one consistent pair (used by snapshots)
+    synchronized long copyUnspilled(List<Transaction> unspilled) {
+        for (int i = 0; i < count; i++) {
+            unspilled.add(entry((head + i) % RING_CAPACITY));
+        }
+        return spilled;
+    }
+
+    // Makes everything spilled so far durable. The file may have been closed
+    // and reopened since the spill; forcing any descriptor of it covers
+    // every write that reached it.
+    void force() {
+        synchronized (this) {
+            if (!unsynced) {
+                return;
+            }
+            unsynced = false;
+        }
+        try {
+            FileChannel channel = acquire();
+            try {
+                channel.force(false);
+            } finally {
+                release();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Closes the history file; reads and spills after this reopen it
+    void close() {
+        synchronized (channelLock) {
+            closeChannel();
+        }
+        OPEN_FILES.remove(this);
+    }
+
+    // Entries [start, end) in chronological order
+    private List<Transaction> get(long start, long end) {
+        List<Transaction> entries = new ArrayList<Transaction>();
+        long spilledNow;
+        synchronized (this) {
+            spilledNow = spilled;
+            end = Math.min(end, spilled + count);
+            for (long i = Math.max(start, spilled); i < end; i++) {
+                entries.add(entry((int) ((head + (i - spilled)) % RING_CAPACITY)));
+            }
+        }
+        if (start < spilledNow) {
+            entries.addAll(0, read(start, Math.min(end, spilledNow)));
+        }
+        return entries;
+    }
+
+    // Index of the first entry whose timestamp is >= millis
+    private long firstIndexAtOrAfter(long millis) {
+        long low = 0;
+        long high = size();
+        ByteBuffer scratch = null;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            long timestamp;
+            synchronized (this) {
+                timestamp = mid >= spilled ? timestamps[(int) ((head + (mid - spilled)) % RING_CAPACITY)] : -1;
+            }
+            if (timestamp < 0) {
+                if (scratch == null) {
+                    scratch = ByteBuffer.allocate(8);
+                }
+                scratch.clear();
+                readFully(scratch, mid * RECORD_SIZE);
+                timestamp = scratch.getLong(0);
+            }
+            if (timestamp < millis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Caller holds the monitor. Materializes one ring slot.
+    private Transaction entry(int slot) {
+        return new Transaction(TransactionType.fromCode(types[slot]), counterparties[slot],
+                               amounts[slot], balances[slot], timestamps[slot]);
+    }
+
+    // Caller holds the monitor. Moves the oldest half of the ring to disk.
+    private void spill() {
+        if (spillBuffer == null) {
+            spillBuffer = ByteBuffer.allocate(SPILL_BATCH * RECORD_SIZE);
+        }
+        ByteBuffer buffer = spillBuffer;
+        buffer.clear();
+        for (int i = 0; i < SPILL_BATCH; i++) {
+            encode(buffer, i * RECORD_SIZE, types[head], counterparties[head],
+                   amounts[head], balances[head], timestamps[head]);
+            counterparties[head] = null;
+            head = (head + 1) % RING_CAPACITY;
+        }
+        count -= SPILL_BATCH;
+
+        try {
+            FileChannel channel = acquire();
+            try {
+                long position = spilled * RECORD_SIZE;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            } finally {
+                release();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        spilled += SPILL_BATCH;
+        unsynced = true;
+    }
+
+    // Decodes file records [start, end), FIND_BATCH at a time so the buffer
+    // stays small however long the range is
+    private List<Transaction> read(long start, long end) {
+        List<Transaction> entries = new ArrayList<Transaction>();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(end - start, FIND_BATCH) * RECORD_SIZE);
+        byte[] counterparty = new byte[MAX_COUNTERPARTY_LENGTH];
+        for (long next = start; next < end; ) {
+            int records = (int) Math.min(end - next, FIND_BATCH);
+            buffer.clear().limit(records * RECORD_SIZE);
+            readFully(buffer, next * RECORD_SIZE);
+            for (int i = 0; i < records; i++) {
+                entries.add(decode(buffer, i * RECORD_SIZE, counterparty));
+            }
+            next += records;
+        }
+        return entries;
+    }
+
+    // Materializes the file record at position in buffer; counterparty is
+    // scratch space of MAX_COUNTERPARTY_LENGTH bytes
+    private static Transaction decode(ByteBuffer buffer, int position, byte[] counterparty) {
+        int counterpartyLength = buffer.get(position + 25);
+        String party = null;
+        if (counterpartyLength > 0) {
+            buffer.get(position + 26, counterparty, 0, counterpartyLength);
+            party = new String(counterparty, 0, counterpartyLength, StandardCharsets.ISO_8859_1);
+        }
+        return new Transaction(TransactionType.fromCode(buffer.get(position + 24)), party,
+                               buffer.getLong(position + 8), buffer.getLong(position + 16),
+                               buffer.getLong(position));
+    }
+
+    private static void encode(ByteBuffer buffer, int position, byte type, String counterparty,
+                               long amount, long balanceAfter, long timestamp) {
+        buffer.putLong(position, timestamp);
+        buffer.putLong(position + 8, amount);
+        buffer.putLong(position + 16, balanceAfter);
+        buffer.put(position + 24, type);
+        int length = counterparty == null ? 0 : Math.min(counterparty.length(), MAX_COUNTERPARTY_LENGTH);
+        buffer.put(position + 25, (byte) length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(position + 26 + i, (byte) counterparty.charAt(i));
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) {
+        try {
+            FileChannel channel = acquire();
+            try {
+                readFully(channel, buffer, position);
+            } finally {
+                release();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The open history file, opened (or reopened, after an eviction or an
+    // interrupted reader closed it) if need be; positioned reads and writes
+    // on it are safe without the monitor. Each call that returns is paired
+    // with a release(), and the file stays open until then.
+    private FileChannel acquire() throws IOException {
+        FileChannel acquired;
+        synchronized (channelLock) {
+            if (channel == null || !channel.isOpen()) {
+                channel = open();
+            }
+            users++;
+            evicted = false;
+            acquired = channel;
+        }
+        OPEN_FILES.used(this);
+        return acquired;
+    }
+
+    private void release() {
+        synchronized (channelLock) {
+            users--;
+            if (users == 0 && evicted) {
+                closeChannel();
+            }
+        }
+    }
+
+    // Called by OPEN_FILES, holding no lock, once this history is no longer
+    // among the most recently used
+    private void evict() {
+        synchronized (channelLock) {
+            if (users == 0) {
+                closeChannel();
+            } else {
+                evicted = true;
+            }
+        }
+    }
+
+    // Caller holds channelLock
+    private void closeChannel() {
+        evicted = false;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing buffered: every write went straight to the channel
+            }
+            channel = null;
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+            position += read;
+        }
+    }
+
+    private static long toMillis(LocalDateTime timestamp) {
+        return timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    // Histories with an open file, least recently used first. Histories to
+    // evict are picked under the map's monitor but evicted after it is let
+    // go, so no thread ever holds it while waiting for a history.
+    private static final class OpenFiles {
+        private final int capacity;
+        private final LinkedHashMap<TransactionHistory, Boolean> histories =
+                new LinkedHashMap<TransactionHistory, Boolean>(16, 0.75f, true);
+
+        OpenFiles(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void used(TransactionHistory history) {
+            List<TransactionHistory> evicted = null;
+            synchronized (histories) {
+                histories.put(history, Boolean.TRUE);
+                Iterator<TransactionHistory> eldest = histories.keySet().iterator();
+                while (histories.size() > capacity) {
+                    if (evicted == null) {
+                        evicted = new ArrayList<TransactionHistory>();
+                    }
+                    evicted.add(eldest.next());
+                    eldest.remove();
+                }
+            }
+            if (evicted != null) {
+                for (TransactionHistory old : evicted) {
+                    old.evict();
+                }
+            }
+        }
+
+        void remove(TransactionHistory history) {
+            synchronized (histories) {
+                histories.remove(history);
+            }
+        }
+    }
+}
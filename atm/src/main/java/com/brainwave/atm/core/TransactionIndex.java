@@ -0,0 +1,193 @@
+package com.brainwave.atm.core;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Secondary indexes over the histories of all of a bank's accounts, so that
+// queries like "transfers from X above Rs 50,000 last week" or "everything
+// over Rs 1,00,000 in the last hour" read the entries that match instead of
+// every account's whole history.
+//
+// Two levels:
+//   - bank-wide, which accounts to look at: a skip list from each minute to
+//     the accounts with entries in it, and an inverted index from each
+//     counterparty to the accounts whose history names it
+//   - per account (HistoryIndex), which entries to read: a bitmap per type
+//     and the positions of each counterparty's entries, with the date range
+//     found by binary search in the history itself
+// Amounts are checked on the entries read.
+//
+// Nothing is indexed until it is asked for: an account's indexes are built
+// from its history the first time a query touches it, and the first query
+// that spans accounts builds every account's. Building reads the history file
+// a chunk at a time outside the history's monitor, so the account's adds
+// never wait for more than one chunk. From then on each new history entry
+// updates them as it is added, which costs a bit set and, once a minute per
+// account, a skip list lookup; accounts that are never queried pay nothing.
+// The indexes are in memory only and are rebuilt after a restart.
+//
+// They cover a retention window of the last atm.index.days days (default
+// 31), so their size follows the traffic of the window, not the age of the
+// bank: queries only find entries inside it, older minutes are dropped as new
+// ones come in, each account's index drops its old days as it adds a new day,
+// and the first query of a day trims the accounts that have been idle.
+// Statements and transactionsBetween still read whole histories.
+public class TransactionIndex {
+    static final long MINUTE = 60_000;
+    private static final long DAY = 86_400_000L;
+    private static final Comparator<TransactionQuery.Match> NEWEST_FIRST = new Comparator<TransactionQuery.Match>() {
+        public int compare(TransactionQuery.Match a, TransactionQuery.Match b) {
+            return Long.compare(b.getTransaction().getTimestampMillis(), a.getTransaction().getTimestampMillis());
+        }
+    };
+
+    private final Map<String, Account> accounts;
+    private final ConcurrentSkipListMap<Long, Set<Account>> byMinute = new ConcurrentSkipListMap<Long, Set<Account>>();
+    private final Map<String, Set<Account>> byCounterparty = new ConcurrentHashMap<String, Set<Account>>();
+    // Accounts whose HistoryIndex has been built; never more than accounts.size()
+    private final AtomicLong indexed = new AtomicLong();
+    private final long retentionMillis;
+    // Day of the last sweep over idle accounts
+    private final AtomicLong swept = new AtomicLong(Long.MIN_VALUE);
+
+    // accounts must be safe to read while the bank changes it
+    public TransactionIndex(Map<String, Account> accounts) {
+        this(accounts, Integer.getInteger("atm.index.days", 31));
+    }
+
+    public TransactionIndex(Map<String, Account> accounts, int retentionDays) {
+        this.accounts = accounts;
+        this.retentionMillis = Math.max(1, retentionDays) * DAY;
+    }
+
+    // The newest query.getLimit() entries matching query, newest first;
+    // none from before the retention window
+    public List<TransactionQuery.Match> find(TransactionQuery query) {
+        long horizon = horizon();
+        sweep(horizon);
+        long fromMillis = query.getFrom() == null ? horizon : Math.max(horizon, toMillis(query.getFrom()));
+        long toMillis = query.getTo() == null ? Long.MAX_VALUE : toMillis(query.getTo());
+        List<TransactionQuery.Match> matches = new ArrayList<TransactionQuery.Match>();
+        if (fromMillis >= toMillis || query.getLimit() <= 0) {
+            return matches;
+        }
+
+        Collection<Account> candidates;
+        if (query.getAccount() != null) {
+            Account account = accounts.get(query.getAccount());
+            candidates = account == null ? Collections.<Account>emptySet() : Collections.singleton(account);
+        } else {
+            indexAll();
+            if (query.getCounterparty() != null) {
+                Set<Account> dealtWith = byCounterparty.get(query.getCounterparty());
+                candidates = dealtWith == null ? Collections.<Account>emptySet() : dealtWith;
+            } else {
+                Set<Account> active = new HashSet<Account>();
+                long last = toMillis == Long.MAX_VALUE ? Long.MAX_VALUE : Math.floorDiv(toMillis - 1, MINUTE);
+                for (Set<Account> minute : byMinute.subMap(Math.floorDiv(fromMillis, MINUTE), true, last, true).values()) {
+                    active.addAll(minute);
+                }
+                candidates = active;
+            }
+        }
+
+        for (Account account : candidates) {
+            TransactionHistory history = account.getTransactionHistory();
+            history.find(history.index(this, account), query, fromMillis, toMillis, account.getAccountNumber(), matches);
+        }
+        return newest(matches, query.getLimit());
+    }
+
+    // Sorts matches newest first and keeps the first limit of them
+    static List<TransactionQuery.Match> newest(List<TransactionQuery.Match> matches, int limit) {
+        Collections.sort(matches, NEWEST_FIRST);
+        return matches.size() <= limit ? matches : new ArrayList<TransactionQuery.Match>(matches.subList(0, limit));
+    }
+
+    // Called by TransactionHistory when it has built an account's index
+    void built() {
+        indexed.incrementAndGet();
+    }
+
+    // Oldest time the indexes cover
+    long horizon() {
+        return System.currentTimeMillis() - retentionMillis;
+    }
+
+    // Called by HistoryIndex, under the account's history monitor
+    void activeIn(long minute, Account account) {
+        Set<Account> active = byMinute.get(minute);
+        if (active == null) {
+            Set<Account> created = ConcurrentHashMap.newKeySet();
+            active = byMinute.putIfAbsent(minute, created);
+            if (active == null) {
+                active = created;
+                // a new minute: let go of those that left the window
+                byMinute.headMap(Math.floorDiv(horizon(), MINUTE)).clear();
+            }
+        }
+        active.add(account);
+    }
+
+    void dealtWith(String counterparty, Account account) {
+        Set<Account> dealtWith = byCounterparty.get(counterparty);
+        if (dealtWith == null) {
+            Set<Account> created = ConcurrentHashMap.newKeySet();
+            dealtWith = byCounterparty.putIfAbsent(counterparty, created);
+            if (dealtWith == null) {
+                dealtWith = created;
+            }
+        }
+        dealtWith.add(account);
+    }
+
+    // Called by HistoryIndex when the account's last entry naming
+    // counterparty has left the window. The set itself stays: there is at
+    // most one per account.
+    void forgot(String counterparty, Account account) {
+        Set<Account> dealtWith = byCounterparty.get(counterparty);
+        if (dealtWith != null) {
+            dealtWith.remove(account);
+        }
+    }
+
+    // Once a day, trims the indexes of accounts that have had no entry to
+    // trim them since
+    private void sweep(long horizon) {
+        long today = Math.floorDiv(System.currentTimeMillis(), DAY);
+        long last = swept.get();
+        if (last == today || !swept.compareAndSet(last, today)) {
+            return;
+        }
+        byMinute.headMap(Math.floorDiv(horizon, MINUTE)).clear();
+        for (Account account : accounts.values()) {
+            account.getTransactionHistory().trimIndex(horizon);
+        }
+    }
+
+    // Builds the index of every account that doesn't have one yet. Accounts
+    // are never removed, so once every account is counted this is one compare.
+    private void indexAll() {
+        if (indexed.get() >= accounts.size()) {
+            return;
+        }
+        for (Account account : accounts.values()) {
+            account.getTransactionHistory().index(this, account);
+        }
+    }
+
+    private static long toMillis(LocalDateTime timestamp) {
+        return timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
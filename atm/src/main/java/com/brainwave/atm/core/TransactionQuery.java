@@ -0,0 +1,112 @@
+package com.brainwave.atm.core;
+
+import java.time.LocalDateTime;
+
+// A search for history entries across one or all accounts, answered by
+// BankService.findTransactions from the bank's TransactionIndex. Start from
+// all() and narrow it down; every method returns a new query:
+//
+//   TransactionQuery.all().account("1234567890").type(TransactionType.TRANSFER_OUT)
+//                   .amountAtLeast(50000).between(weekAgo, null)
+//
+// Amounts passed in are rupees, like the rest of BankService. A query without
+// an account looks at every account that has entries in its date range, or
+// with a counterparty every account whose history names it.
+public final class TransactionQuery {
+    public static final int DEFAULT_LIMIT = 100;
+
+    private final String account;
+    private final String counterparty;
+    private final TransactionType type;
+    private final long minAmount;
+    private final long maxAmount;
+    private final LocalDateTime from;
+    private final LocalDateTime to;
+    private final int limit;
+
+    private TransactionQuery(String account, String counterparty, TransactionType type, long minAmount,
+                             long maxAmount, LocalDateTime from, LocalDateTime to, int limit) {
+        this.account = account;
+        this.counterparty = counterparty;
+        this.type = type;
+        this.minAmount = minAmount;
+        this.maxAmount = maxAmount;
+        this.from = from;
+        this.to = to;
+        this.limit = limit;
+    }
+
+    // Every entry of every account, newest DEFAULT_LIMIT of them
+    public static TransactionQuery all() {
+        return new TransactionQuery(null, null, null, 0, Long.MAX_VALUE, null, null, DEFAULT_LIMIT);
+    }
+
+    // Only entries of this account
+    public TransactionQuery account(String accountNumber) {
+        return new TransactionQuery(accountNumber, counterparty, type, minAmount, maxAmount, from, to, limit);
+    }
+
+    // Only transfers to or from this account
+    public TransactionQuery counterparty(String accountNumber) {
+        return new TransactionQuery(account, accountNumber, type, minAmount, maxAmount, from, to, limit);
+    }
+
+    public TransactionQuery type(TransactionType type) {
+        return new TransactionQuery(account, counterparty, type, minAmount, maxAmount, from, to, limit);
+    }
+
+    public TransactionQuery amountAtLeast(double rupees) {
+        return new TransactionQuery(account, counterparty, type, Money.toPaise(rupees), maxAmount, from, to, limit);
+    }
+
+    public TransactionQuery amountAtMost(double rupees) {
+        return new TransactionQuery(account, counterparty, type, minAmount, Money.toPaise(rupees), from, to, limit);
+    }
+
+    // Only entries with from <= timestamp < to; null leaves that end open
+    public TransactionQuery between(LocalDateTime from, LocalDateTime to) {
+        return new TransactionQuery(account, counterparty, type, minAmount, maxAmount, from, to, limit);
+    }
+
+    // At most limit entries, the newest ones
+    public TransactionQuery limit(int limit) {
+        return new TransactionQuery(account, counterparty, type, minAmount, maxAmount, from, to, limit);
+    }
+
+    public String getAccount() { return account; }
+    public String getCounterparty() { return counterparty; }
+    public TransactionType getType() { return type; }
+    public long getMinAmountPaise() { return minAmount; }
+    public long getMaxAmountPaise() { return maxAmount; }
+    public LocalDateTime getFrom() { return from; }
+    public LocalDateTime getTo() { return to; }
+    public int getLimit() { return limit; }
+
+    // Whether an entry of the date range passes the other conditions
+    boolean matches(Transaction transaction) {
+        long amount = transaction.getAmountPaise();
+        return (type == null || transaction.getTransactionType() == type)
+               && (counterparty == null || counterparty.equals(transaction.getCounterparty()))
+               && amount >= minAmount && amount <= maxAmount;
+    }
+
+    // One entry found, with the account whose history holds it
+    public static final class Match {
+        private final String account;
+        private final Transaction transaction;
+
+        public Match(String account, Transaction transaction) {
+            this.account = account;
+            this.transaction = transaction;
+        }
+
+        public String getAccount() { return account; }
+        public Transaction getTransaction() { return transaction; }
+
+        // "<account> | <entry>"
+        @Override
+        public String toString() {
+            return account + " | " + transaction;
+        }
+    }
+}
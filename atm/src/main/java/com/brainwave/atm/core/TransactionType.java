@@ -0,0 +1,51 @@
+package com.brainwave.atm.core;
+
+// Kind of a history entry. The code is what gets stored; the label (plus the
+// counterparty for transfers) is only built when an entry is displayed.
+public enum TransactionType {
+    WITHDRAWAL(1, "WITHDRAWAL"),
+    DEPOSIT(2, "DEPOSIT"),
+    TRANSFER_OUT(3, "TRANSFER OUT to "),
+    TRANSFER_IN(4, "TRANSFER IN from "),
+    BALANCE_INQUIRY(5, "BALANCE INQUIRY"),
+    PIN_CHANGE(6, "PIN CHANGE"),
+    // The counterparty of an interest entry is the business day it is for
+    INTEREST(7, "INTEREST for ");
+
+    private static final TransactionType[] BY_CODE = new TransactionType[8];
+    static {
+        for (TransactionType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final byte code;
+    private final String label;
+
+    TransactionType(int code, String label) {
+        this.code = (byte) code;
+        this.label = label;
+    }
+
+    public byte getCode() { return code; }
+
+    // Display text, e.g. "TRANSFER OUT to 1234567890"
+    public String describe(String counterparty) {
+        return counterparty == null ? label : label + counterparty;
+    }
+
+    void describeTo(StringBuilder out, String counterparty) {
+        out.append(label);
+        if (counterparty != null) {
+            out.append(counterparty);
+        }
+    }
+
+    public static TransactionType fromCode(byte code) {
+        TransactionType type = code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown transaction type code " + code);
+        }
+        return type;
+    }
+}
@@ -0,0 +1,134 @@
+package com.brainwave.atm.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Rolling 24-hour cash withdrawal limit of one account.
+//
+// Withdrawals are totalled in hourly buckets, one long each in an
+// AtomicLongArray: the hour it counts (upper 24 bits, hours since the epoch)
+// and the paise withdrawn in that hour (lower 40 bits). A bucket left from an
+// earlier lap of the array is recognized by its hour and counts as empty, so
+// nothing ever has to clear it. The window is the current hour and the 23
+// before it: an amount stops counting 23 to 24 hours after it was withdrawn.
+//
+// Taking an amount against the limit reads the buckets and CASes the current
+// hour's: no lock and nothing allocated. Two withdrawals racing on one account
+// update the same bucket, so they can't both slip under the limit, except
+// across the turn of an hour, where the limit may be overshot by one of them.
+final class WithdrawalLimit {
+    static final int BUCKETS = 24;
+    private static final long HOUR_MILLIS = 3_600_000L;
+    private static final int AMOUNT_BITS = 40;
+    private static final long AMOUNT_MASK = (1L << AMOUNT_BITS) - 1;
+
+    // Paise per rolling 24 hours, from -Datm.limit.daily in rupees (default
+    // 40000; 0 for no limit)
+    static final long DAILY_LIMIT = Math.min(Math.max(0, Long.getLong("atm.limit.daily", 40_000)) * 100, AMOUNT_MASK);
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    // Counts paise withdrawn at now against the limit and returns the hour it
+    // was counted in, for release() should the debit fail after all; -1 (and
+    // nothing counted) if it would take the account past the limit
+    long reserve(long paise, long now) {
+        if (DAILY_LIMIT == 0) {
+            return 0;
+        }
+        long hour = now / HOUR_MILLIS;
+        int slot = (int) (hour % BUCKETS);
+        while (true) {
+            long current = buckets.get(slot);
+            long used = usedBefore(hour, slot) + (hourOf(current) == hour ? amountOf(current) : 0);
+            if (paise > DAILY_LIMIT - used) {
+                return -1;
+            }
+            long inHour = hourOf(current) == hour ? amountOf(current) + paise : paise;
+            if (buckets.compareAndSet(slot, current, hour << AMOUNT_BITS | inHour)) {
+                return hour;
+            }
+        }
+    }
+
+    // Takes back paise reserved in hour, unless that hour has left the window
+    void release(long paise, long hour) {
+        if (DAILY_LIMIT == 0) {
+            return;
+        }
+        int slot = (int) (hour % BUCKETS);
+        while (true) {
+            long current = buckets.get(slot);
+            if (hourOf(current) != hour) {
+                return;
+            }
+            long inHour = Math.max(0, amountOf(current) - paise);
+            if (buckets.compareAndSet(slot, current, hour << AMOUNT_BITS | inHour)) {
+                return;
+            }
+        }
+    }
+
+    // Paise that may still be withdrawn at now; Long.MAX_VALUE without a limit
+    long remaining(long now) {
+        if (DAILY_LIMIT == 0) {
+            return Long.MAX_VALUE;
+        }
+        long hour = now / HOUR_MILLIS;
+        int slot = (int) (hour % BUCKETS);
+        long current = buckets.get(slot);
+        long used = usedBefore(hour, slot) + (hourOf(current) == hour ? amountOf(current) : 0);
+        return Math.max(0, DAILY_LIMIT - used);
+    }
+
+    // Counts the withdrawals in history that are still inside the window at
+    // now again; used at start-up, once the history has been rebuilt
+    void restore(TransactionHistory history, long now) {
+        if (DAILY_LIMIT == 0) {
+            return;
+        }
+        long hour = now / HOUR_MILLIS;
+        for (Transaction transaction : history.since((hour - BUCKETS + 1) * HOUR_MILLIS)) {
+            if (transaction.getTransactionType() != TransactionType.WITHDRAWAL) {
+                continue;
+            }
+            long at = Math.min(transaction.getTimestampMillis() / HOUR_MILLIS, hour);
+            int slot = (int) (at % BUCKETS);
+            long current = buckets.get(slot);
+            long inHour = hourOf(current) == at ? amountOf(current) : 0;
+            inHour = Math.min(inHour + transaction.getAmountPaise(), AMOUNT_MASK);
+            buckets.set(slot, at << AMOUNT_BITS | inHour);
+        }
+    }
+
+    // restore() for each of accounts, as of now
+    static void restore(Iterable<Account> accounts) {
+        if (DAILY_LIMIT == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Account account : accounts) {
+            account.getWithdrawalLimit().restore(account.getTransactionHistory(), now);
+        }
+    }
+
+    // Paise in the window's buckets other than the current hour's
+    private long usedBefore(long hour, int slot) {
+        long used = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (i != slot) {
+                long bucket = buckets.get(i);
+                if (hour - hourOf(bucket) < BUCKETS) {
+                    used += amountOf(bucket);
+                }
+            }
+        }
+        return used;
+    }
+
+    private static long hourOf(long bucket) {
+        return bucket >>> AMOUNT_BITS;
+    }
+
+    private static long amountOf(long bucket) {
+        return bucket & AMOUNT_MASK;
+    }
+}
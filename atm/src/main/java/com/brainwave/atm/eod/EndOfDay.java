@@ -0,0 +1,537 @@
+package com.brainwave.atm.eod;
+
+import com.brainwave.atm.core.BankEngine;
+import com.brainwave.atm.core.BankService;
+import com.brainwave.atm.core.Money;
+import com.brainwave.atm.core.Operation;
+import com.brainwave.atm.core.Outcome;
+import com.brainwave.atm.core.Transaction;
+import com.brainwave.atm.core.TransactionType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.LockSupport;
+
+// End-of-day run: closes a business day for every account, in parallel on a
+// ForkJoinPool that splits the account list down to leaves of LEAF accounts.
+//
+// Each account's history is replayed, oldest first, a chunk at a time. Its
+// balance at the cut (the end of the day) is its opening balance plus the
+// amounts of the entries before the cut, and the replay of every entry has to
+// come out at the balance the account holds now. Only amounts are summed, so
+// entries that reached the history in a different order than they were
+// applied (two withdrawals racing on the in-memory engine) are not a
+// mismatch. Opening balances aren't recorded; the oldest entry implies it.
+//
+// A run with a checkpoint file doesn't start from the oldest entry again.
+// For each verified account it keeps how many entries came before the cut
+// and the balance they added up to; a later day's run starts from there,
+// once it has seen that the history still holds exactly that many entries
+// before that cut (otherwise it replays everything, as without a file).
+//
+// The cut is in the past and every entry carries the time it was applied
+// (both legs of a transfer the same time), so the balances at the cut add up
+// to a consistent total however much traffic runs while they are read. Only
+// cross-shard transfers of the sharded engine record their legs separately.
+// Nothing is locked beyond the bank's own calls: an account whose balance or
+// history moved while it was being checked is checked again, and reported as
+// busy if it keeps moving.
+//
+// With a rate, the day's interest on each verified account's balance at the
+// cut is then credited as INTEREST operations for the day, one applyBatch per
+// leaf, so posting holds each stripe only briefly. The engines journal the
+// day with each posting and decline a day an account already has interest
+// for, so running a day again (or finishing one that crashed halfway) never
+// pays twice.
+//
+//   java -cp atm.jar com.brainwave.atm.eod.EndOfDay [--date 2024-03-31] [--rate 3.5]
+//        [--threads n] [--data dir] [--engine name] [--checkpoints file]
+// closes the day (yesterday by default) and posts interest at rate percent a
+// year, if given. A durable engine keeps checkpoints in eod-checkpoints in
+// the data directory unless told otherwise. It opens the data directory
+// itself, so it refuses to start while a server holds it; run() works on any
+// open bank, live or not.
+public class EndOfDay {
+    private static final LocalDateTime EARLIEST = LocalDateTime.of(1970, 1, 1, 0, 0);
+    // Accounts per fork/join leaf, and so per interest batch
+    private static final int LEAF = 256;
+    // History entries per bank call while replaying
+    private static final int CHUNK = 1000;
+    // Checks of an account before it is reported as busy or mismatched
+    private static final int ATTEMPTS = 5;
+    private static final long RETRY_NANOS = 1_000_000;
+    // Mismatched and busy accounts listed by number in a result
+    private static final int MAX_LISTED = 20;
+    private static final long BASIS_POINT_DAYS = 10_000L * 365;
+
+    private static final int CHECKPOINT_MAGIC = 0x454f4443; // "EODC"
+
+    private final BankService bank;
+    private final int threads;
+    // Null without a checkpoint file
+    private final Path checkpointFile;
+    private final Map<String, Checkpoint> checkpoints = new ConcurrentHashMap<String, Checkpoint>();
+
+    public EndOfDay(BankService bank, int threads) {
+        this.bank = bank;
+        this.threads = Math.max(1, threads);
+        this.checkpointFile = null;
+    }
+
+    // Reads the checkpoints left in checkpointFile by earlier runs, if any;
+    // run() writes it back
+    public EndOfDay(BankService bank, int threads, Path checkpointFile) throws IOException {
+        this.bank = bank;
+        this.threads = Math.max(1, threads);
+        this.checkpointFile = checkpointFile;
+        if (Files.exists(checkpointFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpointFile)))) {
+                if (in.readInt() != CHECKPOINT_MAGIC) {
+                    throw new IOException("Not an end-of-day checkpoint file: " + checkpointFile);
+                }
+                for (int count = in.readInt(); count > 0; count--) {
+                    String account = in.readUTF();
+                    checkpoints.put(account, new Checkpoint(in.readLong(), in.readLong(), in.readLong()));
+                }
+            }
+        }
+    }
+
+    // Where an account's replay can resume: the number of history entries
+    // before the end of day, and the balance they leave
+    private static final class Checkpoint {
+        final long day;
+        final long entries;
+        final long balance;
+
+        Checkpoint(long day, long entries, long balance) {
+            this.day = day;
+            this.entries = entries;
+            this.balance = balance;
+        }
+    }
+
+    // Closes day; with basisPoints > 0, posts a day's interest at that yearly
+    // rate (350 = 3.5%) to every verified account
+    public Result run(LocalDate day, int basisPoints) {
+        ZoneId zone = ZoneId.systemDefault();
+        long dayStart = day.atStartOfDay(zone).toInstant().toEpochMilli();
+        long cut = day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        if (cut > System.currentTimeMillis()) {
+            throw new IllegalArgumentException(day + " has not ended yet");
+        }
+
+        List<String> accounts = bank.getAccountNumbers();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Result result;
+        try {
+            result = pool.invoke(new Close(accounts, day, dayStart, cut, basisPoints, 0, accounts.size()));
+            result.day = day;
+        } finally {
+            pool.shutdown();
+        }
+        if (checkpointFile != null) {
+            try {
+                saveCheckpoints();
+            } catch (IOException e) {
+                // the next run replays more; nothing is lost
+                System.err.println("Could not save end-of-day checkpoints: " + e);
+            }
+        }
+        return result;
+    }
+
+    // Replaces the checkpoint file, so a crash leaves the old one or the new one
+    private void saveCheckpoints() throws IOException {
+        Path temporary = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            List<Map.Entry<String, Checkpoint>> entries = new ArrayList<Map.Entry<String, Checkpoint>>(checkpoints.entrySet());
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Checkpoint> entry : entries) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().day);
+                out.writeLong(entry.getValue().entries);
+                out.writeLong(entry.getValue().balance);
+            }
+        }
+        Files.move(temporary, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Interest for one day on balance, in whole paise
+    static long interest(long balance, int basisPoints) {
+        if (balance <= 0 || basisPoints <= 0) {
+            return 0;
+        }
+        // balance * basisPoints / BASIS_POINT_DAYS without overflowing
+        return balance / BASIS_POINT_DAYS * basisPoints + balance % BASIS_POINT_DAYS * basisPoints / BASIS_POINT_DAYS;
+    }
+
+    // Totals of a run (or of the part of it one task did)
+    public static final class Result {
+        private LocalDate day;
+        private long accounts;
+        private long verified;
+        private long mismatched;
+        private long busy;
+        private long holdings;
+        private final long[] dayCounts = new long[TransactionType.values().length];
+        private final long[] dayAmounts = new long[TransactionType.values().length];
+        private long interestAccounts;
+        private long interestPaise;
+        private long interestFailed;
+        private long interestSkipped;
+        private long replayed;
+        private final List<String> listed = new ArrayList<String>();
+
+        public LocalDate getDay() { return day; }
+        public long getAccounts() { return accounts; }
+        // Accounts whose history replays to their current balance
+        public long getVerified() { return verified; }
+        public long getMismatched() { return mismatched; }
+        // Accounts that kept changing while they were checked
+        public long getBusy() { return busy; }
+        // Sum of all balances at the cut, in paise
+        public long getHoldings() { return holdings; }
+        public long getDayCount(TransactionType type) { return dayCounts[type.ordinal()]; }
+        // Sum of the day's amounts of one type, in paise
+        public long getDayAmount(TransactionType type) { return dayAmounts[type.ordinal()]; }
+        public long getInterestAccounts() { return interestAccounts; }
+        public long getInterestPaise() { return interestPaise; }
+        public long getInterestFailed() { return interestFailed; }
+        // Accounts that already had interest for the day
+        public long getInterestSkipped() { return interestSkipped; }
+        // History entries read, fewer where a checkpoint could be used
+        public long getReplayed() { return replayed; }
+
+        // Up to MAX_LISTED mismatched or busy accounts, as "number (reason)"
+        public List<String> getProblems() { return listed; }
+
+        private void problem(String account, String reason) {
+            if (listed.size() < MAX_LISTED) {
+                listed.add(account + " (" + reason + ")");
+            }
+        }
+
+        private void add(Result other) {
+            accounts += other.accounts;
+            verified += other.verified;
+            mismatched += other.mismatched;
+            busy += other.busy;
+            holdings += other.holdings;
+            for (int i = 0; i < dayCounts.length; i++) {
+                dayCounts[i] += other.dayCounts[i];
+                dayAmounts[i] += other.dayAmounts[i];
+            }
+            interestAccounts += other.interestAccounts;
+            interestPaise += other.interestPaise;
+            interestFailed += other.interestFailed;
+            interestSkipped += other.interestSkipped;
+            replayed += other.replayed;
+            for (String problem : other.listed) {
+                if (listed.size() < MAX_LISTED) {
+                    listed.add(problem);
+                }
+            }
+        }
+
+        public void report(PrintStream out) {
+            out.printf("End of day %s%n", day);
+            out.printf("%-20s %12d%n", "Accounts", accounts);
+            out.printf("%-20s %12d%n", "Verified", verified);
+            out.printf("%-20s %12d%n", "Mismatched", mismatched);
+            out.printf("%-20s %12d%n", "Busy", busy);
+            out.printf("%-20s %12d%n", "Entries replayed", replayed);
+            out.printf("%-20s %24s%n", "Holdings (Rs)", Money.format(holdings));
+            out.printf("%-20s %12s %24s%n", "Day's entries", "Count", "Amount (Rs)");
+            for (TransactionType type : TransactionType.values()) {
+                if (dayCounts[type.ordinal()] > 0) {
+                    out.printf("  %-18s %12d %24s%n", type, dayCounts[type.ordinal()],
+                               Money.format(dayAmounts[type.ordinal()]));
+                }
+            }
+            if (interestAccounts > 0 || interestFailed > 0 || interestSkipped > 0) {
+                out.printf("%-20s %12d %24s%n", "Interest posted", interestAccounts, Money.format(interestPaise));
+                out.printf("%-20s %12d%n", "Already posted", interestSkipped);
+                out.printf("%-20s %12d%n", "Interest failed", interestFailed);
+            }
+            for (String problem : listed) {
+                out.println("  " + problem);
+            }
+            out.flush();
+        }
+    }
+
+    // One account's history folded into sums; reused for every account of a leaf
+    private static final class Replay {
+        final long[] dayCounts = new long[TransactionType.values().length];
+        final long[] dayAmounts = new long[TransactionType.values().length];
+        boolean started;
+        long balance;
+        long balanceAtCut;
+        // Entries before the cut, counting those behind a checkpoint
+        long beforeCut;
+        long read;
+
+        void reset(long currentBalance) {
+            started = false;
+            // Without history the account still holds what it was opened with
+            balance = currentBalance;
+            balanceAtCut = currentBalance;
+            beforeCut = 0;
+            read = 0;
+            for (int i = 0; i < dayCounts.length; i++) {
+                dayCounts[i] = 0;
+                dayAmounts[i] = 0;
+            }
+        }
+
+        // Continues from a checkpoint instead of the oldest entry
+        void resume(Checkpoint checkpoint) {
+            started = true;
+            balance = checkpoint.balance;
+            balanceAtCut = checkpoint.balance;
+            beforeCut = checkpoint.entries;
+        }
+
+        void add(Transaction transaction, long dayStart, long cut) {
+            long amount = transaction.getAmountPaise();
+            long delta;
+            switch (transaction.getTransactionType()) {
+                case DEPOSIT: case TRANSFER_IN: case INTEREST: delta = amount; break;
+                case WITHDRAWAL: case TRANSFER_OUT: delta = -amount; break;
+                default: delta = 0; break;
+            }
+            if (!started) {
+                started = true;
+                balance = transaction.getBalanceAfterPaise() - delta;
+                balanceAtCut = balance;
+            }
+            balance += delta;
+            read++;
+            long timestamp = transaction.getTimestampMillis();
+            if (timestamp < cut) {
+                balanceAtCut += delta;
+                beforeCut++;
+                if (timestamp >= dayStart) {
+                    int type = transaction.getTransactionType().ordinal();
+                    dayCounts[type]++;
+                    dayAmounts[type] += amount;
+                }
+            }
+        }
+    }
+
+    private final class Close extends RecursiveTask<Result> {
+        private final List<String> accounts;
+        private final LocalDate day;
+        private final long dayStart;
+        private final long cut;
+        private final int basisPoints;
+        private final int from;
+        private final int to;
+
+        Close(List<String> accounts, LocalDate day, long dayStart, long cut, int basisPoints, int from, int to) {
+            this.accounts = accounts;
+            this.day = day;
+            this.dayStart = dayStart;
+            this.cut = cut;
+            this.basisPoints = basisPoints;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Result compute() {
+            if (to - from <= LEAF) {
+                return closeLeaf();
+            }
+            int middle = (from + to) >>> 1;
+            Close left = new Close(accounts, day, dayStart, cut, basisPoints, from, middle);
+            left.fork();
+            Result result = new Close(accounts, day, dayStart, cut, basisPoints, middle, to).compute();
+            result.add(left.join());
+            return result;
+        }
+
+        private Result closeLeaf() {
+            Result result = new Result();
+            Replay replay = new Replay();
+            List<Operation> interest = new ArrayList<Operation>();
+            for (int i = from; i < to; i++) {
+                String account = accounts.get(i);
+                String problem = check(account, replay);
+                result.accounts++;
+                result.replayed += replay.read;
+                result.holdings += replay.balanceAtCut;
+                for (int t = 0; t < replay.dayCounts.length; t++) {
+                    result.dayCounts[t] += replay.dayCounts[t];
+                    result.dayAmounts[t] += replay.dayAmounts[t];
+                }
+                if (problem == null) {
+                    result.verified++;
+                    checkpoint(account, replay);
+                    long paise = interest(replay.balanceAtCut, basisPoints);
+                    if (paise > 0) {
+                        interest.add(Operation.interest(account, day, paise));
+                    }
+                } else {
+                    if (problem.equals("busy")) {
+                        result.busy++;
+                    } else {
+                        result.mismatched++;
+                    }
+                    result.problem(account, problem);
+                }
+            }
+
+            if (!interest.isEmpty()) {
+                List<Outcome> outcomes = bank.applyBatch(interest);
+                for (int i = 0; i < outcomes.size(); i++) {
+                    if (outcomes.get(i) == Outcome.OK) {
+                        result.interestAccounts++;
+                        result.interestPaise += interest.get(i).getAmountPaise();
+                    } else if (outcomes.get(i) == Outcome.ALREADY_POSTED) {
+                        result.interestSkipped++; // an earlier run posted it
+                    } else {
+                        result.interestFailed++;
+                    }
+                }
+            }
+            return result;
+        }
+
+        // Replays the account's history into replay; returns null if it comes
+        // out at the current balance, otherwise why not
+        private String check(String account, Replay replay) {
+            String problem = null;
+            for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                if (attempt > 0) {
+                    LockSupport.parkNanos(RETRY_NANOS);
+                }
+                long before = bank.getBalancePaise(account);
+                // Entries stamped after end are left for the next check
+                LocalDateTime end = LocalDateTime.now().plusNanos(1_000_000);
+                replay.reset(before);
+                LocalDateTime start = resume(account, replay);
+                long count = bank.countTransactionsBetween(account, start, end);
+                long done = 0;
+                while (done < count) {
+                    int limit = (int) Math.min(CHUNK, count - done);
+                    // Offsets count from the newest entry of the range
+                    List<Transaction> chunk = bank.transactionsBetween(account, start, end,
+                                                                       count - done - limit, limit);
+                    for (int i = chunk.size() - 1; i >= 0; i--) {
+                        replay.add(chunk.get(i), dayStart, cut);
+                    }
+                    done += limit;
+                }
+                long after = bank.getBalancePaise(account);
+                if (before != after || bank.countTransactionsBetween(account, start, end) != count) {
+                    problem = "busy";
+                } else if (replay.balance != after) {
+                    // possibly an entry still on its way into the history
+                    problem = "history replays to " + Money.format(replay.balance)
+                              + ", balance is " + Money.format(after);
+                } else {
+                    return null;
+                }
+            }
+            return problem;
+        }
+
+        // Starts replay from the account's checkpoint of an earlier day, if
+        // the history still agrees with it, and returns where to read from
+        private LocalDateTime resume(String account, Replay replay) {
+            Checkpoint checkpoint = checkpoints.get(account);
+            if (checkpoint == null || checkpoint.day >= day.toEpochDay()) {
+                return EARLIEST;
+            }
+            LocalDateTime checkpointEnd = LocalDate.ofEpochDay(checkpoint.day).plusDays(1).atStartOfDay();
+            if (bank.countTransactionsBetween(account, EARLIEST, checkpointEnd) != checkpoint.entries) {
+                return EARLIEST;
+            }
+            replay.resume(checkpoint);
+            return checkpointEnd;
+        }
+
+        // Keeps where a verified account stood at the cut for later days,
+        // unless a later day's run already left a checkpoint
+        private void checkpoint(String account, Replay replay) {
+            if (checkpointFile == null) {
+                return;
+            }
+            Checkpoint checkpoint = checkpoints.get(account);
+            if (checkpoint == null || checkpoint.day <= day.toEpochDay()) {
+                checkpoints.put(account, new Checkpoint(day.toEpochDay(), replay.beforeCut, replay.balanceAtCut));
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        LocalDate day = LocalDate.now().minusDays(1);
+        int basisPoints = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path checkpoints = null;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--date": day = LocalDate.parse(value); break;
+                case "--rate": basisPoints = (int) Math.round(Double.parseDouble(value) * 100); break;
+                case "--threads": threads = Integer.parseInt(value); break;
+                case "--data": System.setProperty("atm.data", value); break;
+                case "--engine": System.setProperty("atm.engine", value); break;
+                case "--checkpoints": checkpoints = Paths.get(value); break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        BankService bank;
+        try {
+            bank = BankEngine.fromSystemProperties();
+        } catch (UncheckedIOException e) {
+            // most likely a server still has the data directory
+            System.err.println(e.getMessage() + ": " + e.getCause().getMessage());
+            System.exit(1);
+            return;
+        }
+        if (checkpoints == null && BankEngine.fromName(System.getProperty("atm.engine", "journaled")).isDurable()) {
+            checkpoints = Paths.get(System.getProperty("atm.data", "atm-data")).resolve("eod-checkpoints");
+        }
+        try {
+            long start = System.nanoTime();
+            EndOfDay endOfDay = checkpoints == null ? new EndOfDay(bank, threads)
+                                                    : new EndOfDay(bank, threads, checkpoints);
+            Result result = endOfDay.run(day, basisPoints);
+            result.report(System.out);
+            System.out.printf("Closed %d accounts in %.1fs%n", result.getAccounts(), (System.nanoTime() - start) / 1e9);
+        } catch (IOException e) {
+            System.err.println("Could not read " + checkpoints + ": " + e.getMessage());
+            bank.close();
+            System.exit(1);
+        } finally {
+            bank.close();
+        }
+    }
+}
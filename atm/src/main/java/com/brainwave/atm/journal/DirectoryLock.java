@@ -0,0 +1,63 @@
+package com.brainwave.atm.journal;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Exclusive hold on a data directory, so only one process at a time replays,
+// appends to and compacts the journal and history files in it.
+//
+// The hold is an OS file lock on a "lock" file in the directory. The OS drops
+// it when the process dies, so a crash never leaves the directory locked.
+// A second process fails to acquire it instead of waiting. OS locks belong to
+// the whole process, and closing any channel on the file drops them, so
+// directories held in this JVM are also tracked here and checked first.
+public final class DirectoryLock implements AutoCloseable {
+    private static final String NAME = "lock";
+    private static final Set<Path> HELD = ConcurrentHashMap.newKeySet();
+
+    private final Path directory;
+    private final FileChannel channel;
+
+    private DirectoryLock(Path directory, FileChannel channel) {
+        this.directory = directory;
+        this.channel = channel;
+    }
+
+    // Creates directory if needed and locks it; throws if anyone else holds it
+    public static DirectoryLock acquire(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path key = directory.toRealPath();
+        if (!HELD.add(key)) {
+            throw new IOException(directory + " is already open in this process");
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(key.resolve(NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (channel.tryLock() == null) {
+                throw new IOException(directory + " is in use by another process; stop it first");
+            }
+            return new DirectoryLock(key, channel);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            HELD.remove(key);
+            throw e;
+        }
+    }
+
+    // Closing the channel releases the lock
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // the lock goes with the process in any case
+        }
+        HELD.remove(directory);
+    }
+}
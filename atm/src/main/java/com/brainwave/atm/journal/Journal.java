@@ -0,0 +1,431 @@
+package com.brainwave.atm.journal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// Append-only write-ahead journal for Bank mutations.
+//
+// Records go into fixed-size memory-mapped segment files named after the first
+// sequence number they hold (journal-<seq>.log). Appending only encodes into the
+// mapping under a short lock; durability comes from a single flusher thread that
+// forces the current segment and then releases everyone waiting up to the
+// sequence it covered. While one force is in flight the next batch of appends
+// piles up behind it, so concurrent operations share fsyncs (group commit).
+//
+// Record layout (big-endian):
+//   int length | int crc32 | byte type | long sequence | long timestamp |
+//   long amount | long balance | long counterBalance |
+//   account | counterparty | pinHash | holderName  (each: short chars + UTF-16 chars)
+// PINs are only ever written as the hashes Bank stores.
+// A zero length marks the end of the data in a segment. A record may take up
+// to MAX_RECORD bytes; longer ones are refused before anything is written.
+public class Journal {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER = 8;
+    // Type, sequence, timestamp, amount, balance, counterBalance and the four
+    // string lengths
+    private static final int FIXED = 1 + 5 * 8 + 4 * 2;
+    private static final int MAX_RECORD = 4096;
+
+    private final Path directory;
+    private final int segmentSize;
+
+    // Guarded by appendLock
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ByteBuffer scratch = ByteBuffer.allocate(MAX_RECORD);
+    private final CRC32 crc = new CRC32();
+    private MappedByteBuffer segment;
+    private long nextSequence = 1;
+
+    // Group commit state
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Condition workAvailable = flushLock.newCondition();
+    private final Condition flushed = flushLock.newCondition();
+    private volatile long writtenSequence;
+    private volatile long durableSequence;
+    private volatile boolean running = true;
+    private volatile RuntimeException failure;
+    private final Thread flusher;
+
+    private Journal(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.flusher = new Thread(new Runnable() {
+            public void run() {
+                flushLoop();
+            }
+        }, "journal-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    // Opens (or creates) the journal in directory, replays every intact record
+    // from fromSequence on through handler in sequence order and leaves the
+    // journal ready to append after the last one. A torn or corrupt tail is cut off.
+    public static Journal open(Path directory, long fromSequence, JournalRecord.Handler handler) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE, fromSequence, handler);
+    }
+
+    public static Journal open(Path directory, int segmentSize, long fromSequence,
+                               JournalRecord.Handler handler) throws IOException {
+        Files.createDirectories(directory);
+        Journal journal = new Journal(directory, segmentSize);
+        journal.recover(fromSequence, handler);
+        journal.flusher.start();
+        return journal;
+    }
+
+    // Directory the segments live in
+    public Path getDirectory() {
+        return directory;
+    }
+
+    // Sequence number the next appended record will get
+    public long getNextSequence() {
+        appendLock.lock();
+        try {
+            return nextSequence;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    public long appendOpen(String account, String pinHash, String holderName, long balance) {
+        return append(JournalRecord.OPEN, account, null, 0, balance, 0, pinHash, holderName);
+    }
+
+    public long appendWithdrawal(String account, long amount, long balanceAfter) {
+        return append(JournalRecord.WITHDRAWAL, account, null, amount, balanceAfter, 0, null, null);
+    }
+
+    public long appendDeposit(String account, long amount, long balanceAfter) {
+        return append(JournalRecord.DEPOSIT, account, null, amount, balanceAfter, 0, null, null);
+    }
+
+    public long appendTransfer(String from, String to, long amount, long fromBalanceAfter, long toBalanceAfter) {
+        return append(JournalRecord.TRANSFER, from, to, amount, fromBalanceAfter, toBalanceAfter, null, null);
+    }
+
+    public long appendInterest(String account, String day, long amount, long balanceAfter) {
+        return append(JournalRecord.INTEREST, account, day, amount, balanceAfter, 0, null, null);
+    }
+
+    public long appendPinChange(String account, String pinHash) {
+        return append(JournalRecord.PIN_CHANGE, account, null, 0, 0, 0, pinHash, null);
+    }
+
+    // Deletes whole segments that only hold records up to and including
+    // sequence. The segment being appended to is never removed.
+    public void deleteSegmentsThrough(long sequence) throws IOException {
+        List<Path> paths = segments();
+        for (int i = 0; i + 1 < paths.size(); i++) {
+            if (firstSequence(paths.get(i + 1)) > sequence + 1) {
+                break;
+            }
+            Files.delete(paths.get(i));
+        }
+    }
+
+    // Blocks until the record with the given sequence (and everything before it)
+    // has been forced to disk
+    public void awaitDurable(long sequence) {
+        if (durableSequence >= sequence) {
+            return;
+        }
+        flushLock.lock();
+        try {
+            workAvailable.signal();
+            while (durableSequence < sequence) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (!running) {
+                    throw new IllegalStateException("Journal is closed");
+                }
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // Flushes anything outstanding and stops the flusher thread
+    public void close() {
+        flushLock.lock();
+        try {
+            running = false;
+            workAvailable.signal();
+        } finally {
+            flushLock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private long append(byte type, String account, String counterparty, long amount,
+                        long balance, long counterBalance, String pinHash, String holderName) {
+        if (failure != null) {
+            throw failure;
+        }
+        int encoded = HEADER + FIXED + 2 * (chars(account) + chars(counterparty) + chars(pinHash) + chars(holderName));
+        if (encoded > MAX_RECORD) {
+            throw new IllegalArgumentException("Journal record of " + encoded + " bytes exceeds " + MAX_RECORD);
+        }
+
+        appendLock.lock();
+        try {
+            long sequence = nextSequence;
+
+            ByteBuffer buffer = scratch;
+            buffer.clear();
+            buffer.position(HEADER);
+            buffer.put(type);
+            buffer.putLong(sequence);
+            buffer.putLong(System.currentTimeMillis());
+            buffer.putLong(amount);
+            buffer.putLong(balance);
+            buffer.putLong(counterBalance);
+            putString(buffer, account);
+            putString(buffer, counterparty);
+            putString(buffer, pinHash);
+            putString(buffer, holderName);
+
+            int length = buffer.position();
+            crc.reset();
+            crc.update(buffer.array(), HEADER, length - HEADER);
+            buffer.putInt(0, length);
+            buffer.putInt(4, (int) crc.getValue());
+            buffer.flip();
+
+            // Keep at least four zero bytes after the record as the end marker
+            if (segment.remaining() < length + 4) {
+                rollSegment(sequence);
+            }
+            segment.put(buffer);
+
+            nextSequence = sequence + 1;
+            writtenSequence = sequence;
+            return sequence;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private static int chars(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        buffer.putShort((short) value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer.putChar(value.charAt(i));
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = buffer.getChar();
+        }
+        return new String(chars);
+    }
+
+    // Caller holds appendLock. The finished segment is forced here so the flusher
+    // only ever has to deal with the current one.
+    private void rollSegment(long firstSequence) throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+        segment = map(segmentPath(firstSequence));
+    }
+
+    private MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private Path segmentPath(long firstSequence) {
+        return directory.resolve(String.format("%s%020d%s", PREFIX, firstSequence, SUFFIX));
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    // Segment files in sequence order
+    List<Path> segments() throws IOException {
+        List<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private void recover(long fromSequence, JournalRecord.Handler handler) throws IOException {
+        List<Path> paths = segments();
+        JournalRecord record = new JournalRecord();
+
+        // Sequences must keep counting up even when earlier segments were deleted
+        // and the remaining one is still empty
+        long lastSequence = fromSequence - 1;
+        if (!paths.isEmpty()) {
+            lastSequence = Math.max(lastSequence, firstSequence(paths.get(paths.size() - 1)) - 1);
+        }
+
+        for (int i = 0; i < paths.size(); i++) {
+            MappedByteBuffer buffer = map(paths.get(i));
+            boolean intact = true;
+
+            while (buffer.remaining() >= HEADER) {
+                int start = buffer.position();
+                int length = buffer.getInt(start);
+                if (length == 0) {
+                    break;
+                }
+                if (length < HEADER || length > MAX_RECORD || length > buffer.remaining()
+                        || !checksumMatches(buffer, start, length)) {
+                    intact = false;
+                    break;
+                }
+
+                buffer.position(start + HEADER);
+                record.type = buffer.get();
+                record.sequence = buffer.getLong();
+                lastSequence = Math.max(lastSequence, record.sequence);
+                if (record.sequence < fromSequence) {
+                    // Already covered by a snapshot: skip without decoding
+                    buffer.position(start + length);
+                    continue;
+                }
+                record.timestamp = buffer.getLong();
+                record.amount = buffer.getLong();
+                record.balance = buffer.getLong();
+                record.counterBalance = buffer.getLong();
+                record.account = getString(buffer);
+                record.counterparty = getString(buffer);
+                record.pinHash = getString(buffer);
+                record.holderName = getString(buffer);
+                buffer.position(start + length);
+                handler.onRecord(record);
+            }
+
+            boolean last = i == paths.size() - 1;
+            if (!intact || last) {
+                // This is the tail: wipe any partial record and drop later segments
+                if (!intact) {
+                    for (int p = buffer.position(); p < buffer.limit(); p++) {
+                        buffer.put(p, (byte) 0);
+                    }
+                }
+                for (int j = i + 1; j < paths.size(); j++) {
+                    Files.delete(paths.get(j));
+                }
+                segment = buffer;
+                break;
+            }
+        }
+
+        nextSequence = lastSequence + 1;
+        writtenSequence = lastSequence;
+        durableSequence = lastSequence;
+        if (segment == null) {
+            segment = map(segmentPath(nextSequence));
+        }
+    }
+
+    private boolean checksumMatches(ByteBuffer buffer, int start, int length) {
+        byte[] bytes = scratch.array();
+        buffer.get(start + HEADER, bytes, 0, length - HEADER);
+        crc.reset();
+        crc.update(bytes, 0, length - HEADER);
+        return (int) crc.getValue() == buffer.getInt(start + 4);
+    }
+
+    private void flushLoop() {
+        while (true) {
+            flushLock.lock();
+            try {
+                while (running && writtenSequence <= durableSequence) {
+                    workAvailable.awaitUninterruptibly();
+                }
+                if (!running) {
+                    return;
+                }
+            } finally {
+                flushLock.unlock();
+            }
+
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                failure = e;
+                flushLock.lock();
+                try {
+                    flushed.signalAll();
+                } finally {
+                    flushLock.unlock();
+                }
+                return;
+            }
+        }
+    }
+
+    private void flush() {
+        MappedByteBuffer current;
+        long target;
+        appendLock.lock();
+        try {
+            current = segment;
+            target = writtenSequence;
+        } finally {
+            appendLock.unlock();
+        }
+
+        current.force();
+
+        flushLock.lock();
+        try {
+            if (target > durableSequence) {
+                durableSequence = target;
+            }
+            flushed.signalAll();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+}
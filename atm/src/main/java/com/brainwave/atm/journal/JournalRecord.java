@@ -0,0 +1,40 @@
+package com.brainwave.atm.journal;
+
+// One decoded journal entry. Replay hands the same instance to the handler for
+// every record, so handlers must copy out whatever they want to keep.
+public final class JournalRecord {
+    public static final byte OPEN = 1;
+    public static final byte WITHDRAWAL = 2;
+    public static final byte DEPOSIT = 3;
+    public static final byte TRANSFER = 4;
+    public static final byte PIN_CHANGE = 5;
+    // Interest credited; the counterparty is the business day (ISO date)
+    public static final byte INTEREST = 6;
+
+    byte type;
+    long sequence;
+    long timestamp;
+    long amount;
+    long balance;
+    long counterBalance;
+    String account;
+    String counterparty;
+    String pinHash;
+    String holderName;
+
+    public byte getType() { return type; }
+    public long getSequence() { return sequence; }
+    public long getTimestamp() { return timestamp; }
+    public long getAmount() { return amount; }
+    public long getBalance() { return balance; }
+    public long getCounterBalance() { return counterBalance; }
+    public String getAccount() { return account; }
+    public String getCounterparty() { return counterparty; }
+    public String getPinHash() { return pinHash; }
+    public String getHolderName() { return holderName; }
+
+    // Callback used by Journal.open to feed existing records back in order
+    public interface Handler {
+        void onRecord(JournalRecord record);
+    }
+}
@@ -0,0 +1,273 @@
+package com.brainwave.atm.load;
+
+import com.brainwave.atm.core.BankEngine;
+import com.brainwave.atm.core.BankService;
+import com.brainwave.atm.core.Money;
+import com.brainwave.atm.metrics.LatencyHistogram;
+
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load generator: drives thousands of simulated terminal sessions
+// against one shared bank and reports throughput, latency percentiles per
+// operation and whether money was conserved at the end of the run.
+//
+// Each worker thread owns a slice of the sessions and advances them round-robin
+// one step at a time, so thousands of sessions interleave on a few threads the
+// way real terminals interleave on the bank.
+//
+//   java -cp atm.jar com.brainwave.atm.load.LoadGenerator --sessions 5000 --threads 8 --seconds 30 --accounts 1000
+//        [--engine single,striped,journaled] [--data dir]
+// Several engines are run one after another with the same settings.
+public class LoadGenerator {
+    static final String PIN = "1234";
+
+    enum Op { LOGIN, BALANCE, WITHDRAW, DEPOSIT, TRANSFER, HISTORY, LOGOUT }
+
+    // Relative weights of the operations a logged-in session picks from
+    private static final Op[] MIX_OPS = { Op.BALANCE, Op.WITHDRAW, Op.DEPOSIT, Op.TRANSFER, Op.HISTORY };
+    private static final int[] MIX_WEIGHTS = { 30, 20, 20, 15, 15 };
+
+    private final BankService bank;
+    private final String[] numbers;
+    private final int sessions;
+    private final int threads;
+    private final long durationNanos;
+
+    private final LatencyHistogram[] latency = new LatencyHistogram[Op.values().length];
+    private final LongAdder[] failures = new LongAdder[Op.values().length];
+    private final LongAdder withdrawn = new LongAdder();
+    private final LongAdder deposited = new LongAdder();
+
+    public LoadGenerator(BankService bank, int accounts, int sessions, int threads, long durationSeconds) {
+        this.bank = bank;
+        this.sessions = sessions;
+        this.threads = threads;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        numbers = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            numbers[i] = String.format("8%09d", i);
+            bank.openAccount(numbers[i], PIN, 100000.00, "Load Test " + i);
+        }
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LatencyHistogram();
+            failures[i] = new LongAdder();
+        }
+    }
+
+    // Runs the load and prints the report; returns false if the balance check failed
+    public boolean run(PrintStream out) throws InterruptedException {
+        long initialTotal = totalBalancePaise();
+        long start = System.nanoTime();
+        final long deadline = start + durationNanos;
+
+        Thread[] workers = new Thread[threads];
+        for (int w = 0; w < threads; w++) {
+            final int worker = w;
+            workers[w] = new Thread(new Runnable() {
+                public void run() {
+                    runWorker(worker, deadline);
+                }
+            }, "load-" + w);
+            workers[w].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long expectedTotal = initialTotal - withdrawn.sum() + deposited.sum();
+        long actualTotal = totalBalancePaise();
+        report(out, elapsed, expectedTotal, actualTotal);
+        return expectedTotal == actualTotal;
+    }
+
+    private void runWorker(int worker, long deadline) {
+        SplittableRandom random = new SplittableRandom(31L * worker + 17);
+        int count = sessions / threads + (worker < sessions % threads ? 1 : 0);
+
+        // Session state: which account is logged in and how many steps are left
+        // before logout (0 means the session is at the login screen)
+        int[] account = new int[count];
+        int[] remaining = new int[count];
+
+        while (System.nanoTime() < deadline) {
+            for (int s = 0; s < count; s++) {
+                if (remaining[s] == 0) {
+                    account[s] = random.nextInt(numbers.length);
+                    remaining[s] = 4 + random.nextInt(8);
+                    execute(Op.LOGIN, account[s], random);
+                } else if (remaining[s] == 1) {
+                    execute(Op.LOGOUT, account[s], random);
+                    remaining[s] = 0;
+                } else {
+                    execute(pick(random), account[s], random);
+                    remaining[s]--;
+                }
+            }
+        }
+    }
+
+    private static Op pick(SplittableRandom random) {
+        int roll = random.nextInt(100);
+        for (int i = 0; i < MIX_OPS.length; i++) {
+            roll -= MIX_WEIGHTS[i];
+            if (roll < 0) {
+                return MIX_OPS[i];
+            }
+        }
+        return MIX_OPS[MIX_OPS.length - 1];
+    }
+
+    private void execute(Op op, int accountIndex, SplittableRandom random) {
+        String number = numbers[accountIndex];
+        long start = System.nanoTime();
+        boolean ok;
+
+        switch (op) {
+            case LOGIN:
+                ok = bank.validateAccount(number, PIN) && bank.getAccountHolderName(number) != null;
+                break;
+            case BALANCE:
+                ok = bank.balanceInquiry(number) >= 0;
+                break;
+            case WITHDRAW: {
+                long paise = (100 + random.nextInt(4900)) * 100L;
+                ok = bank.withdraw(number, Money.toRupees(paise));
+                if (ok) {
+                    withdrawn.add(paise);
+                }
+                break;
+            }
+            case DEPOSIT: {
+                long paise = (100 + random.nextInt(4900)) * 100L;
+                ok = bank.deposit(number, Money.toRupees(paise));
+                if (ok) {
+                    deposited.add(paise);
+                }
+                break;
+            }
+            case TRANSFER: {
+                String to = numbers[random.nextInt(numbers.length)];
+                ok = bank.transfer(number, to, 100 + random.nextInt(4900));
+                break;
+            }
+            case HISTORY: {
+                // Same access pattern as the terminal screens: last 10 entries
+                ok = bank.recentTransactions(number, 10) != null;
+                break;
+            }
+            default:
+                ok = true;
+        }
+
+        latency[op.ordinal()].record(System.nanoTime() - start);
+        if (!ok) {
+            failures[op.ordinal()].increment();
+        }
+    }
+
+    private long totalBalancePaise() {
+        long total = 0;
+        for (String number : numbers) {
+            total += bank.getBalancePaise(number);
+        }
+        return total;
+    }
+
+    private void report(PrintStream out, long elapsedNanos, long expectedTotal, long actualTotal) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        for (LatencyHistogram histogram : latency) {
+            total += histogram.getTotalCount();
+        }
+
+        out.println("=================================");
+        out.println("        LOAD TEST RESULTS");
+        out.println("=================================");
+        out.printf("Sessions: %d  Threads: %d  Accounts: %d  Duration: %.1fs%n",
+                   sessions, threads, numbers.length, seconds);
+        out.printf("Total operations: %d (%.0f ops/sec)%n%n", total, total / seconds);
+
+        out.printf("%-10s %12s %10s %10s %10s %10s %10s%n",
+                   "Operation", "Count", "Failed", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+        for (Op op : Op.values()) {
+            LatencyHistogram histogram = latency[op.ordinal()];
+            out.printf("%-10s %12d %10d %10.1f %10.1f %10.1f %10.1f%n",
+                       op, histogram.getTotalCount(), failures[op.ordinal()].sum(),
+                       histogram.getValueAtPercentile(50) / 1000.0,
+                       histogram.getValueAtPercentile(99) / 1000.0,
+                       histogram.getValueAtPercentile(99.9) / 1000.0,
+                       histogram.getMax() / 1000.0);
+        }
+
+        out.println();
+        out.printf("Balance check: expected Rs%.2f, actual Rs%.2f - %s%n",
+                   Money.toRupees(expectedTotal), Money.toRupees(actualTotal),
+                   expectedTotal == actualTotal ? "OK" : "MISMATCH");
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int sessions = 5000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int accounts = 1000;
+        long seconds = 30;
+        String data = null;
+        String engineNames = null;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--sessions": sessions = Integer.parseInt(value); break;
+                case "--threads": threads = Integer.parseInt(value); break;
+                case "--accounts": accounts = Integer.parseInt(value); break;
+                case "--seconds": seconds = Long.parseLong(value); break;
+                case "--data": data = value; break;
+                case "--engine": engineNames = value; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        // Opening thousands of test accounts at the production PIN hashing cost
+        // would dominate start-up; -Datm.pin.iterations overrides this
+        if (System.getProperty("atm.pin.iterations") == null) {
+            System.setProperty("atm.pin.iterations", "1000");
+        }
+
+        // Without --engine, --data runs against a journaled bank in that
+        // directory and its absence against the in-memory striped one
+        List<BankEngine> engines = new ArrayList<BankEngine>();
+        if (engineNames == null) {
+            engines.add(data == null ? BankEngine.STRIPED : BankEngine.JOURNALED);
+        } else {
+            for (String name : engineNames.split(",")) {
+                engines.add(BankEngine.fromName(name.trim()));
+            }
+        }
+
+        boolean conserved = true;
+        for (BankEngine engine : engines) {
+            if (engine.isDurable() && data == null) {
+                System.err.println("The " + engine + " engine needs --data");
+                System.exit(2);
+            }
+            System.out.println("Engine: " + engine);
+            BankService bank = engine.open(data == null ? null : Paths.get(data));
+            LoadGenerator generator = new LoadGenerator(bank, accounts, sessions, threads, seconds);
+            conserved &= generator.run(System.out);
+            bank.close();
+            System.out.println();
+        }
+        if (!conserved) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.brainwave.atm.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+// Counts and latencies of every kind of bank operation (see OperationMetrics),
+// with a plain-text report and a JMX view.
+//
+// Under JMX (jconsole, VisualVM, any JMX exporter) the whole set appears as
+// com.brainwave.atm:type=BankMetrics and each operation as
+// com.brainwave.atm:type=BankMetrics,operation=<name>.
+public final class BankMetrics implements BankMetricsMXBean {
+    static final String DOMAIN = "com.brainwave.atm";
+
+    public final OperationMetrics login = new OperationMetrics("login");
+    public final OperationMetrics balance = new OperationMetrics("balance");
+    public final OperationMetrics withdraw = new OperationMetrics("withdraw");
+    public final OperationMetrics deposit = new OperationMetrics("deposit");
+    public final OperationMetrics transfer = new OperationMetrics("transfer");
+    public final OperationMetrics pinChange = new OperationMetrics("pin-change");
+    public final OperationMetrics history = new OperationMetrics("history");
+    // Whole batches; the operations in them are counted under their own kinds
+    public final OperationMetrics batch = new OperationMetrics("batch");
+
+    private final OperationMetrics[] operations = {
+        login, balance, withdraw, deposit, transfer, pinChange, history, batch
+    };
+    private volatile long since = System.nanoTime();
+
+    public OperationMetrics[] getOperations() {
+        return operations.clone();
+    }
+
+    // Counts, throughput since the last reset, latency percentiles and results
+    // of every operation that was called
+    public String getReport() {
+        double seconds = Math.max(1e-9, (System.nanoTime() - since) / 1e9);
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-20s %10s %10s %10s %10s %10s %10s%n",
+                                 "Operation", "Count", "ops/sec", "p50(us)", "p99(us)", "p999(us)", "max(us)"));
+        for (OperationMetrics operation : operations) {
+            long count = operation.getCount();
+            if (count == 0) {
+                continue;
+            }
+            LatencyHistogram latency = operation.latency();
+            out.append(String.format("%-20s %10d %10.0f %10.1f %10.1f %10.1f %10.1f%n",
+                                     operation.getName(), count, count / seconds,
+                                     latency.getValueAtPercentile(50) / 1000.0,
+                                     latency.getValueAtPercentile(99) / 1000.0,
+                                     latency.getValueAtPercentile(99.9) / 1000.0,
+                                     latency.getMax() / 1000.0));
+            for (Result result : Result.values()) {
+                long resultCount = operation.getCount(result);
+                if (resultCount == 0) {
+                    continue;
+                }
+                LatencyHistogram resultLatency = operation.latency(result);
+                if (resultLatency.getTotalCount() == 0) {
+                    out.append(String.format("  %-18s %10d%n", result, resultCount));
+                } else {
+                    out.append(String.format("  %-18s %10d %10s %10.1f %10.1f %10.1f %10.1f%n",
+                                             result, resultCount, "",
+                                             resultLatency.getValueAtPercentile(50) / 1000.0,
+                                             resultLatency.getValueAtPercentile(99) / 1000.0,
+                                             resultLatency.getValueAtPercentile(99.9) / 1000.0,
+                                             resultLatency.getMax() / 1000.0));
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    public void report(PrintStream out) {
+        out.print(getReport());
+        out.flush();
+    }
+
+    public void reset() {
+        for (OperationMetrics operation : operations) {
+            operation.reset();
+        }
+        since = System.nanoTime();
+    }
+
+    // Registers these metrics with the platform MBean server, replacing any
+    // registered earlier in this JVM
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            replace(server, this, new ObjectName(DOMAIN + ":type=BankMetrics"));
+            for (OperationMetrics operation : operations) {
+                replace(server, operation, new ObjectName(DOMAIN + ":type=BankMetrics,operation=" + operation.getName()));
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register bank metrics with JMX", e);
+        }
+    }
+
+    // Prints the report to out every interval seconds from a daemon thread
+    public void startReporter(final PrintStream out, final long intervalSeconds) {
+        Thread reporter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        TimeUnit.SECONDS.sleep(intervalSeconds);
+                        report(out);
+                    }
+                } catch (InterruptedException e) {
+                    // stop reporting
+                }
+            }
+        }, "bank-metrics");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    private static void replace(MBeanServer server, Object bean, ObjectName name) throws JMException {
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(bean, name);
+    }
+}
@@ -0,0 +1,10 @@
+package com.brainwave.atm.metrics;
+
+// JMX entry point for all bank metrics; each operation also has its own
+// OperationMetricsMXBean
+public interface BankMetricsMXBean {
+    // The same table BankMetrics.report() prints
+    String getReport();
+
+    void reset();
+}
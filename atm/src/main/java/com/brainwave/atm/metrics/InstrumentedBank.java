@@ -0,0 +1,97 @@
+package com.brainwave.atm.metrics;
+
+import com.brainwave.atm.core.BankService;
+import com.brainwave.atm.core.Operation;
+import com.brainwave.atm.core.Outcome;
+import com.brainwave.atm.core.TerminalBank;
+import com.brainwave.atm.core.TransactionQuery;
+
+import java.util.List;
+
+// InstrumentedTerminalBank over a whole BankService: the terminal calls are
+// timed as there, and searches and batches are timed here too.
+public class InstrumentedBank extends InstrumentedTerminalBank implements BankService {
+    private final BankService bank;
+
+    public InstrumentedBank(BankService bank, BankMetrics metrics) {
+        super(bank, metrics);
+        this.bank = bank;
+    }
+
+    // Wraps bank with fresh metrics registered under JMX, unless
+    // -Datm.metrics=false. With -Datm.metrics.report.seconds=N the text report
+    // is also printed to standard output every N seconds. A TransactionSearch
+    // over the wrapped bank is registered alongside.
+    public static BankService instrument(BankService bank) {
+        BankMetrics metrics = registerMetrics();
+        if (metrics == null) {
+            return bank;
+        }
+        InstrumentedBank instrumented = new InstrumentedBank(bank, metrics);
+        new TransactionSearch(instrumented).register();
+        return instrumented;
+    }
+
+    // The same for a terminal's view of a bank, such as a RemoteBank
+    public static TerminalBank instrument(TerminalBank bank) {
+        BankMetrics metrics = registerMetrics();
+        return metrics == null ? bank : new InstrumentedTerminalBank(bank, metrics);
+    }
+
+    // null with -Datm.metrics=false
+    private static BankMetrics registerMetrics() {
+        if (!Boolean.parseBoolean(System.getProperty("atm.metrics", "true"))) {
+            return null;
+        }
+        BankMetrics metrics = new BankMetrics();
+        metrics.register();
+        long interval = Long.getLong("atm.metrics.report.seconds", 0);
+        if (interval > 0) {
+            metrics.startReporter(System.out, interval);
+        }
+        return metrics;
+    }
+
+    public boolean openAccount(String accountNumber, String pin, double initialBalance, String accountHolderName) {
+        return bank.openAccount(accountNumber, pin, initialBalance, accountHolderName);
+    }
+
+    public List<String> getAccountNumbers() {
+        return bank.getAccountNumbers();
+    }
+
+    public List<TransactionQuery.Match> findTransactions(TransactionQuery query) {
+        long start = System.nanoTime();
+        Result result = Result.ERROR;
+        try {
+            List<TransactionQuery.Match> matches = bank.findTransactions(query);
+            result = Result.OK;
+            return matches;
+        } finally {
+            metrics.history.record(result, System.nanoTime() - start);
+        }
+    }
+
+    // The batch is timed as a whole; each operation's result is counted under
+    // its own kind
+    public List<Outcome> applyBatch(List<Operation> operations) {
+        long start = System.nanoTime();
+        List<Outcome> outcomes;
+        try {
+            outcomes = bank.applyBatch(operations);
+        } catch (RuntimeException e) {
+            metrics.batch.record(Result.ERROR, System.nanoTime() - start);
+            throw e;
+        }
+        metrics.batch.record(Result.OK, System.nanoTime() - start);
+        for (int i = 0; i < outcomes.size(); i++) {
+            Result result = Result.of(outcomes.get(i));
+            switch (operations.get(i).getKind()) {
+                case WITHDRAWAL: metrics.withdraw.count(result); break;
+                case DEPOSIT: case INTEREST: metrics.deposit.count(result); break;
+                default: metrics.transfer.count(result); break;
+            }
+        }
+        return outcomes;
+    }
+}
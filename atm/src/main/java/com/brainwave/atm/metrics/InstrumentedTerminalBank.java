@@ -0,0 +1,202 @@
+package com.brainwave.atm.metrics;
+
+import com.brainwave.atm.core.Money;
+import com.brainwave.atm.core.StatementWriter;
+import com.brainwave.atm.core.TerminalBank;
+import com.brainwave.atm.core.Transaction;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.time.LocalDateTime;
+import java.util.List;
+
+// TerminalBank that times every call into another one and records it in
+// BankMetrics, so a RemoteBank is measured the same way as a local engine
+// (see InstrumentedBank for the back-office calls).
+//
+// The TerminalBank methods only say whether a call worked, so when one fails
+// the reason is worked out afterwards, outside the timed section: an amount
+// that rounds to nothing is invalid, an account with no balance is unknown, a
+// withdrawal the balance covers but the cash limit doesn't exceeded the limit,
+// any other debit the balance covers was declined by a risk check, and
+// anything else is insufficient funds. A refused login is a locked-out
+// account if the throttle says so and a bad PIN otherwise (an unknown account
+// number counts as a bad PIN, as it does at the terminal). Balances and holder
+// names (and remaining cash limits) are plain reads and are not timed.
+public class InstrumentedTerminalBank implements TerminalBank {
+    private final TerminalBank bank;
+    final BankMetrics metrics;
+
+    public InstrumentedTerminalBank(TerminalBank bank, BankMetrics metrics) {
+        this.bank = bank;
+        this.metrics = metrics;
+    }
+
+    public BankMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean validateAccount(String accountNumber, String pin) {
+        long start = System.nanoTime();
+        boolean valid;
+        try {
+            valid = bank.validateAccount(accountNumber, pin);
+        } catch (RuntimeException e) {
+            metrics.login.record(Result.ERROR, System.nanoTime() - start);
+            throw e;
+        }
+        long nanos = System.nanoTime() - start;
+        metrics.login.record(valid ? Result.OK
+                                   : bank.isLockedOut(accountNumber) ? Result.LOCKED_OUT : Result.BAD_PIN, nanos);
+        return valid;
+    }
+
+    public boolean isLockedOut(String accountNumber) {
+        return bank.isLockedOut(accountNumber);
+    }
+
+    public long getLockoutSeconds() {
+        return bank.getLockoutSeconds();
+    }
+
+    public String getAccountHolderName(String accountNumber) {
+        return bank.getAccountHolderName(accountNumber);
+    }
+
+    public long getBalancePaise(String accountNumber) {
+        return bank.getBalancePaise(accountNumber);
+    }
+
+    public long getRemainingWithdrawalPaise(String accountNumber) {
+        return bank.getRemainingWithdrawalPaise(accountNumber);
+    }
+
+    public long balanceInquiry(String accountNumber) {
+        long start = System.nanoTime();
+        long balance;
+        try {
+            balance = bank.balanceInquiry(accountNumber);
+        } catch (RuntimeException e) {
+            metrics.balance.record(Result.ERROR, System.nanoTime() - start);
+            throw e;
+        }
+        metrics.balance.record(balance < 0 ? Result.UNKNOWN_ACCOUNT : Result.OK, System.nanoTime() - start);
+        return balance;
+    }
+
+    public boolean withdraw(String accountNumber, double amount) {
+        long start = System.nanoTime();
+        boolean ok;
+        try {
+            ok = bank.withdraw(accountNumber, amount);
+        } catch (RuntimeException e) {
+            metrics.withdraw.record(Result.ERROR, System.nanoTime() - start);
+            throw e;
+        }
+        long nanos = System.nanoTime() - start;
+        metrics.withdraw.record(ok ? Result.OK : whyDebitFailed(accountNumber, null, amount), nanos);
+        return ok;
+    }
+
+    public boolean deposit(String accountNumber, double amount) {
+        long start = System.nanoTime();
+        boolean ok;
+        try {
+            ok = bank.deposit(accountNumber, amount);
+        } catch (RuntimeException e) {
+            metrics.deposit.record(Result.ERROR, System.nanoTime() - start);
+            throw e;
+        }
+        long nanos = System.nanoTime() - start;
+        // A valid amount to a known account only fails if it would overflow the balance
+        metrics.deposit.record(ok ? Result.OK
+                                  : Money.isValidAmount(Money.toPaise(amount)) && bank.getBalancePaise(accountNumber) < 0
+                                  ? Result.UNKNOWN_ACCOUNT : Result.INVALID_AMOUNT, nanos);
+        return ok;
+    }
+
+    public boolean transfer(String fromAccount, String toAccount, double amount) {
+        long start = System.nanoTime();
+        boolean ok;
+        try {
+            ok = bank.transfer(fromAccount, toAccount, amount);
+        } catch (RuntimeException e) {
+            metrics.transfer.record(Result.ERROR, System.nanoTime() - start);
+            throw e;
+        }
+        long nanos = System.nanoTime() - start;
+        metrics.transfer.record(ok ? Result.OK : whyDebitFailed(fromAccount, toAccount, amount), nanos);
+        return ok;
+    }
+
+    public void changePin(String accountNumber, String newPin) {
+        long start = System.nanoTime();
+        Result result = Result.ERROR;
+        try {
+            bank.changePin(accountNumber, newPin);
+            result = Result.OK;
+        } finally {
+            metrics.pinChange.record(result, System.nanoTime() - start);
+        }
+    }
+
+    public List<Transaction> recentTransactions(String accountNumber, int count) {
+        long start = System.nanoTime();
+        Result result = Result.ERROR;
+        try {
+            List<Transaction> recent = bank.recentTransactions(accountNumber, count);
+            result = Result.OK;
+            return recent;
+        } finally {
+            metrics.history.record(result, System.nanoTime() - start);
+        }
+    }
+
+    public long getTransactionCount(String accountNumber) {
+        return bank.getTransactionCount(accountNumber);
+    }
+
+    public List<Transaction> transactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to,
+                                                 long offset, int limit) {
+        long start = System.nanoTime();
+        Result result = Result.ERROR;
+        try {
+            List<Transaction> page = bank.transactionsBetween(accountNumber, from, to, offset, limit);
+            result = Result.OK;
+            return page;
+        } finally {
+            metrics.history.record(result, System.nanoTime() - start);
+        }
+    }
+
+    public long countTransactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to) {
+        return bank.countTransactionsBetween(accountNumber, from, to);
+    }
+
+    public long writeStatement(String accountNumber, LocalDateTime from, LocalDateTime to,
+                               StatementWriter writer, WritableByteChannel out) throws IOException {
+        return bank.writeStatement(accountNumber, from, to, writer, out);
+    }
+
+    public void close() {
+        bank.close();
+    }
+
+    // Reason a withdrawal or transfer (with a non-null counterparty) failed
+    private Result whyDebitFailed(String accountNumber, String counterparty, double amount) {
+        if (!Money.isValidAmount(Money.toPaise(amount))) {
+            return Result.INVALID_AMOUNT;
+        }
+        if (bank.getBalancePaise(accountNumber) < 0
+                || (counterparty != null && (counterparty.equals(accountNumber)
+                                             || bank.getAccountHolderName(counterparty) == null))) {
+            return Result.UNKNOWN_ACCOUNT;
+        }
+        long paise = Money.toPaise(amount);
+        if (bank.getBalancePaise(accountNumber) < paise) {
+            return Result.INSUFFICIENT_FUNDS;
+        }
+        return counterparty == null && bank.getRemainingWithdrawalPaise(accountNumber) < paise
+               ? Result.LIMIT_EXCEEDED : Result.DECLINED;
+    }
+}
@@ -0,0 +1,135 @@
+package com.brainwave.atm.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts and latencies of one kind of bank operation, split by result.
+//
+// Recording a call is a LongAdder increment plus one LatencyHistogram record,
+// all lock-free, so it can stay on in production. Each result gets its own
+// histogram, created the first time that result is seen, so the many
+// combinations that never happen (a deposit with a wrong PIN) cost nothing.
+// Figures over all results are merged from them when read.
+public final class OperationMetrics implements OperationMetricsMXBean {
+    private static final Result[] RESULTS = Result.values();
+
+    private final String name;
+    private final LongAdder[] counts = new LongAdder[RESULTS.length];
+    private final AtomicReferenceArray<LatencyHistogram> latencies =
+            new AtomicReferenceArray<LatencyHistogram>(RESULTS.length);
+
+    OperationMetrics(String name) {
+        this.name = name;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // One call that took nanos and ended in result
+    public void record(Result result, long nanos) {
+        counts[result.ordinal()].increment();
+        histogram(result).record(nanos);
+    }
+
+    // One call whose latency is accounted elsewhere (an operation in a batch)
+    public void count(Result result) {
+        counts[result.ordinal()].increment();
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (LongAdder count : counts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    public long getCount(Result result) {
+        return counts[result.ordinal()].sum();
+    }
+
+    public Map<String, Long> getResults() {
+        Map<String, Long> results = new LinkedHashMap<String, Long>();
+        for (Result result : RESULTS) {
+            long count = counts[result.ordinal()].sum();
+            if (count > 0) {
+                results.put(result.getName(), count);
+            }
+        }
+        return results;
+    }
+
+    public double getMeanMicros() {
+        return latency().getMean() / 1000.0;
+    }
+
+    public double getP50Micros() {
+        return latency().getValueAtPercentile(50) / 1000.0;
+    }
+
+    public double getP99Micros() {
+        return latency().getValueAtPercentile(99) / 1000.0;
+    }
+
+    public double getP999Micros() {
+        return latency().getValueAtPercentile(99.9) / 1000.0;
+    }
+
+    public double getMaxMicros() {
+        return latency().getMax() / 1000.0;
+    }
+
+    public Map<String, Double> getP99MicrosByResult() {
+        Map<String, Double> p99 = new LinkedHashMap<String, Double>();
+        for (Result result : RESULTS) {
+            LatencyHistogram histogram = latencies.get(result.ordinal());
+            if (histogram != null && histogram.getTotalCount() > 0) {
+                p99.put(result.getName(), histogram.getValueAtPercentile(99) / 1000.0);
+            }
+        }
+        return p99;
+    }
+
+    // Latencies of the calls that ended in result (empty if there were none)
+    public LatencyHistogram latency(Result result) {
+        LatencyHistogram histogram = latencies.get(result.ordinal());
+        return histogram == null ? new LatencyHistogram() : histogram;
+    }
+
+    // Latencies of all calls, merged from the per-result histograms
+    public LatencyHistogram latency() {
+        LatencyHistogram all = new LatencyHistogram();
+        for (int i = 0; i < RESULTS.length; i++) {
+            LatencyHistogram histogram = latencies.get(i);
+            if (histogram != null) {
+                all.add(histogram);
+            }
+        }
+        return all;
+    }
+
+    public void reset() {
+        for (int i = 0; i < RESULTS.length; i++) {
+            counts[i].reset();
+            LatencyHistogram histogram = latencies.get(i);
+            if (histogram != null) {
+                histogram.reset();
+            }
+        }
+    }
+
+    private LatencyHistogram histogram(Result result) {
+        LatencyHistogram histogram = latencies.get(result.ordinal());
+        if (histogram == null) {
+            latencies.compareAndSet(result.ordinal(), null, new LatencyHistogram());
+            histogram = latencies.get(result.ordinal());
+        }
+        return histogram;
+    }
+}
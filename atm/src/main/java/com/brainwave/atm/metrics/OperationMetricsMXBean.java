@@ -0,0 +1,27 @@
+package com.brainwave.atm.metrics;
+
+import java.util.Map;
+
+// JMX view of one kind of bank operation (see OperationMetrics). Latencies are
+// microseconds, over every recorded call unless the name says otherwise.
+public interface OperationMetricsMXBean {
+    long getCount();
+
+    // Calls per result name ("ok", "insufficient-funds", ...), zeros left out
+    Map<String, Long> getResults();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+
+    // p99 latency per result name, zeros left out
+    Map<String, Double> getP99MicrosByResult();
+
+    void reset();
+}
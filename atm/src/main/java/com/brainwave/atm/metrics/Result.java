@@ -0,0 +1,41 @@
+package com.brainwave.atm.metrics;
+
+import com.brainwave.atm.core.Outcome;
+
+import java.util.Locale;
+
+// How a bank operation ended, as far as the metrics are concerned. The first
+// seven match Outcome; logins add wrong PINs and locked-out accounts, and any
+// operation can end in an exception.
+public enum Result {
+    OK,
+    UNKNOWN_ACCOUNT,
+    INVALID_AMOUNT,
+    INSUFFICIENT_FUNDS,
+    DECLINED,
+    LIMIT_EXCEEDED,
+    ALREADY_POSTED,
+    BAD_PIN,
+    LOCKED_OUT,
+    ERROR;
+
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+
+    public static Result of(Outcome outcome) {
+        switch (outcome) {
+            case OK: return OK;
+            case UNKNOWN_ACCOUNT: return UNKNOWN_ACCOUNT;
+            case INVALID_AMOUNT: return INVALID_AMOUNT;
+            case DECLINED: return DECLINED;
+            case LIMIT_EXCEEDED: return LIMIT_EXCEEDED;
+            case ALREADY_POSTED: return ALREADY_POSTED;
+            default: return INSUFFICIENT_FUNDS;
+        }
+    }
+
+    public String toString() {
+        return getName();
+    }
+}
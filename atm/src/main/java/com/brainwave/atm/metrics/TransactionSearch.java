@@ -0,0 +1,65 @@
+package com.brainwave.atm.metrics;
+
+import com.brainwave.atm.core.BankService;
+import com.brainwave.atm.core.TransactionQuery;
+import com.brainwave.atm.core.TransactionType;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Fraud and operations queries against a live bank over JMX: builds a
+// TransactionQuery from the operation's arguments and runs it through
+// BankService.findTransactions, so it is answered from the bank's indexes
+// and, on an InstrumentedBank, timed with the history calls.
+public final class TransactionSearch implements TransactionSearchMXBean {
+    private final BankService bank;
+
+    public TransactionSearch(BankService bank) {
+        this.bank = bank;
+    }
+
+    public List<String> find(String account, String type, String counterparty, double minRupees, int hours, int limit) {
+        TransactionQuery query = TransactionQuery.all().limit(limit > 0 ? limit : TransactionQuery.DEFAULT_LIMIT);
+        if (account != null && !account.isEmpty()) {
+            query = query.account(account);
+        }
+        if (type != null && !type.isEmpty()) {
+            query = query.type(TransactionType.valueOf(type.trim().toUpperCase(Locale.ROOT)));
+        }
+        if (counterparty != null && !counterparty.isEmpty()) {
+            query = query.counterparty(counterparty);
+        }
+        if (minRupees > 0) {
+            query = query.amountAtLeast(minRupees);
+        }
+        if (hours > 0) {
+            query = query.between(LocalDateTime.now().minusHours(hours), null);
+        }
+        List<String> found = new ArrayList<String>();
+        for (TransactionQuery.Match match : bank.findTransactions(query)) {
+            found.add(match.toString());
+        }
+        return found;
+    }
+
+    // Registers this search with the platform MBean server, replacing any
+    // registered earlier in this JVM
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(BankMetrics.DOMAIN + ":type=TransactionSearch");
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register transaction search with JMX", e);
+        }
+    }
+}
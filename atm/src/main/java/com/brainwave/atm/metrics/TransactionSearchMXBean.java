@@ -0,0 +1,13 @@
+package com.brainwave.atm.metrics;
+
+import java.util.List;
+
+// JMX entry point for transaction searches on a running bank, registered as
+// com.brainwave.atm:type=TransactionSearch
+public interface TransactionSearchMXBean {
+    // The newest limit entries matching every condition given, newest first,
+    // as "<account> | <entry>". An empty account, type (a TransactionType
+    // name) or counterparty matches any; minRupees 0 any amount; hours 0 the
+    // whole retention window of the indexes.
+    List<String> find(String account, String type, String counterparty, double minRupees, int hours, int limit);
+}
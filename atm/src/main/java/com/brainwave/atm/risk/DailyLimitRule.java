@@ -0,0 +1,28 @@
+package com.brainwave.atm.risk;
+
+// Declines a debit that would take the day's debits past a limit.
+//
+// This is the fraud side's limit: everything leaving the account in a local
+// calendar day, withdrawals and transfers alike, checked before the ledger
+// sees the debit. It is separate from the ledger's own cash limit
+// (atm.limit.daily, a rolling 24 hours of withdrawals only), and a withdrawal
+// has to pass both: this rule first, then the ledger. With the defaults
+// (200000 rupees here, 40000 in cash) the cash limit is the one a withdrawal
+// meets, and this rule caps what cash and transfers take out together.
+public final class DailyLimitRule implements RiskRule {
+    private final long limit;
+
+    // limit in paise
+    public DailyLimitRule(long limit) {
+        this.limit = limit;
+    }
+
+    public String getName() {
+        return "daily-limit";
+    }
+
+    public boolean allows(DebitWindow window, long amount, long now) {
+        // Written so that no sum can overflow: both sides are at most limit
+        return amount <= limit - Math.min(window.getDayTotal(), limit);
+    }
+}
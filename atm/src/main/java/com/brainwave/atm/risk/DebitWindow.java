@@ -0,0 +1,106 @@
+package com.brainwave.atm.risk;
+
+// Recent debits (withdrawals and outgoing transfers) of one account for the
+// risk rules: the last CAPACITY of them in primitive ring buffers, newest
+// first, plus the running total of the current day. A debit is recorded as
+// soon as it is authorized and removed again if the ledger refuses it.
+// Recording a debit writes a few array slots and allocates nothing.
+//
+// Guarded by its own monitor, which RiskEngine holds while the rules run.
+public final class DebitWindow {
+    public static final int CAPACITY = 32;
+    private static final int MASK = CAPACITY - 1;
+
+    private final long[] amounts = new long[CAPACITY];
+    private final long[] timestamps = new long[CAPACITY];
+    private int next;
+    private int size;
+    private long day = Long.MIN_VALUE;
+    private long dayTotal;
+    private int dayCount;
+
+    // Number of debits held, at most CAPACITY
+    public int size() {
+        return size;
+    }
+
+    // Amount of the i-th most recent debit (0 is the newest)
+    public long amount(int i) {
+        return amounts[(next - 1 - i) & MASK];
+    }
+
+    public long timestamp(int i) {
+        return timestamps[(next - 1 - i) & MASK];
+    }
+
+    // Debits held with timestamp >= since
+    public int countSince(long since) {
+        int count = 0;
+        while (count < size && timestamp(count) >= since) {
+            count++;
+        }
+        return count;
+    }
+
+    // Sum of the amounts held
+    public long total() {
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            total += amount(i);
+        }
+        return total;
+    }
+
+    // Paise debited so far today
+    public long getDayTotal() {
+        return dayTotal;
+    }
+
+    public int getDayCount() {
+        return dayCount;
+    }
+
+    // Starts a new day's total if today (a local day number) is a new day
+    void roll(long today) {
+        if (today != day) {
+            day = today;
+            dayTotal = 0;
+            dayCount = 0;
+        }
+    }
+
+    void record(long amount, long timestamp, long today) {
+        roll(today);
+        amounts[next] = amount;
+        timestamps[next] = timestamp;
+        next = (next + 1) & MASK;
+        if (size < CAPACITY) {
+            size++;
+        }
+        dayTotal += amount;
+        dayCount++;
+    }
+
+    // Takes back a debit recorded at timestamp on the local day recordedDay.
+    // The newer debits move down a slot to close the gap; one that has
+    // already dropped out of the buffers only comes off the day's total.
+    void remove(long amount, long timestamp, long recordedDay) {
+        if (recordedDay == day) {
+            dayTotal -= amount;
+            dayCount--;
+        }
+        for (int i = 0; i < size; i++) {
+            if (timestamp(i) == timestamp && amount(i) == amount) {
+                for (int k = i; k > 0; k--) {
+                    int to = (next - 1 - k) & MASK;
+                    int from = (next - k) & MASK;
+                    amounts[to] = amounts[from];
+                    timestamps[to] = timestamps[from];
+                }
+                next = (next - 1) & MASK;
+                size--;
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.brainwave.atm.risk;
+
+import com.brainwave.atm.core.BankService;
+import com.brainwave.atm.core.Money;
+import com.brainwave.atm.core.Operation;
+import com.brainwave.atm.core.Outcome;
+import com.brainwave.atm.core.StatementWriter;
+import com.brainwave.atm.core.Transaction;
+import com.brainwave.atm.core.TransactionQuery;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// BankService that puts withdrawals and transfers through a RiskEngine before
+// they reach another one. The engine reserves every debit it allows; a debit
+// the ledger then refuses is released again. A declined debit returns false
+// like any other failed one; in a batch its outcome is DECLINED. Everything
+// else is passed straight on.
+public class RiskCheckedBank implements BankService {
+    private final BankService bank;
+    private final RiskEngine risk;
+
+    public RiskCheckedBank(BankService bank, RiskEngine risk) {
+        this.bank = bank;
+        this.risk = risk;
+    }
+
+    // Wraps bank with the rules given by system properties (see
+    // RiskEngine.fromSystemProperties), registered under JMX, unless
+    // -Datm.risk=false. The windows start from bank's recent history.
+    public static BankService protect(BankService bank) {
+        if (!Boolean.parseBoolean(System.getProperty("atm.risk", "true"))) {
+            return bank;
+        }
+        RiskEngine risk = RiskEngine.fromSystemProperties();
+        risk.restore(bank);
+        risk.register();
+        return new RiskCheckedBank(bank, risk);
+    }
+
+    public RiskEngine getRiskEngine() {
+        return risk;
+    }
+
+    public boolean openAccount(String accountNumber, String pin, double initialBalance, String accountHolderName) {
+        return bank.openAccount(accountNumber, pin, initialBalance, accountHolderName);
+    }
+
+    public boolean validateAccount(String accountNumber, String pin) {
+        return bank.validateAccount(accountNumber, pin);
+    }
+
+    public boolean isLockedOut(String accountNumber) {
+        return bank.isLockedOut(accountNumber);
+    }
+
+    public long getLockoutSeconds() {
+        return bank.getLockoutSeconds();
+    }
+
+    public String getAccountHolderName(String accountNumber) {
+        return bank.getAccountHolderName(accountNumber);
+    }
+
+    public long getBalancePaise(String accountNumber) {
+        return bank.getBalancePaise(accountNumber);
+    }
+
+    public long balanceInquiry(String accountNumber) {
+        return bank.balanceInquiry(accountNumber);
+    }
+
+    public boolean withdraw(String accountNumber, double amount) {
+        long paise = Money.toPaise(amount);
+        if (!Money.isValidAmount(paise)) {
+            return bank.withdraw(accountNumber, amount);
+        }
+        long reserved = risk.authorize(accountNumber, paise);
+        if (reserved < 0) {
+            return false;
+        }
+        boolean ok = false;
+        try {
+            ok = bank.withdraw(accountNumber, amount);
+        } finally {
+            if (!ok) {
+                risk.release(accountNumber, paise, reserved);
+            }
+        }
+        return ok;
+    }
+
+    public long getRemainingWithdrawalPaise(String accountNumber) {
+        return bank.getRemainingWithdrawalPaise(accountNumber);
+    }
+
+    public boolean deposit(String accountNumber, double amount) {
+        return bank.deposit(accountNumber, amount);
+    }
+
+    public boolean transfer(String fromAccount, String toAccount, double amount) {
+        long paise = Money.toPaise(amount);
+        if (!Money.isValidAmount(paise)) {
+            return bank.transfer(fromAccount, toAccount, amount);
+        }
+        long reserved = risk.authorize(fromAccount, paise);
+        if (reserved < 0) {
+            return false;
+        }
+        boolean ok = false;
+        try {
+            ok = bank.transfer(fromAccount, toAccount, amount);
+        } finally {
+            if (!ok) {
+                risk.release(fromAccount, paise, reserved);
+            }
+        }
+        return ok;
+    }
+
+    public void changePin(String accountNumber, String newPin) {
+        bank.changePin(accountNumber, newPin);
+    }
+
+    public List<Transaction> recentTransactions(String accountNumber, int count) {
+        return bank.recentTransactions(accountNumber, count);
+    }
+
+    public long getTransactionCount(String accountNumber) {
+        return bank.getTransactionCount(accountNumber);
+    }
+
+    public List<Transaction> transactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to,
+                                                 long offset, int limit) {
+        return bank.transactionsBetween(accountNumber, from, to, offset, limit);
+    }
+
+    public long countTransactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to) {
+        return bank.countTransactionsBetween(accountNumber, from, to);
+    }
+
+    public long writeStatement(String accountNumber, LocalDateTime from, LocalDateTime to,
+                               StatementWriter writer, WritableByteChannel out) throws IOException {
+        return bank.writeStatement(accountNumber, from, to, writer, out);
+    }
+
+    public List<String> getAccountNumbers() {
+        return bank.getAccountNumbers();
+    }
+
+    public List<TransactionQuery.Match> findTransactions(TransactionQuery query) {
+        return bank.findTransactions(query);
+    }
+
+    // Every debit is checked up front, in input order, and only those allowed
+    // are passed on. Each allowed debit is reserved as it is checked, so the
+    // later debits of an account in the same batch are checked against it;
+    // those the ledger then refuses are released.
+    public List<Outcome> applyBatch(List<Operation> operations) {
+        int count = operations.size();
+        Outcome[] outcomes = new Outcome[count];
+        List<Operation> allowed = new ArrayList<Operation>(count);
+        int[] positions = new int[count];
+        // Reservation time of each allowed operation; -1 for those not reserved
+        long[] reserved = new long[count];
+        for (int i = 0; i < count; i++) {
+            Operation operation = operations.get(i);
+            long at = -1;
+            if (isDebit(operation) && operation.getAmountPaise() > 0) {
+                at = risk.authorize(operation.getAccount(), operation.getAmountPaise());
+                if (at < 0) {
+                    outcomes[i] = Outcome.DECLINED;
+                    continue;
+                }
+            }
+            reserved[allowed.size()] = at;
+            positions[allowed.size()] = i;
+            allowed.add(operation);
+        }
+
+        List<Outcome> applied = null;
+        try {
+            applied = allowed.isEmpty() ? new ArrayList<Outcome>() : bank.applyBatch(allowed);
+            for (int j = 0; j < applied.size(); j++) {
+                outcomes[positions[j]] = applied.get(j);
+            }
+        } finally {
+            for (int j = 0; j < allowed.size(); j++) {
+                if (reserved[j] >= 0 && (applied == null || applied.get(j) != Outcome.OK)) {
+                    Operation operation = allowed.get(j);
+                    risk.release(operation.getAccount(), operation.getAmountPaise(), reserved[j]);
+                }
+            }
+        }
+        return Arrays.asList(outcomes);
+    }
+
+    private static boolean isDebit(Operation operation) {
+        return operation.getKind() == Operation.Kind.WITHDRAWAL || operation.getKind() == Operation.Kind.TRANSFER;
+    }
+
+    public void close() {
+        bank.close();
+    }
+}
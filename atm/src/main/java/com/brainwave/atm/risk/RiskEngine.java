@@ -0,0 +1,288 @@
+package com.brainwave.atm.risk;
+
+import com.brainwave.atm.core.BankService;
+import com.brainwave.atm.core.Transaction;
+import com.brainwave.atm.core.TransactionType;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+// Pre-authorization pipeline for debits: runs a list of RiskRules against the
+// account's DebitWindow before a withdrawal or transfer reaches the ledger.
+//
+// A check is a map lookup, the window's monitor (only ever contended by the
+// same account's own debits) and the rules, each a few comparisons over at
+// most DebitWindow.CAPACITY primitive slots, so it costs well under a
+// microsecond next to the ledger update and journal write it guards. It still
+// has a hard budget: the clock is read after every rule, and a check that runs
+// past the budget, or a rule that throws, is settled by the fail mode: OPEN
+// lets the debit through, CLOSED declines it. Either way it is counted.
+//
+// An allowed debit is added to the window in the same check (see authorize)
+// and taken out again if the ledger refuses it (see release). Two debits of
+// one account racing each other, or queued in one batch, are therefore each
+// checked against the ones before them and can't outrun the rules together.
+//
+// Windows live in memory only. When the bank opens, restore() counts the last
+// day's debits from its history again, as the ledger does for its withdrawal
+// limit, so a restart resets neither the daily limit nor the velocity count.
+public class RiskEngine implements RiskEngineMXBean {
+    public enum FailMode { OPEN, CLOSED }
+
+    private static final long DAY_MILLIS = 86_400_000L;
+    // History entries read per account and request by restore()
+    private static final int RESTORE_PAGE = 256;
+    private static final Function<String, DebitWindow> NEW_WINDOW = new Function<String, DebitWindow>() {
+        public DebitWindow apply(String account) {
+            return new DebitWindow();
+        }
+    };
+
+    private final RiskRule[] rules;
+    private final long budgetNanos;
+    private final FailMode failMode;
+    private final Map<String, DebitWindow> windows = new ConcurrentHashMap<String, DebitWindow>();
+    private final ZoneRules zone = ZoneId.systemDefault().getRules();
+    private volatile Day day = new Day(Long.MAX_VALUE, Long.MIN_VALUE, 0);
+
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder[] declines;
+    private final LongAdder overBudget = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    // The UTC offset in force from start (inclusive) to end (exclusive)
+    private static final class Day {
+        final long start;
+        final long end;
+        final long offsetMillis;
+
+        Day(long start, long end, long offsetMillis) {
+            this.start = start;
+            this.end = end;
+            this.offsetMillis = offsetMillis;
+        }
+    }
+
+    public RiskEngine(List<RiskRule> rules, long budgetNanos, FailMode failMode) {
+        this.rules = rules.toArray(new RiskRule[0]);
+        this.budgetNanos = budgetNanos;
+        this.failMode = failMode;
+        declines = new LongAdder[this.rules.length];
+        for (int i = 0; i < declines.length; i++) {
+            declines[i] = new LongAdder();
+        }
+    }
+
+    // The rules and settings given by system properties (amounts in rupees):
+    //   atm.risk.daily.limit        most debited per calendar day, cash and
+    //                               transfers together (200000; 0 for no limit)
+    //   atm.risk.velocity.count     debits allowed within ...
+    //   atm.risk.velocity.minutes   ... this many minutes (5 in 10)
+    //   atm.risk.unusual.multiple   largest debit as a multiple of the recent mean (10)
+    //   atm.risk.unusual.floor      debits up to this are never unusual (10000)
+    //   atm.risk.budget.micros      latency budget of a check (100)
+    //   atm.risk.fail               open or closed (open)
+    public static RiskEngine fromSystemProperties() {
+        List<RiskRule> rules = new ArrayList<RiskRule>();
+        long dailyLimit = Long.getLong("atm.risk.daily.limit", 200_000);
+        if (dailyLimit > 0) {
+            rules.add(new DailyLimitRule(dailyLimit * 100));
+        }
+        rules.add(new VelocityRule(Integer.getInteger("atm.risk.velocity.count", 5),
+                                   TimeUnit.MINUTES.toMillis(Long.getLong("atm.risk.velocity.minutes", 10))));
+        rules.add(new UnusualAmountRule(Long.getLong("atm.risk.unusual.multiple", 10),
+                                        Long.getLong("atm.risk.unusual.floor", 10_000) * 100, 5));
+        return new RiskEngine(rules, TimeUnit.MICROSECONDS.toNanos(Long.getLong("atm.risk.budget.micros", 100)),
+                              FailMode.valueOf(System.getProperty("atm.risk.fail", "open").toUpperCase(Locale.ROOT)));
+    }
+
+    // Whether a debit of amount paise from account may go ahead. An allowed
+    // debit is reserved in the account's window straight away; returns the
+    // time it was reserved at, for release() should the ledger refuse it, or
+    // -1 (and nothing reserved) if it is declined.
+    public long authorize(String account, long amount) {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        checks.increment();
+        while (true) {
+            DebitWindow window = windows.computeIfAbsent(account, NEW_WINDOW);
+            synchronized (window) {
+                // Dropped by a release() that emptied it: start over on a new one
+                if (windows.get(account) != window) {
+                    continue;
+                }
+                long today = today(now);
+                window.roll(today);
+                if (!run(window, amount, now, start)) {
+                    dropIfEmpty(account, window);
+                    return -1;
+                }
+                window.record(amount, now, today);
+                return now;
+            }
+        }
+    }
+
+    // Rebuilds the windows from bank's history: every withdrawal and outgoing
+    // transfer since the start of today or in the last 24 hours, whichever
+    // reaches further back. Call it once the bank is open and before the
+    // first check. The unusual-amount rule's mean starts again from these
+    // debits; an account with too few of them passes that rule for a while.
+    public void restore(BankService bank) {
+        long now = System.currentTimeMillis();
+        long today = today(now);
+        long since = Math.min(now - DAY_MILLIS, today * DAY_MILLIS - day.offsetMillis);
+        ZoneId local = ZoneId.systemDefault();
+        LocalDateTime from = LocalDateTime.ofInstant(Instant.ofEpochMilli(since), local);
+        // Past anything recorded before the first check
+        LocalDateTime to = LocalDateTime.ofInstant(Instant.ofEpochMilli(now + DAY_MILLIS), local);
+        for (String account : bank.getAccountNumbers()) {
+            List<Transaction> debits = new ArrayList<Transaction>();
+            for (long offset = 0; ; offset += RESTORE_PAGE) {
+                List<Transaction> page = bank.transactionsBetween(account, from, to, offset, RESTORE_PAGE);
+                for (Transaction transaction : page) {
+                    TransactionType type = transaction.getTransactionType();
+                    if (type == TransactionType.WITHDRAWAL || type == TransactionType.TRANSFER_OUT) {
+                        debits.add(transaction);
+                    }
+                }
+                if (page.size() < RESTORE_PAGE) {
+                    break;
+                }
+            }
+            if (debits.isEmpty()) {
+                continue;
+            }
+            DebitWindow window = windows.computeIfAbsent(account, NEW_WINDOW);
+            synchronized (window) {
+                // Pages come newest first; the window takes them oldest first
+                for (int i = debits.size() - 1; i >= 0; i--) {
+                    Transaction debit = debits.get(i);
+                    window.record(debit.getAmountPaise(), debit.getTimestampMillis(),
+                                  today(debit.getTimestampMillis()));
+                }
+            }
+        }
+    }
+
+    // Takes back a debit authorize() reserved at reservedAt that the ledger
+    // then refused
+    public void release(String account, long amount, long reservedAt) {
+        DebitWindow window = windows.get(account);
+        if (window == null) {
+            return;
+        }
+        synchronized (window) {
+            window.remove(amount, reservedAt, today(reservedAt));
+            dropIfEmpty(account, window);
+        }
+    }
+
+    // Caller holds the window's monitor. Windows only stay in the map while
+    // they hold a debit, so checks against unknown accounts leave nothing.
+    private void dropIfEmpty(String account, DebitWindow window) {
+        if (window.size() == 0) {
+            windows.remove(account, window);
+        }
+    }
+
+    private boolean run(DebitWindow window, long amount, long now, long start) {
+        for (int i = 0; i < rules.length; i++) {
+            try {
+                if (!rules[i].allows(window, amount, now)) {
+                    declines[i].increment();
+                    return false;
+                }
+            } catch (RuntimeException e) {
+                failures.increment();
+                return failMode == FailMode.OPEN;
+            }
+            if (i + 1 < rules.length && System.nanoTime() - start > budgetNanos) {
+                overBudget.increment();
+                return failMode == FailMode.OPEN;
+            }
+        }
+        return true;
+    }
+
+    // Local day number of now; the zone offset is only looked up again when a
+    // transition is crossed
+    private long today(long now) {
+        Day current = day;
+        if (now < current.start || now >= current.end) {
+            Instant instant = Instant.ofEpochMilli(now);
+            ZoneOffsetTransition next = zone.nextTransition(instant);
+            current = new Day(now, next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000,
+                              zone.getOffset(instant).getTotalSeconds() * 1000L);
+            day = current;
+        }
+        return Math.floorDiv(now + current.offsetMillis, DAY_MILLIS);
+    }
+
+    public long getChecks() {
+        return checks.sum();
+    }
+
+    public long getDeclines() {
+        long total = 0;
+        for (LongAdder adder : declines) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    public Map<String, Long> getDeclinesByRule() {
+        Map<String, Long> byRule = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < rules.length; i++) {
+            byRule.put(rules[i].getName(), declines[i].sum());
+        }
+        return byRule;
+    }
+
+    public long getOverBudget() {
+        return overBudget.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getBudgetMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(budgetNanos);
+    }
+
+    public String getFailMode() {
+        return failMode.name().toLowerCase(Locale.ROOT);
+    }
+
+    // Registers this engine with the platform MBean server, replacing any
+    // registered earlier in this JVM
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName("com.brainwave.atm:type=Risk");
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register risk engine with JMX", e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.brainwave.atm.risk;
+
+import java.util.Map;
+
+// JMX view of a RiskEngine, registered as com.brainwave.atm:type=Risk
+public interface RiskEngineMXBean {
+    long getChecks();
+
+    long getDeclines();
+
+    // Declines by rule name
+    Map<String, Long> getDeclinesByRule();
+
+    // Checks that ran out of their latency budget before every rule had run
+    long getOverBudget();
+
+    // Checks in which a rule threw
+    long getFailures();
+
+    long getBudgetMicros();
+
+    // "open" (allow) or "closed" (decline) when a check runs over budget or fails
+    String getFailMode();
+}
@@ -0,0 +1,14 @@
+package com.brainwave.atm.risk;
+
+// One check of RiskEngine's pre-authorization pipeline, e.g. a daily limit.
+// Rules see the debit being authorized and the account's DebitWindow; they
+// keep no state of their own, so one instance serves every account.
+public interface RiskRule {
+    // Short name used in counters and reports, e.g. "daily-limit"
+    String getName();
+
+    // Whether a debit of amount paise at now (epoch millis) may go ahead.
+    // Runs on the withdrawal path under the window's monitor: it must not
+    // block, and should take well under a microsecond.
+    boolean allows(DebitWindow window, long amount, long now);
+}
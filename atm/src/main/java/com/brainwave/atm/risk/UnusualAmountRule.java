@@ -0,0 +1,40 @@
+package com.brainwave.atm.risk;
+
+// Declines a debit more than multiple times the mean of the account's recent
+// debits. Amounts up to floor always pass, as does anything on an account
+// with fewer than minHistory debits to compare against.
+public final class UnusualAmountRule implements RiskRule {
+    private final long multiple;
+    private final long floor;
+    private final int minHistory;
+
+    // floor in paise
+    public UnusualAmountRule(long multiple, long floor, int minHistory) {
+        this.multiple = multiple;
+        this.floor = floor;
+        this.minHistory = Math.min(minHistory, DebitWindow.CAPACITY);
+    }
+
+    public String getName() {
+        return "unusual-amount";
+    }
+
+    public boolean allows(DebitWindow window, long amount, long now) {
+        int size = window.size();
+        if (amount <= floor || size < minHistory) {
+            return true;
+        }
+        // amount <= multiple * mean, without dividing
+        return productAtMost(amount, size, multiple, window.total());
+    }
+
+    // a * b <= c * d, compared as 128-bit products so that nothing overflows
+    static boolean productAtMost(long a, long b, long c, long d) {
+        long high = Math.multiplyHigh(a, b);
+        long otherHigh = Math.multiplyHigh(c, d);
+        if (high != otherHigh) {
+            return high < otherHigh;
+        }
+        return Long.compareUnsigned(a * b, c * d) <= 0;
+    }
+}
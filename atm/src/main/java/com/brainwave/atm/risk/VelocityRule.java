@@ -0,0 +1,22 @@
+package com.brainwave.atm.risk;
+
+// Declines a debit if the account already had maxDebits debits in the last
+// windowMillis: a card being emptied in many small withdrawals
+public final class VelocityRule implements RiskRule {
+    private final int maxDebits;
+    private final long windowMillis;
+
+    // maxDebits is capped at DebitWindow.CAPACITY, the most a window can count
+    public VelocityRule(int maxDebits, long windowMillis) {
+        this.maxDebits = Math.min(maxDebits, DebitWindow.CAPACITY);
+        this.windowMillis = windowMillis;
+    }
+
+    public String getName() {
+        return "velocity";
+    }
+
+    public boolean allows(DebitWindow window, long amount, long now) {
+        return window.countSince(now - windowMillis) < maxDebits;
+    }
+}
@@ -0,0 +1,458 @@
+package com.brainwave.atm.server;
+
+import com.brainwave.atm.core.BankEngine;
+import com.brainwave.atm.core.BankService;
+import com.brainwave.atm.core.Money;
+import com.brainwave.atm.core.StatementFormat;
+import com.brainwave.atm.core.Transaction;
+import com.brainwave.atm.metrics.InstrumentedBank;
+import com.brainwave.atm.risk.RiskCheckedBank;
+import com.brainwave.atm.statement.StatementStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// TCP front end that lets remote terminals use a Bank, one thread per session.
+//
+// Sessions run on virtual threads when the runtime provides them (Java 21+),
+// so tens of thousands of mostly idle connections cost little more than their
+// sockets. On older runtimes each session gets a platform thread with a small
+// stack (atm.server.stack.kb, default 256) from a cached pool. Blocking calls
+// into the Bank (journal fsyncs, PIN hashing) simply park the session thread.
+//
+// Protocol: one request per line, one response line per request, fields
+// separated by tabs, UTF-8. Amounts and balances are paise.
+//   LOGIN account pin      -> OK holderName | DENIED
+//   LOCKOUT account        -> OK locked(0|1) lockoutSeconds
+//   HOLDER account         -> OK holderName | DENIED
+//   BALANCE                -> OK balance
+//   INQUIRY                -> OK balance          (recorded as a balance inquiry)
+//   WITHDRAW amount        -> OK | DENIED
+//   LIMIT                  -> OK remaining        (cash still allowed by the withdrawal limit)
+//   DEPOSIT amount         -> OK | DENIED
+//   TRANSFER account amount-> OK | DENIED
+//   PIN newPin             -> OK                 (newPin is four digits)
+//   HISTORY count          -> OK total n, then n lines:
+//                             typeCode counterparty amount balanceAfter timestampMillis
+//                             (count 0 just asks for the total)
+//   RANGE from to offset limit -> OK n, then n history lines as above: entries with
+//                             from <= timestamp < to (ISO local date-times), newest first
+//   RANGECOUNT from to     -> OK count
+//   STATEMENT first last format -> OK size, then size bytes of the statement of
+//                             the days first to last (ISO dates) in format (csv
+//                             or binary, see StatementFormat), sent from the
+//                             StatementStore's file
+//   LOGOUT                 -> OK
+// LOGOUT always succeeds. Everything between LOCKOUT and LOGOUT needs a successful LOGIN on the connection and acts
+// on that account; a failed LOGIN leaves the session as it was. Malformed or
+// unauthorized requests get "ERR message", as do negative counts and offsets,
+// a limit below 1, amounts outside 1 to Money.MAX_AMOUNT_PAISE and a new PIN
+// that isn't four digits; counts and limits above atm.server.max.page
+// (default 500) are cut down to it. Idle connections are closed after
+// atm.server.idle.seconds (default 300).
+//
+// The protocol is clear text, PINs included, so the server listens on
+// loopback unless -Datm.server.bind says otherwise. Terminals on other hosts
+// should reach it through a TLS tunnel (stunnel, ssh -L or similar) rather
+// than over an open port.
+public class AtmServer implements Closeable {
+    public static final int DEFAULT_PORT = 7070;
+
+    static final String OK = "OK";
+    static final String DENIED = "DENIED";
+    static final String ERR = "ERR";
+    static final int MAX_LINE = 1024;
+
+    private final BankService bank;
+    // Null when the server doesn't serve statements
+    private final StatementStore statements;
+    private final ServerSocket serverSocket;
+    private final ExecutorService sessions;
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private final int idleMillis;
+    // Most history entries one HISTORY or RANGE reply carries
+    private final int maxPage;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    public AtmServer(BankService bank, int port) throws IOException {
+        this(bank, "127.0.0.1", port, null);
+    }
+
+    public AtmServer(BankService bank, String bindAddress, int port, StatementStore statements) throws IOException {
+        this.bank = bank;
+        this.statements = statements;
+        this.idleMillis = Integer.getInteger("atm.server.idle.seconds", 300) * 1000;
+        this.maxPage = Math.max(1, Integer.getInteger("atm.server.max.page", 500));
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(bindAddress, port), 4096);
+        this.sessions = newSessionExecutor();
+        this.acceptor = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "atm-accept");
+    }
+
+    public void start() {
+        acceptor.start();
+    }
+
+    // Port actually bound (useful when constructed with port 0)
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Stops accepting, drops every open session and waits for the acceptor
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        for (Socket socket : open) {
+            closeQuietly(socket);
+        }
+        sessions.shutdownNow();
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Virtual-thread-per-task executor when available, else a cached pool of
+    // small-stack daemon threads
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            final long stackSize = Long.getLong("atm.server.stack.kb", 256) * 1024;
+            final AtomicInteger created = new AtomicInteger();
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(null, task, "atm-session-" + created.incrementAndGet(), stackSize);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("ATM server accept failed: " + e);
+                }
+                continue;
+            }
+            open.add(socket);
+            try {
+                sessions.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                open.remove(socket);
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(idleMillis);
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            Session session = new Session(Channels.newChannel(socket.getOutputStream()));
+
+            String line;
+            while ((line = readLine(in)) != null) {
+                session.handle(line.split("\t", -1), out);
+                out.flush();
+            }
+        } catch (SocketTimeoutException e) {
+            // idle too long
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            open.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    // Reads one '\n'-terminated UTF-8 line without the terminator (carriage
+    // returns are dropped); null at end of stream. Lines longer than MAX_LINE
+    // end the session.
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            }
+            if (b != '\r') {
+                if (line.size() == MAX_LINE) {
+                    throw new IOException("Request line too long");
+                }
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    // State of one connection: which account, if any, it is logged in to
+    private final class Session {
+        // The connection's output for raw bytes, written after flushing the Writer
+        private final WritableByteChannel raw;
+        private String account;
+
+        Session(WritableByteChannel raw) {
+            this.raw = raw;
+        }
+
+        void handle(String[] request, Writer out) throws IOException {
+            String command = request[0];
+            try {
+                if (command.equals("LOGIN") && request.length == 3) {
+                    if (bank.validateAccount(request[1], request[2])) {
+                        account = request[1];
+                        reply(out, OK, bank.getAccountHolderName(account));
+                    } else {
+                        reply(out, DENIED);
+                    }
+                    return;
+                }
+                if (command.equals("LOCKOUT") && request.length == 2) {
+                    reply(out, OK, bank.isLockedOut(request[1]) ? "1" : "0", Long.toString(bank.getLockoutSeconds()));
+                    return;
+                }
+                if (command.equals("LOGOUT")) {
+                    account = null;
+                    reply(out, OK);
+                    return;
+                }
+                if (account == null) {
+                    reply(out, ERR, "Not logged in");
+                    return;
+                }
+
+                switch (command) {
+                    case "HOLDER": {
+                        String holder = request.length == 2 ? bank.getAccountHolderName(request[1]) : null;
+                        if (holder == null) {
+                            reply(out, DENIED);
+                        } else {
+                            reply(out, OK, holder);
+                        }
+                        break;
+                    }
+                    case "BALANCE":
+                        reply(out, OK, Long.toString(bank.getBalancePaise(account)));
+                        break;
+                    case "INQUIRY":
+                        reply(out, OK, Long.toString(bank.balanceInquiry(account)));
+                        break;
+                    case "WITHDRAW":
+                        reply(out, bank.withdraw(account, amount(request, 1)) ? OK : DENIED);
+                        break;
+                    case "LIMIT":
+                        reply(out, OK, Long.toString(bank.getRemainingWithdrawalPaise(account)));
+                        break;
+                    case "DEPOSIT":
+                        reply(out, bank.deposit(account, amount(request, 1)) ? OK : DENIED);
+                        break;
+                    case "TRANSFER":
+                        reply(out, bank.transfer(account, request[1], amount(request, 2)) ? OK : DENIED);
+                        break;
+                    case "PIN":
+                        bank.changePin(account, pin(request[1]));
+                        reply(out, OK);
+                        break;
+                    case "HISTORY": {
+                        List<Transaction> recent = bank.recentTransactions(account, pageSize(request[1], 0, "Count must not be negative"));
+                        reply(out, OK, Long.toString(bank.getTransactionCount(account)), Integer.toString(recent.size()));
+                        writeTransactions(out, recent);
+                        break;
+                    }
+                    case "RANGE": {
+                        List<Transaction> page = bank.transactionsBetween(account, LocalDateTime.parse(request[1]),
+                                                                          LocalDateTime.parse(request[2]),
+                                                                          offset(request[3]),
+                                                                          pageSize(request[4], 1, "Limit must be positive"));
+                        reply(out, OK, Integer.toString(page.size()));
+                        writeTransactions(out, page);
+                        break;
+                    }
+                    case "RANGECOUNT":
+                        reply(out, OK, Long.toString(bank.countTransactionsBetween(account, LocalDateTime.parse(request[1]),
+                                                                                   LocalDateTime.parse(request[2]))));
+                        break;
+                    case "STATEMENT":
+                        sendStatement(out, LocalDate.parse(request[1]), LocalDate.parse(request[2]),
+                                      StatementFormat.fromName(request[3]));
+                        break;
+                    default:
+                        reply(out, ERR, "Unknown request " + command);
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException | DateTimeParseException e) {
+                reply(out, ERR, "Malformed request " + command);
+            } catch (IllegalArgumentException e) {
+                reply(out, ERR, e.getMessage());
+            }
+        }
+
+        private void sendStatement(Writer out, LocalDate first, LocalDate last, StatementFormat format) throws IOException {
+            if (statements == null) {
+                reply(out, ERR, "Statements are not served here");
+                return;
+            }
+            if (last.isBefore(first)) {
+                reply(out, ERR, "Statement ends before it starts");
+                return;
+            }
+            try (FileChannel file = FileChannel.open(statements.render(account, first, last, format),
+                                                     StandardOpenOption.READ)) {
+                reply(out, OK, Long.toString(file.size()));
+                out.flush();
+                StatementStore.send(file, raw);
+            }
+        }
+
+        private void writeTransactions(Writer out, List<Transaction> transactions) throws IOException {
+            for (Transaction transaction : transactions) {
+                String counterparty = transaction.getCounterparty();
+                reply(out, Byte.toString(transaction.getTransactionType().getCode()),
+                      counterparty == null ? "" : counterparty,
+                      Long.toString(transaction.getAmountPaise()),
+                      Long.toString(transaction.getBalanceAfterPaise()),
+                      Long.toString(transaction.getTimestampMillis()));
+            }
+        }
+
+        private double amount(String[] request, int index) {
+            long paise = Long.parseLong(request[index]);
+            if (!Money.isValidAmount(paise)) {
+                throw new IllegalArgumentException("Amount must be 1 to " + Money.MAX_AMOUNT_PAISE + " paise");
+            }
+            return Money.toRupees(paise);
+        }
+
+        // Same rule the terminals apply before sending PIN
+        private String pin(String newPin) {
+            if (!newPin.matches("\\d{4}")) {
+                throw new IllegalArgumentException("PIN must be four digits");
+            }
+            return newPin;
+        }
+
+        // A HISTORY count or RANGE limit of at least min, cut down to maxPage so
+        // one request can't make the server read and send a whole history
+        private int pageSize(String field, int min, String tooSmall) {
+            int size = Integer.parseInt(field);
+            if (size < min) {
+                throw new IllegalArgumentException(tooSmall);
+            }
+            return Math.min(size, maxPage);
+        }
+
+        private long offset(String field) {
+            long offset = Long.parseLong(field);
+            if (offset < 0) {
+                throw new IllegalArgumentException("Offset must not be negative");
+            }
+            return offset;
+        }
+    }
+
+    // Writes one line; tabs and line breaks inside a field become spaces so
+    // they can't break the framing
+    static void reply(Writer out, String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                out.write('\t');
+            }
+            String field = fields[i];
+            for (int c = 0; c < field.length(); c++) {
+                char ch = field.charAt(c);
+                out.write(ch == '\t' || ch == '\n' || ch == '\r' ? ' ' : ch);
+            }
+        }
+        out.write('\n');
+    }
+
+    //   java -cp atm.jar com.brainwave.atm.server.AtmServer [--port 7070] [--data dir] [--engine name]
+    //        [--statements dir]
+    // serves statements rendered into dir (default statements)
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = DEFAULT_PORT;
+        String statements = "statements";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                case "--statements": statements = args[i + 1]; break;
+                case "--data": System.setProperty("atm.data", args[i + 1]); break;
+                case "--engine": System.setProperty("atm.engine", args[i + 1]); break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        final BankService bank = InstrumentedBank.instrument(RiskCheckedBank.protect(BankEngine.fromSystemProperties()));
+        final AtmServer server = new AtmServer(bank, System.getProperty("atm.server.bind", "127.0.0.1"), port,
+                                                new StatementStore(bank, Paths.get(statements)));
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                server.close();
+                bank.close();
+            }
+        }, "atm-shutdown"));
+        server.start();
+        System.out.println("ATM server listening on port " + server.getPort());
+        server.acceptor.join();
+    }
+}
@@ -0,0 +1,497 @@
+package com.brainwave.atm.server;
+
+import com.brainwave.atm.core.BankEngine;
+import com.brainwave.atm.core.BankService;
+import com.brainwave.atm.core.Operation;
+import com.brainwave.atm.core.Outcome;
+import com.brainwave.atm.metrics.InstrumentedBank;
+import com.brainwave.atm.risk.RiskCheckedBank;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking binary front end for gateways that multiplex many terminals
+// over a few connections and pipeline their requests.
+//
+// One selector thread does all socket I/O. Bytes are read into a direct buffer
+// per connection; once it holds at least one complete frame, reading from that
+// connection pauses and a worker decodes every complete frame in place (no copy
+// into request objects) and runs them: withdrawals, deposits and transfers go
+// to the bank as one applyBatch, so a whole pipelined burst shares a single
+// journal fsync. Responses are encoded into a pooled direct buffer and handed
+// back to the selector, which sends everything queued for a connection with
+// one gathering write. Requests of one connection are answered in order.
+//
+// Frames are big-endian:
+//   request:  short length | int id | byte op | account | [counterparty] | [long paise]
+//             (account and counterparty: byte length + ASCII)
+//     op 1 BALANCE  account
+//     op 2 WITHDRAW account paise
+//     op 3 DEPOSIT  account paise
+//     op 4 TRANSFER account counterparty paise
+//   response: short length (13) | int id | byte status | long balance (BALANCE only, else 0)
+// where length counts the bytes after itself.
+//
+// The gateway authenticates cardholders itself; this port trusts its peer and
+// therefore listens on loopback unless -Datm.gateway.bind says otherwise.
+public class GatewayServer implements Closeable {
+    public static final int DEFAULT_PORT = 7071;
+
+    static final byte BALANCE = 1;
+    static final byte WITHDRAW = 2;
+    static final byte DEPOSIT = 3;
+    static final byte TRANSFER = 4;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_UNKNOWN_ACCOUNT = 1;
+    static final byte STATUS_INVALID_AMOUNT = 2;
+    static final byte STATUS_INSUFFICIENT_FUNDS = 3;
+    static final byte STATUS_MALFORMED = 4;
+    static final byte STATUS_DECLINED = 5;
+    static final byte STATUS_LIMIT_EXCEEDED = 6;
+
+    static final int RESPONSE_SIZE = 15;
+    static final int MAX_ACCOUNT_LENGTH = 32;
+    static final int MAX_FRAME = 2 + 4 + 1 + 2 * (1 + MAX_ACCOUNT_LENGTH) + 8;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RESPONSES = BUFFER_SIZE / RESPONSE_SIZE;
+    // A peer that stops reading gets no more requests served past this many
+    // unsent response buffers
+    private static final int MAX_QUEUED_WRITES = 8;
+
+    private final BankService bank;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+    private final Queue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+    private final Thread reactor;
+    private volatile boolean running = true;
+
+    public GatewayServer(BankService bank, String bindAddress, int port) throws IOException {
+        this.bank = bank;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(bindAddress, port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        // Workers mostly wait on journal fsyncs, so more of them than cores lets
+        // bursts from different connections share one
+        int threads = Integer.getInteger("atm.gateway.workers",
+                Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+        final AtomicInteger created = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "atm-gateway-worker-" + created.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.reactor = new Thread(new Runnable() {
+            public void run() {
+                reactorLoop();
+            }
+        }, "atm-gateway");
+    }
+
+    public void start() {
+        reactor.start();
+    }
+
+    // Port actually bound (useful when constructed with port 0)
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Stops the selector thread, drops every connection and the workers
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            reactor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    private void reactorLoop() {
+        try {
+            while (running) {
+                selector.select();
+                Connection done;
+                while ((done = completed.poll()) != null) {
+                    done.batchFinished();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            connection.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            System.err.println("ATM gateway stopped: " + e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            closeQuietly(selector);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    // One client connection. Everything except execute() runs on the selector
+    // thread; while a batch is out with a worker the selector leaves the input
+    // buffer alone, and the hand-over through the completed queue publishes
+    // what the worker wrote.
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ArrayDeque<ByteBuffer> queued = new ArrayDeque<ByteBuffer>();
+        private final ArrayDeque<ByteBuffer> spare = new ArrayDeque<ByteBuffer>();
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_QUEUED_WRITES];
+        private boolean busy;
+        private boolean closed;
+
+        // Handed to the worker running the current batch
+        private ByteBuffer out;
+        private boolean malformed;
+
+        // Scratch for execute(), reused across batches
+        private final byte[] text = new byte[MAX_ACCOUNT_LENGTH];
+        private final List<Operation> operations = new ArrayList<Operation>();
+        private int[] slots = new int[64];
+        private final Set<String> touched = new HashSet<String>();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            // The key can still report readable from before a batch went out
+            if (busy) {
+                return;
+            }
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            resume();
+        }
+
+        // Starts on buffered frames unless a batch is running or the peer is
+        // behind on reading responses
+        private void resume() {
+            if (!busy && queued.size() < MAX_QUEUED_WRITES) {
+                in.flip();
+                dispatch();
+            } else {
+                updateInterest();
+            }
+        }
+
+        // Caller has in flipped for reading. Hands any complete frames to a
+        // worker, otherwise goes back to reading.
+        private void dispatch() {
+            if (!hasCompleteFrame()) {
+                in.compact();
+                updateInterest();
+                return;
+            }
+            busy = true;
+            out = spare.isEmpty() ? ByteBuffer.allocateDirect(MAX_RESPONSES * RESPONSE_SIZE) : spare.poll();
+            out.clear();
+            updateInterest();
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        execute();
+                    } catch (RuntimeException e) {
+                        malformed = true;
+                        System.err.println("ATM gateway batch failed: " + e);
+                    }
+                    completed.add(Connection.this);
+                    selector.wakeup();
+                }
+            });
+        }
+
+        void batchFinished() {
+            busy = false;
+            if (closed) {
+                return;
+            }
+            in.compact();
+            out.flip();
+            queued.add(out);
+            out = null;
+            try {
+                if (malformed) {
+                    // The frames can't be trusted any more; send what was
+                    // answered and hang up
+                    busy = true;
+                    write();
+                    close();
+                    return;
+                }
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void write() throws IOException {
+            while (!queued.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buffer : queued) {
+                    gather[count++] = buffer;
+                }
+                channel.write(gather, 0, count);
+                while (!queued.isEmpty() && !queued.peek().hasRemaining()) {
+                    spare.add(queued.poll());
+                }
+                if (!queued.isEmpty() && queued.peek().hasRemaining()) {
+                    break;
+                }
+            }
+            resume();
+        }
+
+        private void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (!busy && queued.size() < MAX_QUEUED_WRITES) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!queued.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private boolean hasCompleteFrame() {
+            if (in.remaining() < 2) {
+                return false;
+            }
+            int length = in.getShort(in.position()) & 0xffff;
+            // Oversized frames are reported by execute() as malformed
+            return length > MAX_FRAME - 2 || in.remaining() >= 2 + length;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+        }
+
+        // Worker side: answers complete frames from in (flipped) into out,
+        // leaving in positioned at the first unprocessed byte
+        private void execute() {
+            operations.clear();
+            touched.clear();
+            int responses = 0;
+
+            while (responses < MAX_RESPONSES && hasCompleteFrame()) {
+                int start = in.position();
+                int length = in.getShort(start) & 0xffff;
+                if (length < 5 || length > MAX_FRAME - 2) {
+                    malformed = true;
+                    break;
+                }
+                int end = start + 2 + length;
+                int id = in.getInt(start + 2);
+                byte op = in.get(start + 6);
+                int slot = responses++;
+                respond(slot, id, STATUS_MALFORMED, 0);
+
+                int position = start + 7;
+                String account = null;
+                String counterparty = null;
+                long paise = 0;
+                boolean valid = op >= BALANCE && op <= TRANSFER;
+                if (valid) {
+                    account = readAccount(position, end);
+                    valid = account != null;
+                    position += valid ? 1 + account.length() : 0;
+                }
+                if (valid && op == TRANSFER) {
+                    counterparty = readAccount(position, end);
+                    valid = counterparty != null;
+                    position += valid ? 1 + counterparty.length() : 0;
+                }
+                if (valid && op != BALANCE) {
+                    valid = position + 8 <= end;
+                    paise = valid ? in.getLong(position) : 0;
+                    position += 8;
+                }
+                in.position(end);
+                if (!valid || position != end) {
+                    continue;
+                }
+
+                if (op == BALANCE) {
+                    // Answer from the ledger as it stands after the requests
+                    // before it on this connection
+                    if (touched.contains(account)) {
+                        flush();
+                    }
+                    long balance = bank.getBalancePaise(account);
+                    if (balance < 0) {
+                        respond(slot, id, STATUS_UNKNOWN_ACCOUNT, 0);
+                    } else {
+                        respond(slot, id, STATUS_OK, balance);
+                    }
+                    continue;
+                }
+
+                Operation.Kind kind = op == WITHDRAW ? Operation.Kind.WITHDRAWAL
+                                      : op == DEPOSIT ? Operation.Kind.DEPOSIT : Operation.Kind.TRANSFER;
+                if (operations.size() == slots.length) {
+                    int[] grown = new int[slots.length * 2];
+                    System.arraycopy(slots, 0, grown, 0, slots.length);
+                    slots = grown;
+                }
+                slots[operations.size()] = slot;
+                operations.add(Operation.ofPaise(kind, account, counterparty, paise));
+                touched.add(account);
+                if (counterparty != null) {
+                    touched.add(counterparty);
+                }
+            }
+            flush();
+            out.position(responses * RESPONSE_SIZE);
+        }
+
+        // Runs the pending operations as one batch and fills in their statuses
+        private void flush() {
+            if (operations.isEmpty()) {
+                return;
+            }
+            List<Outcome> outcomes = bank.applyBatch(operations);
+            for (int i = 0; i < outcomes.size(); i++) {
+                out.put(slots[i] * RESPONSE_SIZE + 6, status(outcomes.get(i)));
+            }
+            operations.clear();
+            touched.clear();
+        }
+
+        private void respond(int slot, int id, byte status, long balance) {
+            int position = slot * RESPONSE_SIZE;
+            out.putShort(position, (short) (RESPONSE_SIZE - 2));
+            out.putInt(position + 2, id);
+            out.put(position + 6, status);
+            out.putLong(position + 7, balance);
+        }
+
+        // Length-prefixed ASCII account number at position, or null if it
+        // doesn't fit before end
+        private String readAccount(int position, int end) {
+            if (position >= end) {
+                return null;
+            }
+            int length = in.get(position) & 0xff;
+            if (length == 0 || length > MAX_ACCOUNT_LENGTH || position + 1 + length > end) {
+                return null;
+            }
+            in.get(position + 1, text, 0, length);
+            return new String(text, 0, length, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static byte status(Outcome outcome) {
+        switch (outcome) {
+            case OK: return STATUS_OK;
+            case UNKNOWN_ACCOUNT: return STATUS_UNKNOWN_ACCOUNT;
+            case INVALID_AMOUNT: return STATUS_INVALID_AMOUNT;
+            // ALREADY_POSTED only comes from INTEREST, which the gateway doesn't carry
+            case DECLINED: case ALREADY_POSTED: return STATUS_DECLINED;
+            case LIMIT_EXCEEDED: return STATUS_LIMIT_EXCEEDED;
+            default: return STATUS_INSUFFICIENT_FUNDS;
+        }
+    }
+
+    //   java -cp atm.jar com.brainwave.atm.server.GatewayServer [--port 7071] [--data dir] [--engine name]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = DEFAULT_PORT;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                case "--data": System.setProperty("atm.data", args[i + 1]); break;
+                case "--engine": System.setProperty("atm.engine", args[i + 1]); break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        final BankService bank = InstrumentedBank.instrument(RiskCheckedBank.protect(BankEngine.fromSystemProperties()));
+        final GatewayServer server = new GatewayServer(bank, System.getProperty("atm.gateway.bind", "127.0.0.1"), port);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                server.close();
+                bank.close();
+            }
+        }, "atm-shutdown"));
+        server.start();
+        System.out.println("ATM gateway listening on port " + server.getPort());
+        server.reactor.join();
+    }
+}
@@ -0,0 +1,250 @@
+package com.brainwave.atm.server;
+
+import com.brainwave.atm.core.Money;
+import com.brainwave.atm.core.StatementFormat;
+import com.brainwave.atm.core.StatementWriter;
+import com.brainwave.atm.core.TerminalBank;
+import com.brainwave.atm.core.Transaction;
+import com.brainwave.atm.core.TransactionType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+// TerminalBank backed by an AtmServer, for a terminal running on another
+// machine. One connection per terminal; calls are synchronous request/response.
+//
+// The server scopes every operation to the account the connection logged in
+// to, so calls naming any other account fail here without a round trip.
+// Opening accounts, listing and searching them and batches are back-office
+// operations (see BankService) and are not part of a terminal's view.
+public class RemoteBank implements TerminalBank {
+    private final Socket socket;
+    private final InputStream in;
+    private final Writer out;
+    private String loggedIn;
+
+    public RemoteBank(String host, int port) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), 10_000);
+        socket.setTcpNoDelay(true);
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    // Connects to "host:port" (the port defaults to AtmServer.DEFAULT_PORT)
+    public static RemoteBank connect(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return new RemoteBank(address, AtmServer.DEFAULT_PORT);
+        }
+        return new RemoteBank(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    public synchronized boolean validateAccount(String accountNumber, String pin) {
+        if (call("LOGIN", accountNumber, pin)[0].equals(AtmServer.OK)) {
+            loggedIn = accountNumber;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isLockedOut(String accountNumber) {
+        return call("LOCKOUT", accountNumber)[1].equals("1");
+    }
+
+    public long getLockoutSeconds() {
+        return Long.parseLong(call("LOCKOUT", "")[2]);
+    }
+
+    public String getAccountHolderName(String accountNumber) {
+        String[] reply = call("HOLDER", accountNumber);
+        return reply[0].equals(AtmServer.OK) ? reply[1] : null;
+    }
+
+    public long getBalancePaise(String accountNumber) {
+        return isSession(accountNumber) ? Long.parseLong(call("BALANCE")[1]) : -1;
+    }
+
+    public long balanceInquiry(String accountNumber) {
+        return isSession(accountNumber) ? Long.parseLong(call("INQUIRY")[1]) : -1;
+    }
+
+    public boolean withdraw(String accountNumber, double amount) {
+        return isSession(accountNumber) && ok(call("WITHDRAW", paise(amount)));
+    }
+
+    public long getRemainingWithdrawalPaise(String accountNumber) {
+        return isSession(accountNumber) ? Long.parseLong(call("LIMIT")[1]) : -1;
+    }
+
+    public boolean deposit(String accountNumber, double amount) {
+        return isSession(accountNumber) && ok(call("DEPOSIT", paise(amount)));
+    }
+
+    public boolean transfer(String fromAccount, String toAccount, double amount) {
+        return isSession(fromAccount) && ok(call("TRANSFER", toAccount, paise(amount)));
+    }
+
+    public void changePin(String accountNumber, String newPin) {
+        if (isSession(accountNumber)) {
+            call("PIN", newPin);
+        }
+    }
+
+    public synchronized List<Transaction> recentTransactions(String accountNumber, int count) {
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        // The server refuses negative counts; locally they just find nothing
+        if (!isSession(accountNumber) || count <= 0) {
+            return transactions;
+        }
+        receiveTransactions(Integer.parseInt(call("HISTORY", Integer.toString(count))[2]), transactions);
+        return transactions;
+    }
+
+    public synchronized long getTransactionCount(String accountNumber) {
+        if (!isSession(accountNumber)) {
+            return 0;
+        }
+        String[] reply = call("HISTORY", "0");
+        return Long.parseLong(reply[1]);
+    }
+
+    public synchronized List<Transaction> transactionsBetween(String accountNumber, LocalDateTime from,
+                                                              LocalDateTime to, long offset, int limit) {
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        if (!isSession(accountNumber) || offset < 0 || limit <= 0) {
+            return transactions;
+        }
+        String[] reply = call("RANGE", from.toString(), to.toString(), Long.toString(offset), Integer.toString(limit));
+        receiveTransactions(Integer.parseInt(reply[1]), transactions);
+        return transactions;
+    }
+
+    public long countTransactionsBetween(String accountNumber, LocalDateTime from, LocalDateTime to) {
+        return isSession(accountNumber) ? Long.parseLong(call("RANGECOUNT", from.toString(), to.toString())[1]) : 0;
+    }
+
+    // Asks for the statement with STATEMENT, which covers whole days as the
+    // server's clock counts them, so from and to must both be midnight. The
+    // server renders it in writer's format; its entries are counted as the
+    // bytes go by.
+    public synchronized long writeStatement(String accountNumber, LocalDateTime from, LocalDateTime to,
+                                            StatementWriter writer, WritableByteChannel out) throws IOException {
+        if (!from.toLocalTime().equals(LocalTime.MIDNIGHT) || !to.toLocalTime().equals(LocalTime.MIDNIGHT)
+                || !to.isAfter(from)) {
+            throw new IllegalArgumentException("A remote statement covers whole days");
+        }
+        if (!isSession(accountNumber)) {
+            return -1;
+        }
+        String[] reply = call("STATEMENT", from.toLocalDate().toString(), to.toLocalDate().minusDays(1).toString(),
+                              writer.getFormat().name());
+        return receiveStatement(Long.parseLong(reply[1]), writer.getFormat(), out);
+    }
+
+    // Ends the session and drops the connection
+    public synchronized void close() {
+        try {
+            if (!socket.isClosed()) {
+                call("LOGOUT");
+            }
+        } catch (UncheckedIOException | IllegalStateException e) {
+            // closing anyway
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private synchronized boolean isSession(String accountNumber) {
+        return accountNumber != null && accountNumber.equals(loggedIn);
+    }
+
+    private static boolean ok(String[] reply) {
+        return reply[0].equals(AtmServer.OK);
+    }
+
+    private static String paise(double amount) {
+        return Long.toString(Money.toPaise(amount));
+    }
+
+    private synchronized String[] call(String... request) {
+        try {
+            AtmServer.reply(out, request);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Lost connection to ATM server", e);
+        }
+        String[] reply = receive();
+        if (reply[0].equals(AtmServer.ERR)) {
+            throw new IllegalStateException("ATM server rejected request: " + (reply.length > 1 ? reply[1] : ""));
+        }
+        return reply;
+    }
+
+    // Reads the history lines that follow a HISTORY or RANGE reply
+    private void receiveTransactions(int lines, List<Transaction> transactions) {
+        for (int i = 0; i < lines; i++) {
+            String[] fields = receive();
+            transactions.add(new Transaction(TransactionType.fromCode(Byte.parseByte(fields[0])),
+                                             fields[1].isEmpty() ? null : fields[1],
+                                             Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                                             Long.parseLong(fields[4])));
+        }
+    }
+
+    // Copies the size bytes of statement that follow a STATEMENT reply to out;
+    // returns the number of entries: CSV lines after the header, or the
+    // count that ends a binary statement
+    private long receiveStatement(long size, StatementFormat format, WritableByteChannel out) throws IOException {
+        byte[] chunk = new byte[8192];
+        long lines = 0;
+        long last = 0;
+        while (size > 0) {
+            int read = in.read(chunk, 0, (int) Math.min(chunk.length, size));
+            if (read < 0) {
+                throw new IOException("Connection closed by ATM server");
+            }
+            for (int i = 0; i < read; i++) {
+                if (chunk[i] == '\n') {
+                    lines++;
+                }
+                last = last << 8 | (chunk[i] & 0xff);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, read);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            size -= read;
+        }
+        return format == StatementFormat.CSV ? Math.max(0, lines - 1) : last;
+    }
+
+    private String[] receive() {
+        try {
+            String line = AtmServer.readLine(in);
+            if (line == null) {
+                throw new IOException("Connection closed by ATM server");
+            }
+            return line.split("\t", -1);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Lost connection to ATM server", e);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.brainwave.atm.statement;
+
+import com.brainwave.atm.core.BankEngine;
+import com.brainwave.atm.core.BankService;
+import com.brainwave.atm.core.StatementFormat;
+import com.brainwave.atm.core.StatementWriter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Rendered account statements, kept as files and served from them.
+//
+// History is append-only and in time order, so the statement of a period that
+// has ended can never change: it is rendered once, to
+// <directory>/<account>/<first day>_<last day>.<ext>, and every later request
+// is answered from that file with FileChannel.transferTo (AtmServer's
+// STATEMENT request), which moves the bytes from the page cache without
+// decoding them again. A period that hasn't ended yet is rendered again on
+// every request.
+//
+// Rendering streams straight from the account's history (see StatementWriter)
+// into a temporary file that is then moved into place, so readers never see
+// half a statement. Each thread keeps one writer per format, so bulk runs
+// reuse the same buffers for every account.
+//
+//   java -cp atm.jar com.brainwave.atm.statement.StatementStore --month 2024-03
+//        [--format csv|binary] [--out statements] [--threads n] [--data dir] [--engine name]
+// renders the month's statements of every account in parallel. It opens the
+// data directory itself, so it refuses to start while a server holds it.
+public class StatementStore {
+    private final BankService bank;
+    private final Path directory;
+    private final ThreadLocal<StatementWriter[]> writers = new ThreadLocal<StatementWriter[]>() {
+        @Override
+        protected StatementWriter[] initialValue() {
+            return new StatementWriter[StatementFormat.values().length];
+        }
+    };
+
+    public StatementStore(BankService bank, Path directory) {
+        this.bank = bank;
+        this.directory = directory;
+    }
+
+    // File holding the statement of the account for the days from to last
+    // (inclusive), rendering it first unless a finished period already has one
+    public Path render(String accountNumber, LocalDate from, LocalDate last, StatementFormat format) throws IOException {
+        if (bank.getAccountHolderName(accountNumber) == null) {
+            throw new IllegalArgumentException("Unknown account " + accountNumber);
+        }
+        Path file = directory.resolve(accountNumber).resolve(from + "_" + last + "." + format.getExtension());
+        LocalDateTime end = last.plusDays(1).atStartOfDay();
+        boolean closed = !end.isAfter(LocalDateTime.now());
+        if (closed && Files.exists(file)) {
+            return file;
+        }
+
+        Files.createDirectories(file.getParent());
+        Path partial = Files.createTempFile(file.getParent(), "statement", ".part");
+        try {
+            long entries;
+            try (FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                entries = bank.writeStatement(accountNumber, from.atStartOfDay(), end, writer(format), out);
+            }
+            if (entries < 0) {
+                throw new IllegalStateException("Account " + accountNumber + " disappeared while rendering");
+            }
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return file;
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    // Sends all of a rendered statement, opened from render()'s file, to out.
+    // The caller takes the size from the open file, which a concurrent
+    // re-render of an unfinished period replaces but never changes.
+    public static void send(FileChannel file, WritableByteChannel out) throws IOException {
+        long size = file.size();
+        long position = 0;
+        while (position < size) {
+            position += file.transferTo(position, size - position, out);
+        }
+    }
+
+    // Renders the month's statement of every account on threads threads;
+    // returns how many were rendered
+    public int renderMonth(final YearMonth month, final StatementFormat format, int threads) throws IOException {
+        final List<String> accounts = bank.getAccountNumbers();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        Runnable worker = new Runnable() {
+            public void run() {
+                int i;
+                while (failure.get() == null && (i = next.getAndIncrement()) < accounts.size()) {
+                    try {
+                        render(accounts.get(i), month.atDay(1), month.atEndOfMonth(), format);
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }
+        };
+
+        Thread[] workers = new Thread[Math.max(1, threads)];
+        for (int t = 0; t < workers.length; t++) {
+            workers[t] = new Thread(worker, "statements-" + t);
+            workers[t].start();
+        }
+        for (Thread thread : workers) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while rendering statements", e);
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return Math.min(next.get(), accounts.size());
+    }
+
+    private StatementWriter writer(StatementFormat format) {
+        StatementWriter[] mine = writers.get();
+        if (mine[format.ordinal()] == null) {
+            mine[format.ordinal()] = new StatementWriter(format);
+        }
+        return mine[format.ordinal()];
+    }
+
+    public static void main(String[] args) {
+        YearMonth month = YearMonth.now().minusMonths(1);
+        StatementFormat format = StatementFormat.CSV;
+        Path out = Paths.get("statements");
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--month": month = YearMonth.parse(value); break;
+                case "--format": format = StatementFormat.fromName(value); break;
+                case "--out": out = Paths.get(value); break;
+                case "--threads": threads = Integer.parseInt(value); break;
+                case "--data": System.setProperty("atm.data", value); break;
+                case "--engine": System.setProperty("atm.engine", value); break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        BankService bank;
+        try {
+            bank = BankEngine.fromSystemProperties();
+        } catch (UncheckedIOException e) {
+            // most likely a server still has the data directory
+            System.err.println(e.getMessage() + ": " + e.getCause().getMessage());
+            System.exit(1);
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            int rendered = new StatementStore(bank, out).renderMonth(month, format, threads);
+            System.out.printf("Rendered %d statements for %s into %s in %.1fs%n",
+                              rendered, month, out, (System.nanoTime() - start) / 1e9);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            bank.close();
+        }
+    }
+}
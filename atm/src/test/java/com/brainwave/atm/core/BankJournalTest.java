@@ -0,0 +1,169 @@
+package com.brainwave.atm.core;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Round trips through the journaled Bank: whatever a reopened bank rebuilds
+// from its snapshot and journal must match what the bank held when it was
+// closed, or when it stopped without a final snapshot.
+class BankJournalTest {
+    private static final String ALICE = "1000000001";
+    private static final String BOB = "1000000002";
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void cheapPins() {
+        System.setProperty("atm.pin.iterations", "1");
+    }
+
+    @Test
+    void reopenAfterCloseRestoresBalancesAndHistory() {
+        Path data = directory.resolve("bank");
+        Bank bank = new Bank(data);
+        List<String> accounts = openAndTrade(bank);
+        Expected expected = Expected.of(bank, accounts);
+        bank.close();
+
+        Bank reopened = new Bank(data);
+        try {
+            expected.check(reopened);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void crashReplaysJournalPastTheLastSnapshot() throws IOException {
+        Path data = directory.resolve("bank");
+        Bank bank = new Bank(data);
+        try {
+            List<String> accounts = openAndTrade(bank);
+            bank.snapshot();
+            // Recorded only in the journal
+            assertTrue(bank.deposit(ALICE, 10.25));
+            assertTrue(bank.transfer(BOB, ALICE, 3));
+            assertEquals(Arrays.asList(Outcome.OK, Outcome.INSUFFICIENT_FUNDS),
+                         bank.applyBatch(Arrays.asList(Operation.withdrawal(ALICE, 1),
+                                                       Operation.withdrawal(BOB, 1000))));
+            Expected expected = Expected.of(bank, accounts);
+
+            Path crashed = copyOf(data, directory.resolve("crashed"));
+            Bank recovered = new Bank(crashed);
+            try {
+                expected.check(recovered);
+            } finally {
+                recovered.close();
+            }
+        } finally {
+            bank.close();
+        }
+    }
+
+    @Test
+    void refusedOperationsLeaveNothingToReplay() throws IOException {
+        Path data = directory.resolve("bank");
+        Bank bank = new Bank(data);
+        try {
+            List<String> accounts = openAndTrade(bank);
+            assertFalse(bank.transfer(ALICE, ALICE, 1));
+            assertFalse(bank.withdraw(BOB, 1000));
+            assertFalse(bank.deposit(ALICE, Double.POSITIVE_INFINITY));
+            assertFalse(bank.openAccount(ALICE, "1111", 5, "Duplicate"));
+            Expected expected = Expected.of(bank, accounts);
+
+            Bank recovered = new Bank(copyOf(data, directory.resolve("crashed")));
+            try {
+                expected.check(recovered);
+            } finally {
+                recovered.close();
+            }
+        } finally {
+            bank.close();
+        }
+    }
+
+    // Opens two accounts and gives each every kind of journaled entry
+    private static List<String> openAndTrade(Bank bank) {
+        assertTrue(bank.openAccount(ALICE, "1234", 500, "Alice"));
+        assertTrue(bank.openAccount(BOB, "5678", 250.50, "Bob"));
+        assertTrue(bank.deposit(ALICE, 120.75));
+        assertTrue(bank.withdraw(BOB, 50));
+        assertTrue(bank.transfer(ALICE, BOB, 99.99));
+        bank.changePin(BOB, "8765");
+        assertEquals(Arrays.asList(Outcome.OK, Outcome.OK, Outcome.ALREADY_POSTED),
+                     bank.applyBatch(Arrays.asList(Operation.interest(ALICE, LocalDate.of(2026, 1, 5), 42),
+                                                   Operation.deposit(BOB, 1),
+                                                   Operation.interest(ALICE, LocalDate.of(2026, 1, 5), 42))));
+        return bank.getAccountNumbers();
+    }
+
+    // A copy of a live data directory, as a crash would leave it
+    private static Path copyOf(Path source, Path target) throws IOException {
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Path copy = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(copy);
+                } else if (!path.getFileName().toString().equals("lock")) {
+                    Files.copy(path, copy);
+                }
+            }
+        }
+        return target;
+    }
+
+    // Balances and histories of a set of accounts, without timestamps: a
+    // replayed entry carries its journal record's time
+    private static final class Expected {
+        final List<String> accounts;
+        final List<Long> balances = new ArrayList<Long>();
+        final List<List<String>> histories = new ArrayList<List<String>>();
+
+        private Expected(List<String> accounts) {
+            this.accounts = accounts;
+        }
+
+        static Expected of(Bank bank, List<String> accounts) {
+            Expected expected = new Expected(accounts);
+            for (String account : accounts) {
+                expected.balances.add(bank.getBalancePaise(account));
+                expected.histories.add(entries(bank, account));
+            }
+            return expected;
+        }
+
+        void check(Bank bank) {
+            assertEquals(accounts.size(), bank.getAccountNumbers().size());
+            for (int i = 0; i < accounts.size(); i++) {
+                String account = accounts.get(i);
+                assertEquals(balances.get(i).longValue(), bank.getBalancePaise(account), account);
+                assertEquals(histories.get(i), entries(bank, account), account);
+            }
+        }
+
+        private static List<String> entries(Bank bank, String account) {
+            List<String> entries = new ArrayList<String>();
+            for (Transaction transaction : bank.recentTransactions(account, Integer.MAX_VALUE)) {
+                entries.add(transaction.getTransactionType() + " " + transaction.getCounterparty() + " "
+                            + transaction.getAmountPaise() + " " + transaction.getBalanceAfterPaise());
+            }
+            return entries;
+        }
+    }
+}